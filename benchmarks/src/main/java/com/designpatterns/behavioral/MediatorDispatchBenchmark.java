@@ -0,0 +1,98 @@
+package com.designpatterns.behavioral;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The mediator's dispatch: fanning a message out to every member of a group, and publishing into the ring buffer
+ * group, whose processor thread does the fan-out. Members only count what they receive
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MediatorDispatchBenchmark {
+
+	@Param({ "10", "1000" })
+	public int members;
+
+	private final LongAdder received = new LongAdder();
+	private final ChatMessage message = ChatMessage.text("Member0", "Hi How are you?");
+	private ShardedMemberRegistry registry;
+	private RingWhatsappGroup ringGroup;
+
+	@Setup(Level.Trial)
+	public void joinMembers() {
+		registry = new ShardedMemberRegistry(1024, 10_000);
+		ringGroup = new RingWhatsappGroup("Benchmark", new ChatRingBuffer(64 * 1024), new YieldingWaitStrategy());
+		for (int i = 0; i < members; i++) {
+			CountingMember member = new CountingMember("Member" + i, received);
+			registry.join(member);
+			ringGroup.join(member);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void close() {
+		ringGroup.close();
+	}
+
+	@Benchmark
+	public long fanOut() {
+		return registry.fanOut(message);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public long fanOutMultiThreaded() {
+		return registry.fanOut(message);
+	}
+
+	@Benchmark
+	public void ringPublish() {
+		ringGroup.sendText("Member0", "Hi How are you?");
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void ringPublishMultiThreaded() {
+		ringGroup.sendText("Member0", "Hi How are you?");
+	}
+
+	private static class CountingMember implements WhatsappGroupMember {
+		private final String memberName;
+		private final LongAdder received;
+
+		CountingMember(String memberName, LongAdder received) {
+			this.memberName = memberName;
+			this.received = received;
+		}
+
+		@Override
+		public String getMemberName() {
+			return memberName;
+		}
+
+		@Override
+		public void receiveMessage(ChatMessage message) {
+			received.increment();
+		}
+	}
+}
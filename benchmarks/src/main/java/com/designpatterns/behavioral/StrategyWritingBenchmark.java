@@ -0,0 +1,64 @@
+package com.designpatterns.behavioral;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing a report of 10,000 records with each strategy through the writing context, into a channel that throws the
+ * bytes away, so the time is that of the encoding. Run with -prof gc to see the allocation per report
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StrategyWritingBenchmark {
+	private static final int RECORDS = 10_000;
+
+	@Param({ "text", "excel", "pdf" })
+	public String strategy;
+
+	private final RecordSource records = new SampleRecordSource(RECORDS);
+	private final DiscardingByteChannel channel = new DiscardingByteChannel();
+	private WritingContext writingContext;
+
+	@Setup(Level.Trial)
+	public void chooseStrategy() {
+		switch (strategy) {
+		case "text":
+			writingContext = new WritingContext(new TextWriter());
+			break;
+		case "excel":
+			writingContext = new WritingContext(new ExcelWriter());
+			break;
+		default:
+			writingContext = new WritingContext(new PdfWriter());
+		}
+	}
+
+	@Benchmark
+	public WritingReport write() throws IOException {
+		return writingContext.executeWriting(records, channel);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public WritingReport writeMultiThreaded() throws IOException {
+		return writingContext.executeWriting(records, channel);
+	}
+}
@@ -0,0 +1,147 @@
+package com.designpatterns.benchmarks;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares a JMH json result file against the checked in baseline and fails when a benchmark got slower. Benchmarks are
+ * matched by name and parameters; lower is better for the average time mode used throughout the module.
+ *
+ * A benchmark only counts as slower when both hold: its score is above the baseline's by more than the tolerance, and the
+ * two scores' confidence intervals (score +/- scoreError as JMH reports them) do not overlap, so a change within the noise
+ * of either run is not a regression. A score without an error, from a run with a single iteration, is judged by the
+ * tolerance alone.
+ *
+ * The tolerance is 10% unless given, and can be set per benchmark in tolerances.properties next to the baseline: the key is
+ * the benchmark name, with or without its parameters as printed, the value a percentage.
+ *
+ * Usage: CompareWithBaseline baseline.json results.json [tolerancePercent]
+ */
+public class CompareWithBaseline {
+	private static final Pattern BENCHMARK = Pattern.compile("\"benchmark\"\\s*:\\s*\"([^\"]+)\"");
+	private static final Pattern PARAMS = Pattern.compile("\"params\"\\s*:\\s*\\{([^}]*)\\}");
+	private static final Pattern SCORE = Pattern.compile(
+			"\"primaryMetric\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*([-0-9.eE]+|\"NaN\")\\s*,\\s*\"scoreError\"\\s*:\\s*([-0-9.eE]+|\"NaN\")");
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 2) {
+			System.err.println("Usage: CompareWithBaseline baseline.json results.json [tolerancePercent]");
+			System.exit(2);
+		}
+		Path baselineFile = Paths.get(args[0]);
+		double defaultTolerance = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+		Properties tolerances = readTolerances(baselineFile.toAbsolutePath().resolveSibling("tolerances.properties"));
+		Map<String, Score> baseline = readScores(baselineFile);
+		Map<String, Score> current = readScores(Paths.get(args[1]));
+
+		int regressions = 0;
+		System.out.printf("%-100s %24s %24s %8s %9s%n", "Benchmark", "Baseline", "Current", "Change", "Tolerance");
+		for (Map.Entry<String, Score> entry : current.entrySet()) {
+			String key = entry.getKey();
+			Score after = entry.getValue();
+			Score before = baseline.get(key);
+			if(before == null) {
+				System.out.printf("%-100s %24s %24s %8s%n", key, "-", after, "new");
+				continue;
+			}
+			double tolerance = toleranceOf(key, tolerances, defaultTolerance);
+			double change = (after.score - before.score) / before.score * 100;
+			boolean regressed = change > tolerance && after.lowerBound() > before.upperBound();
+			String verdict = "";
+			if(regressed) {
+				regressions++;
+				verdict = "  REGRESSION";
+			} else if(change > tolerance) {
+				verdict = "  within error";
+			}
+			System.out.printf("%-100s %24s %24s %+7.1f%% %8.0f%%%s%n", key, before, after, change, tolerance, verdict);
+		}
+		System.out.printf("%d of %d benchmarks slower than the baseline beyond tolerance and error%n", regressions, current.size());
+		if(regressions > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Reads benchmark name and parameters to score, one entry per element of the JMH result array
+	 */
+	static Map<String, Score> readScores(Path file) throws IOException {
+		String json = new String(Files.readAllBytes(file), "UTF-8");
+		Map<String, Score> scores = new LinkedHashMap<>();
+		Matcher benchmark = BENCHMARK.matcher(json);
+		int start = benchmark.find() ? benchmark.start() : -1;
+		while (start >= 0) {
+			String name = benchmark.group(1);
+			int end = benchmark.find() ? benchmark.start() : json.length();
+			String element = json.substring(start, end);
+
+			Matcher params = PARAMS.matcher(element);
+			if(params.find()) {
+				name += " {" + params.group(1).replaceAll("[\\s\"]", "") + "}";
+			}
+			Matcher score = SCORE.matcher(element);
+			if(score.find() && !score.group(1).startsWith("\"")) {
+				double error = score.group(2).startsWith("\"") ? Double.NaN : Double.parseDouble(score.group(2));
+				scores.put(name, new Score(Double.parseDouble(score.group(1)), error));
+			}
+			start = end < json.length() ? end : -1;
+		}
+		return scores;
+	}
+
+	private static Properties readTolerances(Path file) throws IOException {
+		Properties tolerances = new Properties();
+		if(Files.exists(file)) {
+			try (Reader reader = Files.newBufferedReader(file)) {
+				tolerances.load(reader);
+			}
+		}
+		return tolerances;
+	}
+
+	/**
+	 * The benchmark with its parameters first, then the benchmark as a whole, then the default
+	 */
+	private static double toleranceOf(String key, Properties tolerances, double defaultTolerance) {
+		String value = tolerances.getProperty(key.replace(" ", ""));
+		if(value == null) {
+			int params = key.indexOf(" {");
+			value = tolerances.getProperty(params < 0 ? key : key.substring(0, params));
+		}
+		return value == null ? defaultTolerance : Double.parseDouble(value.trim());
+	}
+
+	/**
+	 * A score and its error, the half width of JMH's 99.9% confidence interval. NaN when the run had one iteration
+	 */
+	static final class Score {
+		final double score;
+		final double error;
+
+		Score(double score, double error) {
+			this.score = score;
+			this.error = error;
+		}
+
+		double lowerBound() {
+			return Double.isNaN(error) ? score : score - error;
+		}
+
+		double upperBound() {
+			return Double.isNaN(error) ? score : score + error;
+		}
+
+		@Override
+		public String toString() {
+			return Double.isNaN(error) ? String.format("%.3f", score) : String.format("%.3f +/- %.3f", score, error);
+		}
+	}
+}
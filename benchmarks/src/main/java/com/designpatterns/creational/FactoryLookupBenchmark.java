@@ -0,0 +1,62 @@
+package com.designpatterns.creational;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looking a bean up by its name in the factory and in the abstract factories. The names are matched one after the
+ * other, so the last one in the chain is the slowest to find
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FactoryLookupBenchmark {
+
+	@Param({ "StudentBean", "CountryBean" })
+	public String beanType;
+
+	private final BeanFactory beanFactory = new BeanFactory();
+	private final AbstractBeanFactory studentFactory = new StudentBeanFactory();
+	private final AbstractBeanFactory employeeFactory = new EmployeeBeanFactory();
+
+	@Benchmark
+	public Bean beanFactory() throws Exception {
+		return beanFactory.getBean(beanType);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Bean beanFactoryMultiThreaded() throws Exception {
+		return beanFactory.getBean(beanType);
+	}
+
+	@Benchmark
+	public Student abstractFactoryStudent() throws Exception {
+		return studentFactory.getStudent("masterStudent");
+	}
+
+	@Benchmark
+	public Employee abstractFactoryEmployee() throws Exception {
+		return employeeFactory.getEmployee("contractEmployee");
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Employee abstractFactoryEmployeeMultiThreaded() throws Exception {
+		return employeeFactory.getEmployee("contractEmployee");
+	}
+}
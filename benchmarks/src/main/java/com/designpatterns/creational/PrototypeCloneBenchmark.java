@@ -0,0 +1,46 @@
+package com.designpatterns.creational;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Getting a connection from the prototype pool: a map lookup and a clone of the cached prototype
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrototypeCloneBenchmark {
+
+	private final DBConnectionPool pool = new DBConnectionPool();
+
+	@Setup(Level.Trial)
+	public void loadPrototypes() {
+		DBConnectionPool.loadDBConnections();
+	}
+
+	@Benchmark
+	public DBConnection cloneConnection() {
+		return pool.getConnection("oracleConnection");
+	}
+
+	@Benchmark
+	@Threads(4)
+	public DBConnection cloneConnectionMultiThreaded() {
+		return pool.getConnection("oracleConnection");
+	}
+}
@@ -0,0 +1,67 @@
+package com.designpatterns.creational;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * getInstance() of each singleton variant once the instance exists. The synchronized variant takes a lock on every
+ * call, which shows most when several threads ask at once
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SingletonBenchmark {
+
+	@Benchmark
+	public Object lazy() {
+		return Database.getInstance();
+	}
+
+	@Benchmark
+	public Object synchronizedMethod() {
+		return Database_v2.getInstance();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Object synchronizedMethodMultiThreaded() {
+		return Database_v2.getInstance();
+	}
+
+	@Benchmark
+	public Object doubleChecked() {
+		return Database_v3.getInstance();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Object doubleCheckedMultiThreaded() {
+		return Database_v3.getInstance();
+	}
+
+	@Benchmark
+	public Object doubleCheckedSerializable() {
+		return Database_v4.getInstance();
+	}
+
+	@Benchmark
+	public Object holder() {
+		return Database_v5.getInstance();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public Object holderMultiThreaded() {
+		return Database_v5.getInstance();
+	}
+}
@@ -0,0 +1,58 @@
+package com.designpatterns.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cost of recording on the metrics the patterns are instrumented with. Run with -prof gc to check that recording
+ * does not allocate
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsRecordingBenchmark {
+	private final MetricsRegistry.Counter counter = new MetricsRegistry().counter("benchmark.counter");
+	private final MetricsRegistry.Histogram histogram = new MetricsRegistry().histogram("benchmark.nanos");
+	private long value = 1;
+
+	@Benchmark
+	public void counterIncrement() {
+		counter.increment();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void counterIncrementMultiThreaded() {
+		counter.increment();
+	}
+
+	@Benchmark
+	public void histogramRecord() {
+		histogram.recordNanos(nextValue());
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void histogramRecordMultiThreaded() {
+		histogram.recordNanos(nextValue());
+	}
+
+	private long nextValue() {
+		// values up to about a millisecond, spread over many buckets. The racy update is fine for that
+		value = value * 6364136223846793005L + 1442695040888963407L;
+		return (value >>> 40) & 0xFFFFF;
+	}
+}
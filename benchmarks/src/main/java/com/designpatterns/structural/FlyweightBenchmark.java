@@ -0,0 +1,56 @@
+package com.designpatterns.structural;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Get-or-create on the flyweight pool for names that are already pooled, which is what almost every call is. The
+ * names are created before the measurement, so the threads only read the pool
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FlyweightBenchmark {
+	private static final int NAMES = 64;
+
+	private final String[] connectionNames = new String[NAMES];
+
+	@Setup(Level.Trial)
+	public void fillPool() {
+		for (int i = 0; i < NAMES; i++) {
+			connectionNames[i] = "connectionName" + i;
+			OracleDBConnectionPool.getConnectionObjectFromPool(connectionNames[i]);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+	}
+
+	@Benchmark
+	public OracleDBConnection getPooled(Cursor cursor) {
+		return OracleDBConnectionPool.getConnectionObjectFromPool(connectionNames[cursor.next++ & (NAMES - 1)]);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public OracleDBConnection getPooledMultiThreaded(Cursor cursor) {
+		return OracleDBConnectionPool.getConnectionObjectFromPool(connectionNames[cursor.next++ & (NAMES - 1)]);
+	}
+}
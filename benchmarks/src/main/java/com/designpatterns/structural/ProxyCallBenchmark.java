@@ -0,0 +1,47 @@
+package com.designpatterns.structural;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A call through the proxy next to the same call on the real service, so the cost of the indirection can be told
+ * apart from the work of the service
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyCallBenchmark {
+
+	private final ExposeUserData proxy = new ProxyService();
+	private final ExposeUserData realService = new RealSecuredService();
+
+	@Benchmark
+	public List<User> direct() {
+		return realService.getUsersFromService();
+	}
+
+	@Benchmark
+	public List<User> throughProxy() {
+		return proxy.getUsersFromService();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public List<User> throughProxyMultiThreaded() {
+		return proxy.getUsersFromService();
+	}
+}
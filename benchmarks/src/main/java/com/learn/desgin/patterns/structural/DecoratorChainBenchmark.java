@@ -0,0 +1,74 @@
+package com.learn.desgin.patterns.structural;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A message through a chain of signature decorators, as nested WhatsappVer2 decorators passing a composite message
+ * and as a flattened WhatsappPipeline passing text, for chains of growing depth
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecoratorChainBenchmark {
+	private static final String MESSAGE = "Hi How are you? Shall we meet for lunch tomorrow at the usual place near the office?";
+	private static final byte[] MESSAGE_BYTES = MESSAGE.getBytes(StandardCharsets.UTF_8);
+
+	@Param({ "1", "4", "8" })
+	public int depth;
+
+	private WhatsappMessage chain;
+	private WhatsappMessage pipeline;
+
+	@Setup(Level.Trial)
+	public void buildChains() {
+		chain = new WhatsappVer1(new CountingChannel());
+		WhatsappPipelineBuilder builder = new WhatsappPipelineBuilder();
+		for (int layer = 0; layer < depth; layer++) {
+			WhatsappVer2 decorator = new WhatsappVer2(chain);
+			decorator.setSignature("Sent from layer " + layer);
+			chain = decorator;
+			builder.appendSignature("Sent from layer " + (depth - 1 - layer));
+		}
+		pipeline = builder.build(new WhatsappVer1(new CountingChannel()));
+	}
+
+	@Benchmark
+	public void nestedDecorators() {
+		chain.sendCompositeMsg(CompositeMessage.of(MESSAGE_BYTES));
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void nestedDecoratorsMultiThreaded() {
+		chain.sendCompositeMsg(CompositeMessage.of(MESSAGE_BYTES));
+	}
+
+	@Benchmark
+	public void pipeline() {
+		pipeline.sendTextMsg(MESSAGE);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void pipelineMultiThreaded() {
+		pipeline.sendTextMsg(MESSAGE);
+	}
+}
@@ -1,6 +1,58 @@
 package com.designpatterns.behavioral;
 
-import java.util.Date;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import com.designpatterns.jfr.PatternEvents;
+import com.designpatterns.metrics.MetricsRegistry;
+import com.designpatterns.output.Output;
 
 /**
  * Mediator pattern is a behavioural pattern.
@@ -11,14 +63,20 @@ import java.util.Date;
 public class MediatorPattern {
 
 	public static void main(String[] args) {
-		GroupMember1 member1 = new GroupMember1("Saranya");
-		GroupMember2 member2 = new GroupMember2("Sai");
-		GroupMember3 member3 = new GroupMember3("Nithya");
+		WhatsappChats whatsappChats = new WhatsappChats();
+		WhatsappGroup friends = whatsappChats.createGroup("Friends");
+		
+		GroupMember member1 = new GroupMember("Saranya", friends);
+		GroupMember member2 = new GroupMember("Sai", friends);
+		GroupMember member3 = new GroupMember("Nithya", friends);
 		
 		member1.sendMessage("Hi");
 		member2.sendMessage("Hello");
 		member3.sendMessage("Hey");
 		member3.sendMessage("Hey".getBytes());
+		
+		// delivers everything still queued before the program ends
+		whatsappChats.shutdown();
 	}
 
 }
@@ -35,91 +93,2950 @@ interface WhatsappGroupChat {
 
 /**
  * 
- * this class will have a static method to send the message or different types of messages
+ * A member of a group receives the messages the other members send to the group
  *
  */
-class WhatsappChats {
-	public static void sendWhatsappMessages(String memberName, Object message) {
-		if(message instanceof String) {
-			System.out.println(new Date()+" Text message from "+memberName+" : "+message);
+interface WhatsappGroupMember {
+	public String getMemberName();
+	public void receiveMessage(ChatMessage message);
+}
+
+/**
+ * 
+ * One message sent to a group. It holds either a text or a media payload. Media is either a plain array or a SharedMedia buffer
+ * that every recipient reads without a copy of its own
+ * 
+ * Messages never change once created, with one exception: the view a RingWhatsappGroup refills for every event it delivers.
+ * A recipient keeping a message past receiveMessage() keeps what retain() gives it, never the message itself
+ *
+ */
+final class ChatMessage {
+	private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss yyyy").withZone(ZoneId.systemDefault());
+	
+	// only written after creation for a reusable view, and then only by the one thread delivering it
+	private String memberName;
+	private String text;
+	private byte[] media;
+	private final SharedMedia sharedMedia;
+	private long sentAtMillis;
+	private final boolean reusable;
+	
+	private ChatMessage(String memberName, String text, byte[] media, SharedMedia sharedMedia, long sentAtMillis, boolean reusable) {
+		this.memberName = memberName;
+		this.text = text;
+		this.media = media;
+		this.sharedMedia = sharedMedia;
+		this.sentAtMillis = sentAtMillis;
+		this.reusable = reusable;
+	}
+	
+	private ChatMessage(String memberName, String text, byte[] media, SharedMedia sharedMedia, long sentAtMillis) {
+		this(memberName, text, media, sharedMedia, sentAtMillis, false);
+	}
+	
+	private ChatMessage(String memberName, String text, byte[] media, long sentAtMillis) {
+		this(memberName, text, media, null, sentAtMillis);
+	}
+	
+	/**
+	 * An empty message that its owner refills with reuse() for every message it delivers, so delivering allocates nothing
+	 */
+	static ChatMessage reusableView() {
+		return new ChatMessage(null, null, null, null, 0, true);
+	}
+	
+	/**
+	 * Refills a reusable view with a text (media null) or media (text null) message
+	 */
+	void reuse(String memberName, String text, byte[] media, long sentAtMillis) {
+		if(!reusable) {
+			throw new IllegalStateException("Only a reusable view can be refilled");
+		}
+		this.memberName = memberName;
+		this.text = text;
+		this.media = media;
+		this.sentAtMillis = sentAtMillis;
+	}
+	
+	public static ChatMessage text(String memberName, String text) {
+		return new ChatMessage(memberName, text, null, System.currentTimeMillis());
+	}
+	
+	public static ChatMessage media(String memberName, byte[] media) {
+		return new ChatMessage(memberName, null, media, System.currentTimeMillis());
+	}
+	
+	/**
+	 * Recreates a message that was sent earlier, for example one read back from disk
+	 */
+	public static ChatMessage text(String memberName, String text, long sentAtMillis) {
+		return new ChatMessage(memberName, text, null, sentAtMillis);
+	}
+	
+	public static ChatMessage media(String memberName, byte[] media, long sentAtMillis) {
+		return new ChatMessage(memberName, null, media, sentAtMillis);
+	}
+	
+	/**
+	 * Media in a shared buffer. The message owns the reference it is given, whoever fans it out releases it once done
+	 */
+	public static ChatMessage sharedMedia(String memberName, SharedMedia sharedMedia) {
+		return new ChatMessage(memberName, null, null, sharedMedia, System.currentTimeMillis());
+	}
+
+	public String getMemberName() {
+		return memberName;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * The media as an array. For shared media this is a copy, use getMediaView() to read it without one
+	 */
+	public byte[] getMedia() {
+		if(sharedMedia != null) {
+			byte[] copy = new byte[sharedMedia.length()];
+			sharedMedia.view().get(copy);
+			return copy;
+		}
+		return media;
+	}
+	
+	/**
+	 * Read only view of the media. Every call gets its own position, so recipients can read it at the same time
+	 */
+	public ByteBuffer getMediaView() {
+		if(sharedMedia != null) {
+			return sharedMedia.view();
+		}
+		return media == null ? null : ByteBuffer.wrap(media).asReadOnlyBuffer();
+	}
+	
+	public int getMediaLength() {
+		return sharedMedia != null ? sharedMedia.length() : media == null ? 0 : media.length;
+	}
+	
+	public SharedMedia getSharedMedia() {
+		return sharedMedia;
+	}
+	
+	/**
+	 * What a recipient keeps when it holds on to the message after receiveMessage() returns. A reusable view is copied,
+	 * as its owner refills it for the next message. Any other message is kept as it is, with its own reference to shared media
+	 * that is given back with releaseMedia()
+	 */
+	public ChatMessage retain() {
+		if(reusable) {
+			return new ChatMessage(memberName, text, media, sentAtMillis);
+		}
+		retainMedia();
+		return this;
+	}
+	
+	/**
+	 * A recipient that keeps the message after receiveMessage() returns takes its own reference to shared media,
+	 * and gives it back with releaseMedia(). Does nothing for other messages
+	 */
+	public void retainMedia() {
+		if(sharedMedia != null) {
+			sharedMedia.retain();
 		}
-		if(message instanceof byte[]) {
-			System.out.println(new Date()+" Media message from "+memberName+" : "+message);
+	}
+	
+	public void releaseMedia() {
+		if(sharedMedia != null) {
+			sharedMedia.release();
 		}
 	}
+
+	public long getSentAtMillis() {
+		return sentAtMillis;
+	}
+	
+	public boolean isMedia() {
+		return media != null || sharedMedia != null;
+	}
+	
+	public boolean isReusable() {
+		return reusable;
+	}
+	
+	/**
+	 * Formats the message the way it is shown to a member. Only done on delivery, never on the sender's thread
+	 */
+	public String describe() {
+		String time = TIME_FORMAT.format(Instant.ofEpochMilli(sentAtMillis));
+		return isMedia() ? time+" Media message from "+memberName+" : "+getMediaLength()+" bytes" : time+" Text message from "+memberName+" : "+text;
+	}
 }
 
 /**
  * 
- * Group User/Group Member class will implement the whatsapp group chat interface to send message
+ * Media stored once and read by every recipient of a fan-out. The buffer comes from a MediaBufferPool and goes back to it when the
+ * last reference is released. Recipients only ever get read only views, so nobody can change the media under the others.
  *
  */
-class GroupMember1 implements WhatsappGroupChat {
+final class SharedMedia {
+	private final MediaBufferPool pool;
+	private final ByteBuffer buffer;
+	private final int length;
+	private final AtomicInteger references = new AtomicInteger(1);
+	
+	SharedMedia(MediaBufferPool pool, ByteBuffer buffer, int length) {
+		this.pool = pool;
+		this.buffer = buffer;
+		this.length = length;
+	}
+	
+	public ByteBuffer view() {
+		if(references.get() <= 0) {
+			throw new IllegalStateException("Shared media was already released");
+		}
+		return buffer.asReadOnlyBuffer().limit(length);
+	}
+	
+	public int length() {
+		return length;
+	}
+	
+	public SharedMedia retain() {
+		while(true) {
+			int current = references.get();
+			if(current <= 0) {
+				throw new IllegalStateException("Shared media was already released");
+			}
+			if(references.compareAndSet(current, current + 1)) {
+				return this;
+			}
+		}
+	}
+	
+	public void release() {
+		int remaining = references.decrementAndGet();
+		if(remaining == 0) {
+			pool.recycle(buffer);
+		} else if(remaining < 0) {
+			throw new IllegalStateException("Shared media released more often than retained");
+		}
+	}
+	
+	public int getReferenceCount() {
+		return references.get();
+	}
+}
 
-	private String memberName;
+/**
+ * 
+ * Buffers for shared media, in power of 2 size classes from 4KB up. Released buffers are kept for reuse, up to a limit per
+ * size class, so sending media does not keep allocating large arrays. Media larger than the largest class is not pooled.
+ *
+ */
+class MediaBufferPool {
+	private static final int MIN_SHIFT = 12;
+	private static final int MAX_SHIFT = 24;
 	
-	protected GroupMember1(String memberName) {
-		super();
-		this.memberName = memberName;
+	private final ConcurrentLinkedQueue<ByteBuffer>[] freeBuffers;
+	private final AtomicInteger[] freeCounts;
+	private final int maxPooledPerClass;
+	private final LongAdder allocated = new LongAdder();
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	MediaBufferPool(int maxPooledPerClass) {
+		this.maxPooledPerClass = maxPooledPerClass;
+		this.freeBuffers = new ConcurrentLinkedQueue[MAX_SHIFT - MIN_SHIFT + 1];
+		this.freeCounts = new AtomicInteger[freeBuffers.length];
+		for (int i = 0; i < freeBuffers.length; i++) {
+			freeBuffers[i] = new ConcurrentLinkedQueue<>();
+			freeCounts[i] = new AtomicInteger();
+		}
+	}
+	
+	/**
+	 * Copies the media into a pooled buffer. This is the only copy the media gets, however many members it is sent to
+	 */
+	public SharedMedia share(byte[] media) {
+		ByteBuffer buffer = acquire(media.length);
+		buffer.clear();
+		buffer.put(media).flip();
+		return new SharedMedia(this, buffer, media.length);
+	}
+	
+	void recycle(ByteBuffer buffer) {
+		int sizeClass = sizeClassOf(buffer.capacity());
+		if(sizeClass < 0 || buffer.capacity() != 1 << (sizeClass + MIN_SHIFT)) {
+			return;
+		}
+		if(freeCounts[sizeClass].incrementAndGet() <= maxPooledPerClass) {
+			freeBuffers[sizeClass].offer(buffer);
+		} else {
+			freeCounts[sizeClass].decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Bytes of buffers created so far. Stays flat once the pool is warm
+	 */
+	public long getAllocatedBytes() {
+		return allocated.sum();
+	}
+	
+	private ByteBuffer acquire(int size) {
+		int sizeClass = sizeClassOf(size);
+		if(sizeClass < 0) {
+			allocated.add(size);
+			return ByteBuffer.allocate(size);
+		}
+		ByteBuffer buffer = freeBuffers[sizeClass].poll();
+		if(buffer != null) {
+			freeCounts[sizeClass].decrementAndGet();
+			return buffer;
+		}
+		allocated.add(1 << (sizeClass + MIN_SHIFT));
+		return ByteBuffer.allocate(1 << (sizeClass + MIN_SHIFT));
+	}
+	
+	private static int sizeClassOf(int size) {
+		int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1));
+		return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
 	}
+}
 
-	@Override
-	public void sendMessage(String msg) {
-		WhatsappChats.sendWhatsappMessages(memberName, msg);
+/**
+ * 
+ * A group with its members and its own queue of messages. Senders only add to the queue and return, a dedicated dispatcher
+ * thread takes the messages off the queue and fans each one out to every member except the sender.
+ * 
+ * Many threads put messages in and only the dispatcher takes them out, so the queue is a lock free linked queue.
+ * The dispatcher parks when the queue is empty and senders only wake it when it is actually parked.
+ * 
+ * In a flight recording each message is a MessageDispatch event, from the moment it is queued until the fan-out is done.
+ *
+ */
+class WhatsappGroup {
+	private final String groupName;
+	private final ShardedMemberRegistry members = new ShardedMemberRegistry(1024, 10_000);
+	// a ChatMessage, or a TracedMessage while a flight recording has MessageDispatch enabled
+	private final Queue<Object> queue = new ConcurrentLinkedQueue<>();
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder journalFailures = new LongAdder();
+	private final Thread dispatcher;
+	private volatile boolean dispatcherParked;
+	private volatile boolean running = true;
+	private volatile ChatJournal journal;
+	private final MediaBufferPool mediaPool;
+	private final List<MemberMailbox> mailboxes = new CopyOnWriteArrayList<>();
+	
+	protected WhatsappGroup(String groupName) {
+		this(groupName, new MediaBufferPool(16));
+	}
+	
+	protected WhatsappGroup(String groupName, MediaBufferPool mediaPool) {
+		this.groupName = groupName;
+		this.mediaPool = mediaPool;
+		this.dispatcher = new Thread(this::dispatch, groupName + " dispatcher");
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+	
+	public void join(WhatsappGroupMember member) {
+		members.join(member);
+	}
+	
+	/**
+	 * Joins the member behind its own bounded mailbox, so a member that reads slowly only fills its own mailbox
+	 * and never holds up the dispatcher or the other members
+	 */
+	public MemberMailbox join(WhatsappGroupMember member, int mailboxCapacity, OverflowPolicy overflowPolicy) {
+		MemberMailbox mailbox = new MemberMailbox(member, mailboxCapacity, overflowPolicy);
+		if(!members.join(mailbox)) {
+			throw new IllegalArgumentException("Group "+groupName+" already has a member named --> "+member.getMemberName());
+		}
+		mailboxes.add(mailbox);
+		return mailbox;
+	}
+	
+	/**
+	 * A member that joined with a mailbox gets what is still in it before the mailbox is closed
+	 */
+	public void leave(WhatsappGroupMember member) {
+		WhatsappGroupMember removed = members.leave(member);
+		if(removed instanceof MemberMailbox) {
+			mailboxes.remove(removed);
+			((MemberMailbox) removed).close();
+		}
+	}
+	
+	/**
+	 * Queues the message and returns straight away, the delivery happens on the dispatcher thread
+	 */
+	public void post(ChatMessage message) {
+		if(!running) {
+			throw new IllegalStateException("Group "+groupName+" is closed");
+		}
+		long startNanos = WhatsappChats.POST_NANOS.startSample();
+		if(message.isReusable()) {
+			// a member passing on what it received from a ring group, the view is refilled once it returns
+			message = message.retain();
+		}
+		Object queued = message;
+		if(PatternEvents.MessageDispatch.isRecording()) {
+			PatternEvents.MessageDispatch event = new PatternEvents.MessageDispatch();
+			event.begin();
+			queued = new TracedMessage(message, event);
+		}
+		queue.offer(queued);
+		if(!running && queue.remove(queued)) {
+			// close() came in between and nobody took the message, so it would never be delivered
+			throw new IllegalStateException("Group "+groupName+" is closed");
+		}
+		if(dispatcherParked) {
+			LockSupport.unpark(dispatcher);
+		}
+		WhatsappChats.POST_NANOS.recordSince(startNanos);
+		WhatsappChats.SENT.increment();
+	}
+	
+	/**
+	 * Stops taking messages, delivers what is still queued and waits for the dispatcher to finish. A message posted while
+	 * the dispatcher was stopping is delivered here, on the closing thread. Then the mailboxes of the group are closed,
+	 * which delivers what is left in them
+	 */
+	public void close() {
+		running = false;
+		LockSupport.unpark(dispatcher);
+		try {
+			dispatcher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		Object queued;
+		while((queued = queue.poll()) != null) {
+			fanOut(queued);
+		}
+		mailboxes.forEach(MemberMailbox::close);
+	}
+	
+	private void dispatch() {
+		while(true) {
+			Object queued = queue.poll();
+			if(queued != null) {
+				fanOut(queued);
+				continue;
+			}
+			if(!running) {
+				return;
+			}
+			dispatcherParked = true;
+			// check again after announcing the park, a sender that missed the flag has already queued its message
+			if(queue.isEmpty() && running) {
+				LockSupport.park(this);
+			}
+			dispatcherParked = false;
+		}
+	}
+	
+	private void fanOut(Object queued) {
+		ChatMessage message;
+		PatternEvents.MessageDispatch event = null;
+		if(queued instanceof TracedMessage) {
+			message = ((TracedMessage) queued).message;
+			event = ((TracedMessage) queued).event;
+		} else {
+			message = (ChatMessage) queued;
+		}
+		long fannedOut = 0;
+		try {
+			ChatJournal currentJournal = journal;
+			if(currentJournal != null) {
+				journal(currentJournal, message);
+			}
+			fannedOut = members.fanOut(message);
+			delivered.add(fannedOut);
+			WhatsappChats.DELIVERED.add(fannedOut);
+		} finally {
+			if(event != null) {
+				event.finish(groupName, message.getMemberName(), fannedOut);
+			}
+			// the group's own reference, members that kept the message hold theirs
+			message.releaseMedia();
+		}
+	}
+	
+	/**
+	 * Written by the dispatcher, the sender has long returned. The journal syncs to disk on its own thread. A message the
+	 * journal cannot take is still delivered, it is only missing from the history
+	 */
+	private void journal(ChatJournal currentJournal, ChatMessage message) {
+		try {
+			currentJournal.append(message);
+		} catch (RuntimeException e) {
+			journalFailures.increment();
+			WhatsappChats.JOURNAL_FAILURES.increment();
+			System.err.println("Journal of group "+groupName+" failed: "+e);
+		}
+	}
+	
+	/**
+	 * Copies media into a shared buffer from the group's pool, ready to be sent with ChatMessage.sharedMedia()
+	 */
+	public SharedMedia shareMedia(byte[] media) {
+		return mediaPool.share(media);
+	}
+	
+	/**
+	 * Keeps every message delivered from now on in the journal, so the history can be replayed later
+	 */
+	public void setJournal(ChatJournal journal) {
+		this.journal = journal;
+	}
+	
+	public String getGroupName() {
+		return groupName;
+	}
+	
+	public long getDelivered() {
+		return delivered.sum();
+	}
+	
+	/**
+	 * Deliveries that threw in the member's receiveMessage()
+	 */
+	public long getDeliveryFailures() {
+		return members.getDeliveryFailures();
+	}
+	
+	/**
+	 * Messages that were delivered but could not be written to the journal
+	 */
+	public long getJournalFailures() {
+		return journalFailures.sum();
+	}
+	
+	/**
+	 * A message queued with its dispatch event. The event belongs to this group's queue, not to the message, which may be
+	 * queued at other groups at the same time
+	 */
+	private static final class TracedMessage {
+		private final ChatMessage message;
+		private final PatternEvents.MessageDispatch event;
+		
+		TracedMessage(ChatMessage message, PatternEvents.MessageDispatch event) {
+			this.message = message;
+			this.event = event;
+		}
 	}
+}
 
-	@Override
-	public void sendMessage(byte[] mediaMsg) {
-		WhatsappChats.sendWhatsappMessages(memberName, mediaMsg);
+/**
+ * 
+ * The mediator. It keeps the groups, and members only talk to it through their group, never to each other.
+ * What goes through it is counted in the metrics registry: messages sent, rejected for an unknown group, delivered
+ * to members, failed in a member or in the journal, and the time a sender spends handing a message over, sampled
+ *
+ */
+class WhatsappChats {
+	static final MetricsRegistry.Counter SENT = MetricsRegistry.getDefault().counter("mediator.messages.sent");
+	static final MetricsRegistry.Counter REJECTED = MetricsRegistry.getDefault().counter("mediator.messages.rejected");
+	static final MetricsRegistry.Counter DELIVERED = MetricsRegistry.getDefault().counter("mediator.messages.delivered");
+	static final MetricsRegistry.Counter DELIVERY_FAILURES = MetricsRegistry.getDefault().counter("mediator.delivery.failures");
+	static final MetricsRegistry.Counter JOURNAL_FAILURES = MetricsRegistry.getDefault().counter("mediator.journal.failures");
+	static final MetricsRegistry.Histogram POST_NANOS = MetricsRegistry.getDefault().histogram("mediator.post.nanos");
+	
+	private final Map<String, WhatsappGroup> groups = new ConcurrentHashMap<>();
+	private final MediaBufferPool mediaPool = new MediaBufferPool(64);
+	
+	public WhatsappGroup createGroup(String groupName) {
+		return groups.computeIfAbsent(groupName, name -> new WhatsappGroup(name, mediaPool));
+	}
+	
+	public WhatsappGroup getGroup(String groupName) {
+		return groups.get(groupName);
+	}
+	
+	public void sendWhatsappMessages(String groupName, ChatMessage message) {
+		WhatsappGroup group = groups.get(groupName);
+		if(group == null) {
+			REJECTED.increment();
+			throw new IllegalArgumentException("No group available for name --> "+groupName);
+		}
+		group.post(message);
+	}
+	
+	public void shutdown() {
+		groups.values().forEach(WhatsappGroup::close);
 	}
 }
 
 /**
  * 
- * Group User/Group Member class will implement the whatsapp group chat interface to send message
+ * Group User/Group Member class will implement the whatsapp group chat interface to send message.
+ * One class serves every member, what tells members apart is their name
  *
  */
-class GroupMember2 implements WhatsappGroupChat {
+class GroupMember implements WhatsappGroupChat, WhatsappGroupMember {
 
 	private String memberName;
+	private WhatsappGroup group;
 	
-	protected GroupMember2(String memberName) {
+	protected GroupMember(String memberName, WhatsappGroup group) {
 		super();
 		this.memberName = memberName;
+		this.group = group;
+		group.join(this);
+	}
+	
+	@Override
+	public String getMemberName() {
+		return memberName;
+	}
+	
+	@Override
+	public void receiveMessage(ChatMessage message) {
+		Output.println(memberName+" received: "+message.describe());
 	}
 
 	@Override
 	public void sendMessage(String msg) {
-		WhatsappChats.sendWhatsappMessages(memberName, msg);
+		group.post(ChatMessage.text(memberName, msg));
 	}
-	
+
 	@Override
 	public void sendMessage(byte[] mediaMsg) {
-		WhatsappChats.sendWhatsappMessages(memberName, mediaMsg);
+		// copied once into a shared buffer, the caller may reuse its array as soon as this returns
+		group.post(ChatMessage.sharedMedia(memberName, group.shareMedia(mediaMsg)));
 	}
 }
 
 /**
  * 
- * Group User/Group Member class will implement the whatsapp group chat interface to send message
+ * The members of a group, spread over shards by the hash of the member name. Each shard is an immutable array swapped with a CAS,
+ * so joining and leaving never take a lock and only touch one shard, and a fan-out reads plain arrays without any locking.
+ * Member names are also kept in a concurrent map, so checking a join for a duplicate name does not scan the shard.
+ * 
+ * Large groups are fanned out shard by shard in parallel. On a JDK with virtual threads every batch of shards runs on its own
+ * virtual thread, on older JDKs the batches go to the common fork/join pool.
  *
  */
-class GroupMember3 implements WhatsappGroupChat {
-
-	private String memberName;
+class ShardedMemberRegistry {
+	private static final WhatsappGroupMember[] NO_MEMBERS = new WhatsappGroupMember[0];
+	private static final Executor FAN_OUT_EXECUTOR = createFanOutExecutor();
 	
-	protected GroupMember3(String memberName) {
-		super();
-		this.memberName = memberName;
+	private final AtomicReferenceArray<WhatsappGroupMember[]> shards;
+	// decides who is a member, the shards follow it
+	private final Map<String, WhatsappGroupMember> byName = new ConcurrentHashMap<>();
+	private final int mask;
+	private final int parallelThreshold;
+	private final AtomicInteger size = new AtomicInteger();
+	private final LongAdder deliveryFailures = new LongAdder();
+	
+	/**
+	 * @param shardCount power of 2
+	 * @param parallelThreshold groups with fewer members are fanned out on the calling thread
+	 */
+	ShardedMemberRegistry(int shardCount, int parallelThreshold) {
+		if(Integer.bitCount(shardCount) != 1) {
+			throw new IllegalArgumentException("Shard count must be a power of 2, got --> "+shardCount);
+		}
+		this.shards = new AtomicReferenceArray<>(shardCount);
+		for (int i = 0; i < shardCount; i++) {
+			shards.set(i, NO_MEMBERS);
+		}
+		this.mask = shardCount - 1;
+		this.parallelThreshold = parallelThreshold;
+	}
+	
+	/**
+	 * Adds the member unless a member of the same name is already in the group
+	 */
+	public boolean join(WhatsappGroupMember member) {
+		if(byName.putIfAbsent(member.getMemberName(), member) != null) {
+			return false;
+		}
+		int shard = shardOf(member.getMemberName());
+		while(true) {
+			WhatsappGroupMember[] current = shards.get(shard);
+			WhatsappGroupMember[] updated = Arrays.copyOf(current, current.length + 1);
+			updated[current.length] = member;
+			if(shards.compareAndSet(shard, current, updated)) {
+				size.incrementAndGet();
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Removes the member of the same name and returns it, null when there is none
+	 */
+	public WhatsappGroupMember leave(WhatsappGroupMember member) {
+		WhatsappGroupMember removed = byName.remove(member.getMemberName());
+		if(removed == null) {
+			return null;
+		}
+		int shard = shardOf(member.getMemberName());
+		while(true) {
+			WhatsappGroupMember[] current = shards.get(shard);
+			int index = indexOf(current, removed);
+			if(index < 0) {
+				// its join took the name but has not added it to the shard yet
+				Thread.onSpinWait();
+				continue;
+			}
+			WhatsappGroupMember[] updated = current.length == 1 ? NO_MEMBERS : new WhatsappGroupMember[current.length - 1];
+			System.arraycopy(current, 0, updated, 0, index);
+			System.arraycopy(current, index + 1, updated, index, current.length - index - 1);
+			if(shards.compareAndSet(shard, current, updated)) {
+				size.decrementAndGet();
+				return removed;
+			}
+		}
+	}
+	
+	public int size() {
+		return size.get();
+	}
+	
+	public long getDeliveryFailures() {
+		return deliveryFailures.sum();
+	}
+	
+	/**
+	 * Delivers the message to every member except its sender and returns the number of deliveries.
+	 * Returns only once every member has received the message. A member that throws is counted and skipped,
+	 * the others still get the message
+	 */
+	public long fanOut(ChatMessage message) {
+		if(size.get() < parallelThreshold) {
+			return deliver(message, 0, shards.length());
+		}
+		int batches = Math.min(shards.length(), Runtime.getRuntime().availableProcessors() * 8);
+		int shardsPerBatch = (shards.length() + batches - 1) / batches;
+		CountDownLatch done = new CountDownLatch((shards.length() + shardsPerBatch - 1) / shardsPerBatch);
+		AtomicLong delivered = new AtomicLong();
+		for (int from = 0; from < shards.length(); from += shardsPerBatch) {
+			int fromShard = from;
+			int toShard = Math.min(shards.length(), from + shardsPerBatch);
+			FAN_OUT_EXECUTOR.execute(() -> {
+				try {
+					delivered.addAndGet(deliver(message, fromShard, toShard));
+				} finally {
+					done.countDown();
+				}
+			});
+		}
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return delivered.get();
+	}
+	
+	private long deliver(ChatMessage message, int fromShard, int toShard) {
+		long delivered = 0;
+		String senderName = message.getMemberName();
+		for (int shard = fromShard; shard < toShard; shard++) {
+			for (WhatsappGroupMember member : shards.get(shard)) {
+				if(!member.getMemberName().equals(senderName)) {
+					try {
+						member.receiveMessage(message);
+						delivered++;
+					} catch (RuntimeException e) {
+						deliveryFailures.increment();
+						WhatsappChats.DELIVERY_FAILURES.increment();
+						System.err.println("Delivery to "+member.getMemberName()+" failed: "+e);
+					}
+				}
+			}
+		}
+		return delivered;
+	}
+	
+	private int shardOf(String memberName) {
+		int hash = memberName.hashCode();
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+	
+	private static int indexOf(WhatsappGroupMember[] members, WhatsappGroupMember member) {
+		for (int i = 0; i < members.length; i++) {
+			if(members[i] == member) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Virtual threads when the JDK has them (21 and later), the common fork/join pool otherwise. Looked up reflectively so the
+	 * code still compiles and runs on 17
+	 */
+	private static Executor createFanOutExecutor() {
+		try {
+			return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return ForkJoinPool.commonPool();
+		}
 	}
+}
+
+/**
+ * 
+ * What a mailbox does with a new message when it is full
+ *
+ */
+enum OverflowPolicy {
+	/** Make room by throwing away the oldest message in the mailbox */
+	DROP_OLDEST,
+	/** Throw away the new message */
+	DROP_NEWEST,
+	/** Wait up to the block timeout for room, then throw away the new message */
+	BLOCK_WITH_TIMEOUT,
+	/** Write the message to a file and deliver it from there once the mailbox has caught up */
+	SPILL_TO_DISK
+}
 
+/**
+ * 
+ * A bounded mailbox in front of a member. The dispatcher only puts the message into the mailbox, the member gets it later
+ * on a mailbox thread. A mailbox is only ever drained by one thread at a time, it gets a thread when it has mail and gives it back
+ * once it is empty, so a million idle mailboxes cost no threads.
+ * 
+ * The mailbox threads are a fixed pool, one per CPU and at least 2, shared by every mailbox (-Ddesignpatterns.mailbox.threads
+ * to change it). However many members are slow at once, they never get more threads than that. Their mail waits in the
+ * mailboxes, where the overflow policy deals with it.
+ * 
+ * Each mailbox keeps its own numbers: depth, drops, spills and the delivery lag of its member. close() delivers what is left
+ * and removes the spill file.
+ *
+ */
+class MemberMailbox implements WhatsappGroupMember, AutoCloseable {
+	static final String THREADS_PROPERTY = "designpatterns.mailbox.threads";
+	// at least 2, so on a single CPU one slow member cannot hold up every other mailbox
+	private static final ExecutorService DELIVERY_THREADS = Executors.newFixedThreadPool(
+			Integer.getInteger(THREADS_PROPERTY, Math.max(2, Runtime.getRuntime().availableProcessors())), runnable -> {
+		Thread thread = new Thread(runnable, "Mailbox delivery");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// messages a mailbox delivers before it gives its thread to another mailbox
+	private static final int DELIVERY_BATCH = 256;
+	
+	private final WhatsappGroupMember member;
+	private final ArrayBlockingQueue<ChatMessage> mailbox;
+	private final OverflowPolicy overflowPolicy;
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private volatile boolean closed;
+	private long blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(10);
+	// written under the mailbox's lock, read without it by getDepth()
+	private volatile MailboxSpill spill;
+	
+	private final LongAdder received = new LongAdder();
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder spilled = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final AtomicLong maxLagMillis = new AtomicLong();
+	private volatile long lastLagMillis;
+	
+	MemberMailbox(WhatsappGroupMember member, int capacity, OverflowPolicy overflowPolicy) {
+		this.member = member;
+		this.mailbox = new ArrayBlockingQueue<>(capacity);
+		this.overflowPolicy = overflowPolicy;
+	}
+	
 	@Override
-	public void sendMessage(String msg) {
-		WhatsappChats.sendWhatsappMessages(memberName, msg);
+	public String getMemberName() {
+		return member.getMemberName();
 	}
 	
+	/**
+	 * Called by the dispatcher. Never waits, except with BLOCK_WITH_TIMEOUT and a full mailbox
+	 */
 	@Override
-	public void sendMessage(byte[] mediaMsg) {
-		WhatsappChats.sendWhatsappMessages(memberName, mediaMsg);
+	public void receiveMessage(ChatMessage message) {
+		received.increment();
+		if(closed) {
+			dropped.increment();
+			return;
+		}
+		// the mailbox keeps the message past this call
+		ChatMessage kept = message.retain();
+		if(!offer(kept) || closed && mailbox.remove(kept)) {
+			// refused, or close() drained the mailbox before the message got into it and nobody would deliver it
+			dropped.increment();
+			kept.releaseMedia();
+			return;
+		}
+		scheduleDelivery();
+	}
+	
+	public void setBlockTimeout(long timeout, TimeUnit unit) {
+		this.blockTimeoutNanos = unit.toNanos(timeout);
+	}
+	
+	private boolean offer(ChatMessage message) {
+		if(overflowPolicy == OverflowPolicy.SPILL_TO_DISK) {
+			synchronized (this) {
+				if(closed) {
+					// the spill file is closed or about to be
+					return false;
+				}
+				// once something is on disk, newer messages go there too so the member still gets them in order
+				if(spill != null && spill.size() > 0 || !mailbox.offer(message)) {
+					spill().append(message);
+					spilled.increment();
+					// on disk now, the shared buffer is no longer needed
+					message.releaseMedia();
+				}
+				return true;
+			}
+		}
+		if(mailbox.offer(message)) {
+			return true;
+		}
+		switch (overflowPolicy) {
+		case DROP_OLDEST:
+			while(!mailbox.offer(message)) {
+				ChatMessage oldest = mailbox.poll();
+				if(oldest != null) {
+					dropped.increment();
+					oldest.releaseMedia();
+				}
+			}
+			return true;
+		case BLOCK_WITH_TIMEOUT:
+			try {
+				return mailbox.offer(message, blockTimeoutNanos, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		default:
+			return false;
+		}
+	}
+	
+	private void scheduleDelivery() {
+		if(scheduled.compareAndSet(false, true)) {
+			DELIVERY_THREADS.execute(this::deliver);
+		}
+	}
+	
+	private void deliver() {
+		int count = 0;
+		ChatMessage message;
+		while(count < DELIVERY_BATCH && (message = next()) != null) {
+			deliver(message);
+			count++;
+		}
+		scheduled.set(false);
+		// mail that arrived after the last poll but before the flag was cleared would otherwise wait for the next message
+		if(getDepth() > 0) {
+			scheduleDelivery();
+		}
+	}
+	
+	/**
+	 * A member that throws only loses that message, the mailbox keeps its thread and goes on with the next one
+	 */
+	private void deliver(ChatMessage message) {
+		long lag = System.currentTimeMillis() - message.getSentAtMillis();
+		lastLagMillis = lag;
+		maxLagMillis.accumulateAndGet(lag, Math::max);
+		try {
+			member.receiveMessage(message);
+			delivered.increment();
+		} catch (RuntimeException e) {
+			failed.increment();
+			System.err.println("Delivery to "+getMemberName()+" failed: "+e);
+		} finally {
+			message.releaseMedia();
+		}
+	}
+	
+	/**
+	 * Delivers everything still in the mailbox and on disk on the calling thread, then closes and deletes the spill file.
+	 * Waits for a delivery already running on a mailbox thread. Mail that arrives afterwards is dropped, so close the
+	 * group first
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		// taking the flag keeps the mailbox threads away from now on
+		while(!scheduled.compareAndSet(false, true)) {
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+		}
+		ChatMessage message;
+		while((message = next()) != null) {
+			deliver(message);
+		}
+		synchronized (this) {
+			if(spill != null) {
+				spill.close();
+			}
+		}
+	}
+	
+	private ChatMessage next() {
+		ChatMessage message = mailbox.poll();
+		if(message != null || overflowPolicy != OverflowPolicy.SPILL_TO_DISK) {
+			return message;
+		}
+		synchronized (this) {
+			message = mailbox.poll();
+			if(message == null && spill != null && spill.size() > 0) {
+				message = spill.take();
+			}
+			return message;
+		}
+	}
+	
+	private MailboxSpill spill() {
+		if(spill == null) {
+			spill = new MailboxSpill(getMemberName());
+		}
+		return spill;
+	}
+	
+	/**
+	 * Messages waiting for the member, in memory and on disk
+	 */
+	public long getDepth() {
+		MailboxSpill currentSpill = spill;
+		return mailbox.size() + (currentSpill == null ? 0 : currentSpill.size());
+	}
+	
+	public long getReceived() {
+		return received.sum();
+	}
+
+	public long getDelivered() {
+		return delivered.sum();
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	public long getSpilled() {
+		return spilled.sum();
+	}
+	
+	/**
+	 * Messages the member threw on
+	 */
+	public long getFailed() {
+		return failed.sum();
+	}
+	
+	/**
+	 * Time between sending and delivery of the last message delivered
+	 */
+	public long getLastLagMillis() {
+		return lastLagMillis;
+	}
+
+	public long getMaxLagMillis() {
+		return maxLagMillis.get();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%s: depth %d, received %d, delivered %d, dropped %d, spilled %d, failed %d, lag last %d ms max %d ms", getMemberName(), getDepth(),
+				getReceived(), getDelivered(), getDropped(), getSpilled(), getFailed(), getLastLagMillis(), getMaxLagMillis());
+	}
+}
+
+/**
+ * 
+ * Overflow file of a mailbox. Messages are appended as length prefixed records and read back from the front in the same order.
+ * The file starts over when everything in it has been read. Callers hold the mailbox lock
+ *
+ */
+class MailboxSpill {
+	private final Path file;
+	private final FileChannel channel;
+	private final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+	private long writePosition;
+	private long readPosition;
+	private volatile long size;
+	
+	MailboxSpill(String memberName) {
+		try {
+			this.file = Files.createTempFile("mailbox-" + memberName.replaceAll("[^A-Za-z0-9]", "_") + "-", ".spill");
+			this.file.toFile().deleteOnExit();
+			this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	public void append(ChatMessage message) {
+		byte[] name = message.getMemberName().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer payload = message.isMedia() ? message.getMediaView() : ByteBuffer.wrap(message.getText().getBytes(StandardCharsets.UTF_8));
+		// type, sent at, name length, name, payload
+		ByteBuffer record = ByteBuffer.allocate(4 + 1 + 8 + 4 + name.length + payload.remaining());
+		record.putInt(record.capacity() - 4).put((byte) (message.isMedia() ? 1 : 0)).putLong(message.getSentAtMillis())
+				.putInt(name.length).put(name).put(payload).flip();
+		try {
+			while(record.hasRemaining()) {
+				writePosition += channel.write(record, writePosition);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		size++;
+	}
+	
+	public ChatMessage take() {
+		try {
+			lengthBuffer.clear();
+			readFully(lengthBuffer, readPosition);
+			ByteBuffer record = ByteBuffer.allocate(lengthBuffer.flip().getInt());
+			readFully(record, readPosition + 4);
+			readPosition += 4 + record.capacity();
+			size--;
+			if(readPosition == writePosition) {
+				channel.truncate(0);
+				readPosition = 0;
+				writePosition = 0;
+			}
+			record.flip();
+			boolean media = record.get() == 1;
+			long sentAtMillis = record.getLong();
+			byte[] name = new byte[record.getInt()];
+			record.get(name);
+			byte[] payload = new byte[record.remaining()];
+			record.get(payload);
+			String memberName = new String(name, StandardCharsets.UTF_8);
+			return media ? ChatMessage.media(memberName, payload, sentAtMillis) : ChatMessage.text(memberName, new String(payload, StandardCharsets.UTF_8), sentAtMillis);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	public long size() {
+		return size;
+	}
+	
+	/**
+	 * Closes the file and deletes it, whatever is still in it is lost
+	 */
+	public void close() {
+		try {
+			channel.close();
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if(read < 0) {
+				throw new IOException("Spill file "+file+" ended early");
+			}
+		}
+	}
+}
+
+/**
+ * 
+ * A group with fast members and one slow member, once for every overflow policy. The fast members should get everything
+ * at full speed whatever the slow member does
+ *
+ */
+class MailboxBenchmark {
+	private static final int MESSAGES = 20_000;
+	private static final int FAST_MEMBERS = 50;
+	
+	public static void main(String[] args) throws InterruptedException {
+		for (OverflowPolicy policy : OverflowPolicy.values()) {
+			WhatsappChats whatsappChats = new WhatsappChats();
+			WhatsappGroup group = whatsappChats.createGroup("Benchmark " + policy);
+			MemberMailbox[] fast = new MemberMailbox[FAST_MEMBERS];
+			for (int i = 0; i < FAST_MEMBERS; i++) {
+				fast[i] = group.join(new SilentMember("fast"+i, 0), 1024, policy);
+			}
+			SilentMember slowMember = new SilentMember("slow", 1_000_000);
+			MemberMailbox slow = group.join(slowMember, 1024, policy);
+			slow.setBlockTimeout(100, TimeUnit.MICROSECONDS);
+			
+			long startNanos = System.nanoTime();
+			for (int i = 0; i < MESSAGES; i++) {
+				group.post(ChatMessage.text("sender", "Message "+i));
+			}
+			// every message is in the mailboxes once the dispatcher has fanned it out
+			while(group.getDelivered() < (long) MESSAGES * (FAST_MEMBERS + 1)
+					|| Arrays.stream(fast).anyMatch(mailbox -> mailbox.getDepth() > 0)) {
+				Thread.sleep(1);
+			}
+			long elapsedNanos = System.nanoTime() - startNanos;
+			long fastDelivered = Arrays.stream(fast).mapToLong(MemberMailbox::getDelivered).sum();
+			System.out.printf("%-18s fast members: %10.0f deliveries/s, %d of %d delivered%n", policy, fastDelivered / (elapsedNanos / 1e9),
+					fastDelivered, (long) MESSAGES * FAST_MEMBERS);
+			System.out.println("                   " + slow);
+			// closing drains the slow mailbox, which is not what is measured
+			slowMember.delayNanos = 0;
+			whatsappChats.shutdown();
+		}
+	}
+	
+	private static class SilentMember implements WhatsappGroupMember {
+		private final String memberName;
+		private volatile long delayNanos;
+		
+		SilentMember(String memberName, long delayNanos) {
+			this.memberName = memberName;
+			this.delayNanos = delayNanos;
+		}
+		
+		@Override
+		public String getMemberName() {
+			return memberName;
+		}
+
+		@Override
+		public void receiveMessage(ChatMessage message) {
+			if(delayNanos > 0) {
+				LockSupport.parkNanos(delayNanos);
+			}
+		}
+	}
+}
+
+/**
+ * 
+ * Durable history of a group chat. Messages are appended to memory-mapped segment files, so an append is a copy into memory and
+ * never waits for the disk. A flusher thread forces the segments to disk every flush interval, one force for everything appended
+ * in that window (group commit). Callers that need to know a message is on disk can wait for it with awaitDurable().
+ * 
+ * Record format, all big endian:
+ * 	int length of the rest of the record, int CRC32C of the rest of the record, long timestamp (epoch millis),
+ * 	byte type (0 text, 1 media), short member id length, member id (UTF-8, at most Short.MAX_VALUE bytes), payload
+ * A length of 0 marks the end of the data in a segment.
+ * 
+ * Every message gets an offset, its position in the whole history. Each segment keeps a sparse index (one entry every
+ * INDEX_INTERVAL records) from offset to file position, so a replay from any offset starts close to it. The index is rebuilt by
+ * scanning the segments when the journal is opened. When the journal grows past the retention size, or a segment gets older than
+ * the retention age, the oldest segments are deleted. That is checked when the journal is opened, on every new segment and once
+ * a second by the flusher, so old segments also go while nothing is appended.
+ *
+ */
+class ChatJournal implements AutoCloseable {
+	static final byte TEXT = 0;
+	static final byte MEDIA = 1;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 1 + 2;
+	private static final int INDEX_INTERVAL = 64;
+	private static final long RETENTION_CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+	
+	private final Path directory;
+	private final int segmentSize;
+	private final long retentionBytes;
+	private final long retentionMillis;
+	private final NavigableMap<Long, JournalSegment> segments = new ConcurrentSkipListMap<>();
+	private final Set<JournalSegment> unflushedSegments = new HashSet<>();
+	private final CRC32C crc = new CRC32C();
+	private JournalSegment activeSegment;
+	private long nextOffset;
+	
+	private final Object durableLock = new Object();
+	private volatile long durableOffset = -1;
+	private final long flushIntervalNanos;
+	private final Thread flusher;
+	private volatile boolean running = true;
+	private final LongAdder forces = new LongAdder();
+	
+	/**
+	 * Opens the journal in the directory, recovering any segments already there
+	 */
+	ChatJournal(Path directory, int segmentSize, long retentionBytes, long retentionMillis, long flushInterval, TimeUnit flushUnit) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		this.segmentSize = segmentSize;
+		this.retentionBytes = retentionBytes;
+		this.retentionMillis = retentionMillis;
+		this.flushIntervalNanos = flushUnit.toNanos(flushInterval);
+		recover();
+		enforceRetention();
+		this.durableOffset = nextOffset - 1;
+		this.flusher = new Thread(this::flushLoop, "Chat journal flusher");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+	
+	/**
+	 * Appends the message and returns its offset. Only copies into the mapped segment, the flusher puts it on disk
+	 */
+	public synchronized long append(ChatMessage message) {
+		if(!running) {
+			throw new IllegalStateException("Journal is closed --> "+directory);
+		}
+		byte[] memberId = message.getMemberName().getBytes(StandardCharsets.UTF_8);
+		if(memberId.length > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("Member id of "+memberId.length+" bytes is longer than the journal allows --> "+Short.MAX_VALUE);
+		}
+		ByteBuffer payload = message.isMedia() ? message.getMediaView() : ByteBuffer.wrap(message.getText().getBytes(StandardCharsets.UTF_8));
+		int recordSize = HEADER_SIZE + memberId.length + payload.remaining();
+		// keep room for the end marker after the record
+		if(recordSize + 4 > segmentSize) {
+			throw new IllegalArgumentException("Message of "+recordSize+" bytes does not fit a journal segment of "+segmentSize+" bytes");
+		}
+		if(activeSegment.writePosition + recordSize + 4 > segmentSize) {
+			roll();
+		}
+		JournalSegment segment = activeSegment;
+		MappedByteBuffer buffer = segment.buffer;
+		int position = segment.writePosition;
+		buffer.putLong(position + 8, message.getSentAtMillis());
+		buffer.put(position + 16, message.isMedia() ? MEDIA : TEXT);
+		buffer.putShort(position + 17, (short) memberId.length);
+		buffer.put(position + HEADER_SIZE, memberId);
+		buffer.put(position + HEADER_SIZE + memberId.length, payload, payload.position(), payload.remaining());
+		crc.reset();
+		crc.update(buffer.slice(position + 8, recordSize - 8));
+		buffer.putInt(position + 4, (int) crc.getValue());
+		// the length goes last, a reader never sees a record with a length but without its content
+		buffer.putInt(position, recordSize - 4);
+		
+		long offset = nextOffset++;
+		segment.addIndexEntry(offset, position);
+		segment.writePosition = position + recordSize;
+		segment.lastOffset = offset;
+		unflushedSegments.add(segment);
+		return offset;
+	}
+	
+	/**
+	 * Waits until the message with the given offset is on disk
+	 */
+	public void awaitDurable(long offset) throws InterruptedException {
+		synchronized (durableLock) {
+			while(durableOffset < offset) {
+				durableLock.wait();
+			}
+		}
+	}
+	
+	/**
+	 * Replays every message from the given offset up to the last one appended. Offsets that were already deleted by retention
+	 * are skipped, the replay starts at the oldest message still kept
+	 */
+	public long replay(long fromOffset, BiConsumer<Long, ChatMessage> consumer) {
+		long lastOffset;
+		synchronized (this) {
+			lastOffset = nextOffset - 1;
+		}
+		long replayed = 0;
+		Long startKey = segments.floorKey(fromOffset);
+		if(startKey == null) {
+			startKey = segments.isEmpty() ? null : segments.firstKey();
+		}
+		if(startKey == null) {
+			return 0;
+		}
+		for (JournalSegment segment : segments.tailMap(startKey, true).values()) {
+			ByteBuffer view = segment.buffer.duplicate();
+			long offset = segment.baseOffset;
+			int position = 0;
+			int[] entry = segment.floorIndexEntry(fromOffset);
+			if(entry != null) {
+				offset = segment.baseOffset + entry[0];
+				position = entry[1];
+			}
+			while(offset <= lastOffset && offset <= segment.lastOffset) {
+				int length = view.getInt(position);
+				if(offset >= fromOffset) {
+					consumer.accept(offset, readRecord(view, position, length));
+					replayed++;
+				}
+				position += 4 + length;
+				offset++;
+			}
+		}
+		return replayed;
+	}
+	
+	public synchronized long getNextOffset() {
+		return nextOffset;
+	}
+	
+	public long getDurableOffset() {
+		return durableOffset;
+	}
+	
+	/**
+	 * Number of times the flusher forced segments to disk
+	 */
+	public long getForces() {
+		return forces.sum();
+	}
+	
+	public int getSegmentCount() {
+		return segments.size();
+	}
+	
+	/**
+	 * Flushes everything appended so far and stops the flusher
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		LockSupport.unpark(flusher);
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		for (JournalSegment segment : segments.values()) {
+			segment.channel.close();
+		}
+	}
+	
+	private void flushLoop() {
+		long nextRetentionCheck = System.nanoTime() + RETENTION_CHECK_INTERVAL_NANOS;
+		while(running) {
+			LockSupport.parkNanos(flushIntervalNanos);
+			flush();
+			if(System.nanoTime() - nextRetentionCheck >= 0) {
+				try {
+					synchronized (this) {
+						enforceRetention();
+					}
+				} catch (UncheckedIOException e) {
+					// the flusher must go on, the next check tries again
+					System.err.println("Journal retention failed: "+e);
+				}
+				nextRetentionCheck = System.nanoTime() + RETENTION_CHECK_INTERVAL_NANOS;
+			}
+		}
+	}
+	
+	private void flush() {
+		List<JournalSegment> toForce;
+		long target;
+		synchronized (this) {
+			target = nextOffset - 1;
+			if(target <= durableOffset) {
+				return;
+			}
+			toForce = new ArrayList<>(unflushedSegments);
+			unflushedSegments.clear();
+		}
+		for (JournalSegment segment : toForce) {
+			segment.buffer.force();
+		}
+		forces.increment();
+		synchronized (durableLock) {
+			durableOffset = target;
+			durableLock.notifyAll();
+		}
+	}
+	
+	private ChatMessage readRecord(ByteBuffer view, int position, int length) {
+		long sentAtMillis = view.getLong(position + 8);
+		byte type = view.get(position + 16);
+		byte[] memberId = new byte[view.getShort(position + 17)];
+		view.get(position + HEADER_SIZE, memberId);
+		byte[] payload = new byte[length + 4 - HEADER_SIZE - memberId.length];
+		view.get(position + HEADER_SIZE + memberId.length, payload);
+		String memberName = new String(memberId, StandardCharsets.UTF_8);
+		return type == MEDIA ? ChatMessage.media(memberName, payload, sentAtMillis) : ChatMessage.text(memberName, new String(payload, StandardCharsets.UTF_8), sentAtMillis);
+	}
+	
+	private void roll() {
+		JournalSegment sealed = activeSegment;
+		activeSegment = openSegment(nextOffset);
+		segments.put(activeSegment.baseOffset, activeSegment);
+		if(sealed.writePosition == 0) {
+			// nothing was ever written to it
+			segments.remove(sealed.baseOffset);
+			sealed.delete();
+		}
+		enforceRetention();
+	}
+	
+	/**
+	 * Deletes the oldest sealed segments that are on disk while the journal is over its size, or they are over their age
+	 */
+	private void enforceRetention() {
+		long totalBytes = (long) segments.size() * segmentSize;
+		long now = System.currentTimeMillis();
+		for (JournalSegment segment : new ArrayList<>(segments.values())) {
+			if(segment == activeSegment || unflushedSegments.contains(segment)) {
+				break;
+			}
+			boolean tooBig = retentionBytes > 0 && totalBytes > retentionBytes;
+			boolean tooOld = retentionMillis > 0 && now - segment.createdMillis > retentionMillis;
+			if(!tooBig && !tooOld) {
+				break;
+			}
+			segments.remove(segment.baseOffset);
+			segment.delete();
+			totalBytes -= segmentSize;
+		}
+	}
+	
+	private JournalSegment openSegment(long baseOffset) {
+		try {
+			return new JournalSegment(directory.resolve(String.format("%020d.log", baseOffset)), baseOffset, segmentSize);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Maps every segment already in the directory and scans it to rebuild its index. A record that fails its checksum,
+	 * for example one half written when the process died, ends the segment
+	 */
+	private void recover() throws IOException {
+		List<Path> files;
+		try (Stream<Path> listing = Files.list(directory)) {
+			files = listing.filter(file -> file.getFileName().toString().endsWith(".log")).sorted().collect(Collectors.toList());
+		}
+		for (Path file : files) {
+			long baseOffset = Long.parseLong(file.getFileName().toString().replace(".log", ""));
+			JournalSegment segment = new JournalSegment(file, baseOffset, segmentSize);
+			segment.createdMillis = Files.getLastModifiedTime(file).toMillis();
+			ByteBuffer view = segment.buffer.duplicate();
+			int position = 0;
+			long offset = baseOffset;
+			while(position + 4 <= segmentSize) {
+				int length = view.getInt(position);
+				if(length <= 0 || position + 4 + length > segmentSize) {
+					break;
+				}
+				crc.reset();
+				crc.update(view.slice(position + 8, length - 4));
+				if((int) crc.getValue() != view.getInt(position + 4)) {
+					break;
+				}
+				segment.addIndexEntry(offset, position);
+				segment.lastOffset = offset;
+				position += 4 + length;
+				offset++;
+			}
+			// clear whatever follows the last good record, so it cannot be mistaken for data later
+			if(position + 4 <= segmentSize) {
+				view.putInt(position, 0);
+			}
+			segment.writePosition = position;
+			segments.put(baseOffset, segment);
+			nextOffset = offset;
+		}
+		if(segments.isEmpty()) {
+			segments.put(0L, openSegment(0));
+		}
+		activeSegment = segments.lastEntry().getValue();
+	}
+	
+	/**
+	 * One segment file, mapped in full. Its index holds every INDEX_INTERVAL'th record as (offset - base offset, file position)
+	 */
+	private static class JournalSegment {
+		final long baseOffset;
+		final Path file;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+		long createdMillis = System.currentTimeMillis();
+		int writePosition;
+		long lastOffset;
+		private int[] indexRelativeOffsets = new int[64];
+		private int[] indexPositions = new int[64];
+		private volatile int indexSize;
+		
+		JournalSegment(Path file, long baseOffset, int segmentSize) throws IOException {
+			this.baseOffset = baseOffset;
+			this.lastOffset = baseOffset - 1;
+			this.file = file;
+			this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		}
+		
+		void addIndexEntry(long offset, int position) {
+			int relativeOffset = (int) (offset - baseOffset);
+			if(relativeOffset % INDEX_INTERVAL != 0) {
+				return;
+			}
+			if(indexSize == indexPositions.length) {
+				indexRelativeOffsets = Arrays.copyOf(indexRelativeOffsets, indexSize * 2);
+				indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+			}
+			indexRelativeOffsets[indexSize] = relativeOffset;
+			indexPositions[indexSize] = position;
+			indexSize = indexSize + 1;
+		}
+		
+		/**
+		 * The last index entry at or before the offset, as { relative offset, position }, or null if the offset is before this segment
+		 */
+		int[] floorIndexEntry(long offset) {
+			int[] relativeOffsets = indexRelativeOffsets;
+			int[] positions = indexPositions;
+			int size = Math.min(indexSize, Math.min(relativeOffsets.length, positions.length));
+			long relative = offset - baseOffset;
+			if(size == 0 || relative < 0) {
+				return null;
+			}
+			int index = Arrays.binarySearch(relativeOffsets, 0, size, (int) Math.min(relative, Integer.MAX_VALUE));
+			if(index < 0) {
+				index = -index - 2;
+			}
+			return index < 0 ? null : new int[] { relativeOffsets[index], positions[index] };
+		}
+		
+		void delete() {
+			try {
+				channel.close();
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
+
+/**
+ * 
+ * Append and replay rates of the journal, with the number of disk forces the group commit needed
+ *
+ */
+class ChatJournalBenchmark {
+	private static final int MESSAGES = 1_000_000;
+	
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Path directory = Files.createTempDirectory("chat-journal");
+		try {
+			long appendNanos;
+			try (ChatJournal journal = new ChatJournal(directory, 16 << 20, 0, 0, 2, TimeUnit.MILLISECONDS)) {
+				long startNanos = System.nanoTime();
+				long last = -1;
+				for (int i = 0; i < MESSAGES; i++) {
+					last = journal.append(ChatMessage.text("member" + (i % 100), "Message number " + i + " in the group chat"));
+				}
+				appendNanos = System.nanoTime() - startNanos;
+				journal.awaitDurable(last);
+				long durableNanos = System.nanoTime() - startNanos;
+				System.out.printf("append : %10.0f msgs/s, all durable after %d ms, %d forces, %d segments%n", MESSAGES / (appendNanos / 1e9),
+						durableNanos / 1_000_000, journal.getForces(), journal.getSegmentCount());
+			}
+			// reopen, so the replay also covers recovery
+			try (ChatJournal journal = new ChatJournal(directory, 16 << 20, 0, 0, 2, TimeUnit.MILLISECONDS)) {
+				for (long from : new long[] { 0, MESSAGES / 2, MESSAGES - 10 }) {
+					long startNanos = System.nanoTime();
+					long[] checked = { from };
+					long replayed = journal.replay(from, (offset, message) -> {
+						if(offset != checked[0]++ || !message.getText().equals("Message number " + offset + " in the group chat")) {
+							throw new IllegalStateException("Replay returned the wrong message at offset "+offset);
+						}
+					});
+					long elapsedNanos = System.nanoTime() - startNanos;
+					System.out.printf("replay from %7d: %7d msgs in %5.1f ms%n", from, replayed, elapsedNanos / 1e6);
+				}
+			}
+		} finally {
+			try (Stream<Path> files = Files.list(directory)) {
+				for (Path file : files.collect(Collectors.toList())) {
+					Files.deleteIfExists(file);
+				}
+			}
+			Files.deleteIfExists(directory);
+		}
+	}
+}
+
+/**
+ * 
+ * Fans large media out to many recipients, once with a copy per recipient and once with one shared buffer.
+ * Every recipient reads the whole media (a hash) so both ways do the same reading work
+ *
+ */
+class SharedMediaBenchmark {
+	private static final int RECIPIENTS = 200;
+	private static final int FAN_OUTS = 50;
+	
+	public static void main(String[] args) {
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		for (int size : new int[] { 64 * 1024, 1024 * 1024, 8 * 1024 * 1024 }) {
+			byte[] media = new byte[size];
+			new Random(size).nextBytes(media);
+			MediaBufferPool pool = new MediaBufferPool(4);
+			
+			// warm up both ways
+			copyPerRecipient(media);
+			shared(pool, media);
+			
+			long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+			long startNanos = System.nanoTime();
+			for (int i = 0; i < FAN_OUTS; i++) {
+				copyPerRecipient(media);
+			}
+			long copyNanos = System.nanoTime() - startNanos;
+			long copyAllocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+			
+			allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+			startNanos = System.nanoTime();
+			for (int i = 0; i < FAN_OUTS; i++) {
+				shared(pool, media);
+			}
+			long sharedNanos = System.nanoTime() - startNanos;
+			long sharedAllocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+			
+			System.out.printf("%8d bytes x %d recipients | copy: %7.1f fan-outs/s %10d KB allocated per fan-out | shared: %7.1f fan-outs/s %10d KB allocated per fan-out%n",
+					size, RECIPIENTS, FAN_OUTS / (copyNanos / 1e9), copyAllocated / FAN_OUTS / 1024, FAN_OUTS / (sharedNanos / 1e9), sharedAllocated / FAN_OUTS / 1024);
+		}
+	}
+	
+	private static long copyPerRecipient(byte[] media) {
+		long checksum = 0;
+		for (int recipient = 0; recipient < RECIPIENTS; recipient++) {
+			checksum += read(ByteBuffer.wrap(media.clone()));
+		}
+		return checksum;
+	}
+	
+	private static long shared(MediaBufferPool pool, byte[] media) {
+		ChatMessage message = ChatMessage.sharedMedia("sender", pool.share(media));
+		long checksum = 0;
+		for (int recipient = 0; recipient < RECIPIENTS; recipient++) {
+			checksum += read(message.getMediaView());
+		}
+		message.releaseMedia();
+		return checksum;
+	}
+	
+	private static long read(ByteBuffer media) {
+		long hash = 0;
+		while(media.remaining() >= 8) {
+			hash = hash * 31 + media.getLong();
+		}
+		while(media.hasRemaining()) {
+			hash = hash * 31 + media.get();
+		}
+		return hash;
+	}
+}
+
+/**
+ * 
+ * A ring of fixed size message slots in a memory-mapped file, normally in /dev/shm, so processes on the same host can exchange
+ * chat messages through shared memory. Only one process writes a ring, any number of processes read it, each at its own pace.
+ * The writer never waits for readers. A reader that falls a whole ring behind skips what was overwritten and counts it as lost.
+ * 
+ * Messages are encoded straight into the mapped slot, there is no intermediate array on the heap.
+ * 
+ * File layout: int magic, int slot count, int slot size, then at byte 64 the cursor (next sequence to write) and from byte 128 the slots.
+ * Slot layout: long sequence, int payload length, byte type (0 text, 1 media), short member name length, long sent at (epoch millis),
+ * member name (UTF-8), payload. The writer sets the sequence to -1 before it touches the slot and writes the new sequence last
+ * with release semantics. A reader checks the sequence again after copying the slot, so it never takes a half written or
+ * overwritten slot for a whole one.
+ *
+ */
+class SharedMemoryRing implements AutoCloseable {
+	private static final int MAGIC = 0x43484154;
+	private static final int CURSOR_OFFSET = 64;
+	private static final int SLOTS_OFFSET = 128;
+	private static final int SLOT_HEADER = 24;
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	
+	private final Path file;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final int slotCount;
+	private final int slotSize;
+	private final long mask;
+	// only used by the writer
+	private long nextSequence;
+	
+	private SharedMemoryRing(Path file, FileChannel channel, MappedByteBuffer buffer, int slotCount, int slotSize) {
+		this.file = file;
+		this.channel = channel;
+		this.buffer = buffer;
+		this.slotCount = slotCount;
+		this.slotSize = slotSize;
+		this.mask = slotCount - 1;
+	}
+	
+	/**
+	 * Creates the ring for writing. An existing file of the same name is started over
+	 */
+	public static SharedMemoryRing create(Path file, int slotCount, int slotSize) throws IOException {
+		if(Integer.bitCount(slotCount) != 1 || slotSize % 8 != 0 || slotSize <= SLOT_HEADER) {
+			throw new IllegalArgumentException("Slot count must be a power of 2 and slot size a multiple of 8 above "+SLOT_HEADER);
+		}
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SLOTS_OFFSET + (long) slotCount * slotSize);
+		for (int slot = 0; slot < slotCount; slot++) {
+			LONGS.setRelease(buffer, SLOTS_OFFSET + slot * slotSize, -1L);
+		}
+		LONGS.setRelease(buffer, CURSOR_OFFSET, 0L);
+		buffer.putInt(4, slotCount).putInt(8, slotSize);
+		// the magic goes last, readers only trust a file that has it
+		buffer.putInt(0, MAGIC);
+		return new SharedMemoryRing(file, channel, buffer, slotCount, slotSize);
+	}
+	
+	/**
+	 * Opens a ring another process writes, for reading
+	 */
+	public static SharedMemoryRing open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, SLOTS_OFFSET);
+		if(header.getInt(0) != MAGIC) {
+			channel.close();
+			throw new IOException("Not a shared memory chat ring, or not ready yet --> "+file);
+		}
+		int slotCount = header.getInt(4);
+		int slotSize = header.getInt(8);
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SLOTS_OFFSET + (long) slotCount * slotSize);
+		return new SharedMemoryRing(file, channel, buffer, slotCount, slotSize);
+	}
+	
+	/**
+	 * Whether the message fits a slot. A message is never split over several slots
+	 */
+	public boolean fits(ChatMessage message) {
+		return encodedSize(message) <= slotSize;
+	}
+	
+	/**
+	 * Writes the message into the next slot. Only the process that created the ring may call this
+	 */
+	public void publish(ChatMessage message) {
+		int size = encodedSize(message);
+		if(size > slotSize) {
+			throw new IllegalArgumentException("Message of "+size+" bytes does not fit a slot of "+slotSize+" bytes");
+		}
+		long sequence = nextSequence;
+		int slot = SLOTS_OFFSET + (int) (sequence & mask) * slotSize;
+		int limit = slot + slotSize;
+		// a reader still on the previous round must see the slot is gone before any of it changes
+		LONGS.setRelease(buffer, slot, -1L);
+		VarHandle.storeStoreFence();
+		int namePosition = slot + SLOT_HEADER;
+		int payloadPosition = putUtf8(message.getMemberName(), namePosition, limit);
+		int end;
+		if(message.isMedia()) {
+			ByteBuffer media = message.getMediaView();
+			buffer.put(payloadPosition, media, media.position(), media.remaining());
+			end = payloadPosition + media.remaining();
+		} else {
+			end = putUtf8(message.getText(), payloadPosition, limit);
+		}
+		buffer.putInt(slot + 8, end - payloadPosition);
+		buffer.put(slot + 12, message.isMedia() ? ChatJournal.MEDIA : ChatJournal.TEXT);
+		buffer.putShort(slot + 13, (short) (payloadPosition - namePosition));
+		buffer.putLong(slot + 16, message.getSentAtMillis());
+		LONGS.setRelease(buffer, slot, sequence);
+		nextSequence = sequence + 1;
+		LONGS.setRelease(buffer, CURSOR_OFFSET, nextSequence);
+	}
+	
+	/**
+	 * Sequence the writer will use next, readers start here to only see new messages
+	 */
+	public long getCursor() {
+		return (long) LONGS.getAcquire(buffer, CURSOR_OFFSET);
+	}
+	
+	/**
+	 * Reads the message with the given sequence. Returns null when it is not written yet or has already been overwritten
+	 */
+	public ChatMessage read(long sequence) {
+		int slot = SLOTS_OFFSET + (int) (sequence & mask) * slotSize;
+		if((long) LONGS.getAcquire(buffer, slot) != sequence) {
+			return null;
+		}
+		int payloadLength = buffer.getInt(slot + 8);
+		byte type = buffer.get(slot + 12);
+		int nameLength = buffer.getShort(slot + 13);
+		long sentAtMillis = buffer.getLong(slot + 16);
+		if(payloadLength < 0 || nameLength < 0 || SLOT_HEADER + nameLength + payloadLength > slotSize) {
+			return null;
+		}
+		byte[] name = new byte[nameLength];
+		byte[] payload = new byte[payloadLength];
+		buffer.get(slot + SLOT_HEADER, name);
+		buffer.get(slot + SLOT_HEADER + nameLength, payload);
+		VarHandle.acquireFence();
+		if((long) LONGS.getAcquire(buffer, slot) != sequence) {
+			// the writer came round and overwrote the slot while we copied it
+			return null;
+		}
+		String memberName = new String(name, StandardCharsets.UTF_8);
+		return type == ChatJournal.MEDIA ? ChatMessage.media(memberName, payload, sentAtMillis) : ChatMessage.text(memberName, new String(payload, StandardCharsets.UTF_8), sentAtMillis);
+	}
+	
+	public int getSlotCount() {
+		return slotCount;
+	}
+	
+	public Path getFile() {
+		return file;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+	
+	/**
+	 * UTF-8 encodes the text straight into the mapped buffer and returns the position after it
+	 */
+	private int putUtf8(String text, int position, int limit) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if(c < 0x80) {
+				checkRoom(position + 1, limit);
+				buffer.put(position++, (byte) c);
+			} else if(c < 0x800) {
+				checkRoom(position + 2, limit);
+				buffer.put(position++, (byte) (0xC0 | c >> 6));
+				buffer.put(position++, (byte) (0x80 | c & 0x3F));
+			} else if(Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, text.charAt(++i));
+				checkRoom(position + 4, limit);
+				buffer.put(position++, (byte) (0xF0 | codePoint >> 18));
+				buffer.put(position++, (byte) (0x80 | codePoint >> 12 & 0x3F));
+				buffer.put(position++, (byte) (0x80 | codePoint >> 6 & 0x3F));
+				buffer.put(position++, (byte) (0x80 | codePoint & 0x3F));
+			} else {
+				checkRoom(position + 3, limit);
+				buffer.put(position++, (byte) (0xE0 | c >> 12));
+				buffer.put(position++, (byte) (0x80 | c >> 6 & 0x3F));
+				buffer.put(position++, (byte) (0x80 | c & 0x3F));
+			}
+		}
+		return position;
+	}
+	
+	private void checkRoom(int end, int limit) {
+		if(end > limit) {
+			throw new IllegalArgumentException("Message does not fit a slot of "+slotSize+" bytes");
+		}
+	}
+	
+	private static int encodedSize(ChatMessage message) {
+		return SLOT_HEADER + utf8Length(message.getMemberName()) + (message.isMedia() ? message.getMediaLength() : utf8Length(message.getText()));
+	}
+	
+	/**
+	 * Bytes putUtf8() writes for the text
+	 */
+	private static int utf8Length(String text) {
+		int length = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if(c < 0x80) {
+				length++;
+			} else if(c < 0x800) {
+				length += 2;
+			} else if(Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+				length += 4;
+				i++;
+			} else {
+				length += 3;
+			}
+		}
+		return length;
+	}
+}
+
+/**
+ * 
+ * Reads one ring at its own pace. Keeps its position locally, the writer never knows about its readers
+ *
+ */
+class SharedMemoryRingReader implements AutoCloseable {
+	private final SharedMemoryRing ring;
+	private long nextSequence;
+	private long lost;
+	
+	SharedMemoryRingReader(SharedMemoryRing ring) {
+		this.ring = ring;
+		// only messages written from now on
+		this.nextSequence = ring.getCursor();
+	}
+	
+	/**
+	 * Hands up to limit new messages to the consumer and returns how many it handed over
+	 */
+	public int poll(Consumer<ChatMessage> consumer, int limit) {
+		int count = 0;
+		while(count < limit) {
+			long cursor = ring.getCursor();
+			if(nextSequence >= cursor) {
+				break;
+			}
+			if(cursor - nextSequence > ring.getSlotCount()) {
+				// lapped by the writer, jump to the oldest slot that is still there
+				lost += cursor - ring.getSlotCount() - nextSequence;
+				nextSequence = cursor - ring.getSlotCount();
+			}
+			ChatMessage message = ring.read(nextSequence);
+			if(message == null) {
+				lost++;
+			} else {
+				consumer.accept(message);
+				count++;
+			}
+			nextSequence++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Messages overwritten before this reader got to them
+	 */
+	public long getLost() {
+		return lost;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		ring.close();
+	}
+}
+
+/**
+ * 
+ * Connects a local group to the same group in other processes on the host. Every process writes the messages of its own
+ * members to its own ring, /dev/shm/whatsapp-<group>-<pid>.ring, and reads the rings of all the other processes.
+ * 
+ * The bridge is a member of the local group, so it sees every local message and writes it to the ring. Messages that came in
+ * from other processes are posted into the local group like any other message, the bridge recognises them when they come back
+ * to it and does not send them out again.
+ * 
+ * A slot holds 512 bytes, header and sender name included. Larger messages stay in the local group, they are not sent to the
+ * other processes and are counted in getDropped().
+ * 
+ * A process that died without closing its bridge leaves its ring behind. Every scan for peers drops the rings of processes
+ * that are gone and deletes their files.
+ *
+ */
+class SharedMemoryGroupBridge implements WhatsappGroupMember, AutoCloseable {
+	private static final long PEER_SCAN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+	
+	private final WhatsappGroup group;
+	private final Path directory;
+	private final String filePrefix;
+	private final SharedMemoryRing ownRing;
+	private final Map<Path, SharedMemoryRingReader> peers = new ConcurrentHashMap<>();
+	private final Set<ChatMessage> fromPeers = ConcurrentHashMap.newKeySet();
+	private final Thread poller;
+	private final LongAdder dropped = new LongAdder();
+	private volatile boolean running = true;
+	
+	SharedMemoryGroupBridge(WhatsappGroup group, Path directory) throws IOException {
+		this.group = group;
+		this.directory = directory;
+		this.filePrefix = "whatsapp-" + group.getGroupName().replaceAll("[^A-Za-z0-9]", "_") + "-";
+		this.ownRing = SharedMemoryRing.create(directory.resolve(filePrefix + ProcessHandle.current().pid() + ".ring"), 4096, 512);
+		group.join(this);
+		this.poller = new Thread(this::pollPeers, group.getGroupName() + " shared memory poller");
+		this.poller.setDaemon(true);
+		this.poller.start();
+	}
+	
+	/**
+	 * /dev/shm where there is one (Linux), the temp directory otherwise
+	 */
+	static Path defaultDirectory() {
+		Path shm = Path.of("/dev/shm");
+		return Files.isDirectory(shm) ? shm : Path.of(System.getProperty("java.io.tmpdir"));
+	}
+	
+	@Override
+	public String getMemberName() {
+		return "shared-memory-bridge-" + ProcessHandle.current().pid();
+	}
+	
+	@Override
+	public void receiveMessage(ChatMessage message) {
+		if(fromPeers.remove(message)) {
+			return;
+		}
+		if(!ownRing.fits(message)) {
+			dropped.increment();
+			return;
+		}
+		ownRing.publish(message);
+	}
+	
+	/**
+	 * Local messages too large for a slot, which the other processes never got
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		running = false;
+		try {
+			poller.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		group.leave(this);
+		for (SharedMemoryRingReader reader : peers.values()) {
+			reader.close();
+		}
+		peers.clear();
+		ownRing.close();
+		Files.deleteIfExists(ownRing.getFile());
+	}
+	
+	private void pollPeers() {
+		long nextScan = 0;
+		int idle = 0;
+		while(running) {
+			if(System.nanoTime() >= nextScan) {
+				scanForPeers();
+				nextScan = System.nanoTime() + PEER_SCAN_INTERVAL_NANOS;
+			}
+			int received = 0;
+			for (SharedMemoryRingReader reader : peers.values()) {
+				received += reader.poll(this::postFromPeer, 256);
+			}
+			if(received > 0) {
+				idle = 0;
+			} else if(++idle < 1000) {
+				Thread.onSpinWait();
+			} else {
+				LockSupport.parkNanos(50_000);
+			}
+		}
+	}
+	
+	private void postFromPeer(ChatMessage message) {
+		fromPeers.add(message);
+		boolean posted = false;
+		try {
+			group.post(message);
+			posted = true;
+		} finally {
+			if(!posted) {
+				// the group never got it, so it will not come back to the bridge to be taken out again
+				fromPeers.remove(message);
+				message.releaseMedia();
+			}
+		}
+	}
+	
+	private void scanForPeers() {
+		for (Iterator<Map.Entry<Path, SharedMemoryRingReader>> iterator = peers.entrySet().iterator(); iterator.hasNext();) {
+			Map.Entry<Path, SharedMemoryRingReader> peer = iterator.next();
+			if(!isAlive(peer.getKey())) {
+				iterator.remove();
+				closeAndDelete(peer.getKey(), peer.getValue());
+			}
+		}
+		try (Stream<Path> files = Files.list(directory)) {
+			files.filter(file -> file.getFileName().toString().startsWith(filePrefix) && !file.equals(ownRing.getFile()))
+					.filter(file -> !peers.containsKey(file))
+					.forEach(file -> {
+						if(!isAlive(file)) {
+							closeAndDelete(file, null);
+							return;
+						}
+						try {
+							peers.put(file, new SharedMemoryRingReader(SharedMemoryRing.open(file)));
+						} catch (IOException e) {
+							// not ready yet or already gone, the next scan tries again
+						}
+					});
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Whether the process that writes the ring is still running, going by the pid in the file name
+	 */
+	private boolean isAlive(Path file) {
+		String name = file.getFileName().toString();
+		try {
+			long pid = Long.parseLong(name.substring(filePrefix.length(), name.length() - ".ring".length()));
+			return ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+		} catch (NumberFormatException | IndexOutOfBoundsException e) {
+			// not a ring of this group, for example one of a group whose name starts with this one's
+			return true;
+		}
+	}
+	
+	private void closeAndDelete(Path file, SharedMemoryRingReader reader) {
+		try {
+			if(reader != null) {
+				reader.close();
+			}
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			System.err.println("Failed removing the ring of a stopped process "+file+": "+e);
+		}
+	}
+}
+
+/**
+ * 
+ * Round trip latency between two processes over two shared memory rings, on Linux in /dev/shm.
+ * Run without arguments: it starts the second (echo) process itself, pings it and prints a one way latency histogram.
+ *
+ */
+class SharedMemoryLatencyBenchmark {
+	private static final int WARMUP = 20_000;
+	private static final int PINGS = 100_000;
+	
+	public static void main(String[] args) throws Exception {
+		Path directory = SharedMemoryGroupBridge.defaultDirectory();
+		Path pingFile = directory.resolve("whatsapp-latency-ping.ring");
+		Path pongFile = directory.resolve("whatsapp-latency-pong.ring");
+		if(args.length > 0 && args[0].equals("echo")) {
+			echo(pingFile, pongFile);
+			return;
+		}
+		try (SharedMemoryRing ping = SharedMemoryRing.create(pingFile, 1024, 256)) {
+			Files.deleteIfExists(pongFile);
+			String modulePath = System.getProperty("jdk.module.path");
+			List<String> command = new ArrayList<>(List.of(ProcessHandle.current().info().command().orElse("java")));
+			if(modulePath != null) {
+				command.addAll(List.of("-p", modulePath, "-m", "designpatterns/" + SharedMemoryLatencyBenchmark.class.getName()));
+			} else {
+				// started from the class path, as the benchmarks jar and the IDE do
+				command.addAll(List.of("-cp", System.getProperty("java.class.path"), SharedMemoryLatencyBenchmark.class.getName()));
+			}
+			command.add("echo");
+			Process echo = new ProcessBuilder(command).inheritIO().start();
+			try {
+				while(!Files.exists(pongFile)) {
+					Thread.sleep(10);
+				}
+				Thread.sleep(100);
+				SharedMemoryRingReader pong = new SharedMemoryRingReader(SharedMemoryRing.open(pongFile));
+				LatencyHistogram histogram = new LatencyHistogram();
+				ChatMessage message = ChatMessage.text("ping", "Hi");
+				ChatMessage[] reply = new ChatMessage[1];
+				for (int i = 0; i < WARMUP + PINGS; i++) {
+					long startNanos = System.nanoTime();
+					ping.publish(message);
+					reply[0] = null;
+					for (int idle = 0; pong.poll(received -> reply[0] = received, 1) == 0; idle++) {
+						backOff(idle);
+					}
+					if(i >= WARMUP) {
+						histogram.record((System.nanoTime() - startNanos) / 2);
+					}
+				}
+				ping.publish(ChatMessage.text("ping", "stop"));
+				System.out.printf("one way latency over %s: p50 %d ns, p99 %d ns, p99.9 %d ns, max %d ns%n", directory, histogram.percentile(50),
+						histogram.percentile(99), histogram.percentile(99.9), histogram.getMaxValue());
+			} finally {
+				echo.waitFor(5, TimeUnit.SECONDS);
+				echo.destroy();
+				Files.deleteIfExists(pingFile);
+				Files.deleteIfExists(pongFile);
+			}
+		}
+	}
+	
+	private static void echo(Path pingFile, Path pongFile) throws IOException {
+		SharedMemoryRingReader ping = new SharedMemoryRingReader(SharedMemoryRing.open(pingFile));
+		try (SharedMemoryRing pong = SharedMemoryRing.create(pongFile, 1024, 256)) {
+			boolean[] stop = new boolean[1];
+			int idle = 0;
+			while(!stop[0]) {
+				if(ping.poll(message -> {
+					if(message.getText().equals("stop")) {
+						stop[0] = true;
+					} else {
+						pong.publish(message);
+					}
+				}, 16) == 0) {
+					backOff(idle++);
+				} else {
+					idle = 0;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Spins first, then yields so the other process gets the core when both share one
+	 */
+	private static void backOff(int idle) {
+		if(idle < 100) {
+			Thread.onSpinWait();
+		} else {
+			Thread.yield();
+		}
+	}
+}
+
+/**
+ * 
+ * Latency of fanning one message out to a group of 1 million members, through the sharded registry
+ *
+ */
+class ShardedFanOutBenchmark {
+	private static final int MEMBERS = 1_000_000;
+	private static final int RUNS = 30;
+	
+	public static void main(String[] args) {
+		ShardedMemberRegistry registry = new ShardedMemberRegistry(4096, 10_000);
+		long joinStart = System.nanoTime();
+		for (int i = 0; i < MEMBERS; i++) {
+			registry.join(new CountingMember("member"+i));
+		}
+		System.out.printf("%d members joined in %d ms%n", registry.size(), (System.nanoTime() - joinStart) / 1_000_000);
+		
+		ChatMessage message = ChatMessage.text("member0", "Hi all");
+		long[] latencies = new long[RUNS];
+		for (int run = 0; run < RUNS * 2; run++) {
+			long startNanos = System.nanoTime();
+			long delivered = registry.fanOut(message);
+			if(delivered != MEMBERS - 1) {
+				throw new IllegalStateException("Delivered to "+delivered+" members instead of "+(MEMBERS - 1));
+			}
+			// the first half only warms up
+			if(run >= RUNS) {
+				latencies[run - RUNS] = System.nanoTime() - startNanos;
+			}
+		}
+		Arrays.sort(latencies);
+		System.out.printf("Fan-out to %d members: min %.2f ms, median %.2f ms, max %.2f ms%n", MEMBERS - 1, latencies[0] / 1e6,
+				latencies[RUNS / 2] / 1e6, latencies[RUNS - 1] / 1e6);
+	}
+	
+	private static class CountingMember implements WhatsappGroupMember {
+		private final String memberName;
+		private long received;
+		
+		CountingMember(String memberName) {
+			this.memberName = memberName;
+		}
+		
+		@Override
+		public String getMemberName() {
+			return memberName;
+		}
+
+		@Override
+		public void receiveMessage(ChatMessage message) {
+			received++;
+		}
+	}
+}
+
+/**
+ * 
+ * Messages per second through one group of 8 members with 1 to 64 sender threads. The members only count what they receive,
+ * so the numbers are those of the hub itself
+ *
+ */
+class MediatorHubBenchmark {
+	private static final int MESSAGES = 1_000_000;
+	private static final int MEMBERS = 8;
+	
+	public static void main(String[] args) throws InterruptedException {
+		System.out.println("senders | sent msgs/s  delivered msgs/s");
+		for (int senders = 1; senders <= 64; senders *= 2) {
+			// the first run only warms up
+			run(senders, false);
+			run(senders, true);
+		}
+	}
+	
+	private static void run(int senders, boolean print) throws InterruptedException {
+		WhatsappChats whatsappChats = new WhatsappChats();
+		WhatsappGroup group = whatsappChats.createGroup("Benchmark");
+		for (int i = 0; i < MEMBERS; i++) {
+			String memberName = "member"+i;
+			group.join(new WhatsappGroupMember() {
+				@Override
+				public String getMemberName() {
+					return memberName;
+				}
+
+				@Override
+				public void receiveMessage(ChatMessage message) {
+				}
+			});
+		}
+		int perSender = MESSAGES / senders;
+		Thread[] threads = new Thread[senders];
+		long startNanos = System.nanoTime();
+		for (int t = 0; t < senders; t++) {
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < perSender; i++) {
+					group.post(ChatMessage.text("sender", "Hi"));
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long sentNanos = System.nanoTime() - startNanos;
+		whatsappChats.shutdown();
+		long deliveredNanos = System.nanoTime() - startNanos;
+		long sent = (long) perSender * senders;
+		if(print) {
+			System.out.printf("%7d | %11.0f  %16.0f%n", senders, sent / (sentNanos / 1e9), sent / (deliveredNanos / 1e9));
+		}
+	}
+}
+
+/**
+ * A ring buffer of preallocated chat message slots, in the style of the LMAX Disruptor.
+ * 
+ * Publishers claim a sequence number with a CAS, fill the slot that belongs to it and mark it published. Every consumer keeps its own
+ * sequence and takes all published slots up to the latest one in a single batch. The slots are created once and reused, so once the
+ * ring is running no message allocates anything on its way from the sender to the members.
+ * 
+ * A publisher never overtakes the slowest consumer: when the ring is full it waits for the consumers to move on.
+ */
+class ChatRingBuffer {
+	private static final VarHandle CACHED_GATING_SEQUENCE;
+	static {
+		try {
+			CACHED_GATING_SEQUENCE = MethodHandles.lookup().findVarHandle(ChatRingBuffer.class, "cachedGatingSequence", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private final ChatEvent[] slots;
+	private final int mask;
+	private final int indexShift;
+	
+	// the round (sequence / size) each slot was last published for, so a consumer can tell a fresh slot from a stale one
+	private final AtomicIntegerArray publishedRounds;
+	private final Sequence claimed = new Sequence(-1);
+	private final CopyOnWriteArrayList<Sequence> gatingSequences = new CopyOnWriteArrayList<>();
+	// shared by every publisher. Only ever a value some consumer has passed, so a stale one just means looking again
+	@SuppressWarnings("unused")
+	private long cachedGatingSequence = -1;
+	
+	public ChatRingBuffer(int size) {
+		if(Integer.bitCount(size) != 1) {
+			throw new IllegalArgumentException("Ring buffer size must be a power of 2, got --> "+size);
+		}
+		this.slots = new ChatEvent[size];
+		for (int i = 0; i < size; i++) {
+			slots[i] = new ChatEvent();
+		}
+		this.mask = size - 1;
+		this.indexShift = Integer.numberOfTrailingZeros(size);
+		this.publishedRounds = new AtomicIntegerArray(size);
+		for (int i = 0; i < size; i++) {
+			publishedRounds.set(i, -1);
+		}
+	}
+	
+	/**
+	 * Claims the next slot. The caller must fill it with get() and then call publish() with the same sequence
+	 */
+	public long next() {
+		while(true) {
+			long current = claimed.get();
+			long next = current + 1;
+			long wrapPoint = next - slots.length;
+			// opaque, so the value is never torn and every publisher sees the others' updates without a fence on each claim
+			if(wrapPoint > (long) CACHED_GATING_SEQUENCE.getOpaque(this)) {
+				long slowest = minimumGatingSequence(current);
+				if(wrapPoint > slowest) {
+					// the ring is full, wait for the slowest consumer to free a slot
+					LockSupport.parkNanos(1);
+					continue;
+				}
+				CACHED_GATING_SEQUENCE.setOpaque(this, slowest);
+			}
+			if(claimed.compareAndSet(current, next)) {
+				return next;
+			}
+		}
+	}
+	
+	public ChatEvent get(long sequence) {
+		return slots[(int) sequence & mask];
+	}
+	
+	public void publish(long sequence) {
+		publishedRounds.lazySet((int) sequence & mask, (int) (sequence >>> indexShift));
+	}
+	
+	public boolean isPublished(long sequence) {
+		return publishedRounds.get((int) sequence & mask) == (int) (sequence >>> indexShift);
+	}
+	
+	/**
+	 * Highest sequence claimed by any publisher. It may not be published yet, see getHighestPublished()
+	 */
+	public long getClaimed() {
+		return claimed.get();
+	}
+	
+	/**
+	 * Walks from lowest up to availableSequence and returns the last sequence before the first gap
+	 */
+	public long getHighestPublished(long lowest, long availableSequence) {
+		for (long sequence = lowest; sequence <= availableSequence; sequence++) {
+			if(!isPublished(sequence)) {
+				return sequence - 1;
+			}
+		}
+		return availableSequence;
+	}
+	
+	public void addGatingSequence(Sequence sequence) {
+		sequence.set(claimed.get());
+		gatingSequences.add(sequence);
+	}
+	
+	public void removeGatingSequence(Sequence sequence) {
+		gatingSequences.remove(sequence);
+	}
+	
+	public int getSize() {
+		return slots.length;
+	}
+	
+	private long minimumGatingSequence(long fallback) {
+		long minimum = fallback;
+		for (Sequence sequence : gatingSequences) {
+			minimum = Math.min(minimum, sequence.get());
+		}
+		return minimum;
+	}
+}
+
+/**
+ * A sequence number padded on both sides, so that sequences updated by different threads never share a cache line
+ */
+class Sequence {
+	private static final VarHandle VALUE;
+	static {
+		try {
+			VALUE = MethodHandles.lookup().findVarHandle(Sequence.class, "value", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	@SuppressWarnings("unused")
+	private long p1, p2, p3, p4, p5, p6, p7;
+	private volatile long value;
+	@SuppressWarnings("unused")
+	private long p9, p10, p11, p12, p13, p14, p15;
+	
+	Sequence(long initialValue) {
+		VALUE.setRelease(this, initialValue);
+	}
+	
+	public long get() {
+		return value;
+	}
+	
+	/**
+	 * Ordered write. Cheaper than a volatile write and enough for a single writer
+	 */
+	public void set(long newValue) {
+		VALUE.setRelease(this, newValue);
+	}
+	
+	public boolean compareAndSet(long expected, long newValue) {
+		return VALUE.compareAndSet(this, expected, newValue);
+	}
+}
+
+/**
+ * A reusable message slot. Publishers overwrite the fields instead of creating a new message. A slot keeps its payload until
+ * it is overwritten: with several gating consumers no single one of them knows when every other has read it
+ */
+class ChatEvent {
+	private String memberName;
+	private String text;
+	private byte[] media;
+	private long sentAtMillis;
+	private long publishedNanos;
+	
+	public void setText(String memberName, String text) {
+		this.memberName = memberName;
+		this.text = text;
+		this.media = null;
+		this.sentAtMillis = System.currentTimeMillis();
+		this.publishedNanos = System.nanoTime();
+	}
+	
+	public void setMedia(String memberName, byte[] media) {
+		this.memberName = memberName;
+		this.text = null;
+		this.media = media;
+		this.sentAtMillis = System.currentTimeMillis();
+		this.publishedNanos = System.nanoTime();
+	}
+	
+	public String getMemberName() {
+		return memberName;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public byte[] getMedia() {
+		return media;
+	}
+
+	public long getSentAtMillis() {
+		return sentAtMillis;
+	}
+
+	public long getPublishedNanos() {
+		return publishedNanos;
+	}
+	
+	public boolean isMedia() {
+		return media != null;
+	}
+}
+
+/**
+ * Called by a consumer for every event, endOfBatch is true for the last event it could take in one go
+ */
+interface ChatEventHandler {
+	public void onEvent(ChatEvent event, long sequence, boolean endOfBatch);
+}
+
+/**
+ * How a consumer waits for the next sequence to be published. Returns the highest sequence it may read, at least the one asked for,
+ * or a lower one when the consumer is being stopped
+ */
+interface WaitStrategy {
+	public long waitFor(long sequence, ChatRingBuffer ringBuffer, ChatEventProcessor processor);
+}
+
+/**
+ * Spins on the CPU. Lowest latency, but the consumer burns a whole core even when there is nothing to do
+ */
+class BusySpinWaitStrategy implements WaitStrategy {
+	@Override
+	public long waitFor(long sequence, ChatRingBuffer ringBuffer, ChatEventProcessor processor) {
+		long available;
+		while((available = ringBuffer.getClaimed()) < sequence && processor.isRunning()) {
+			Thread.onSpinWait();
+		}
+		return available;
+	}
+}
+
+/**
+ * Spins for a while, then gives the CPU to other threads between checks
+ */
+class YieldingWaitStrategy implements WaitStrategy {
+	private static final int SPIN_TRIES = 100;
+	
+	@Override
+	public long waitFor(long sequence, ChatRingBuffer ringBuffer, ChatEventProcessor processor) {
+		int counter = SPIN_TRIES;
+		long available;
+		while((available = ringBuffer.getClaimed()) < sequence && processor.isRunning()) {
+			if(counter > 0) {
+				counter--;
+				Thread.onSpinWait();
+			} else {
+				Thread.yield();
+			}
+		}
+		return available;
+	}
+}
+
+/**
+ * Spins briefly, then parks for a short time between checks. Nearly no CPU when idle, at the cost of some latency
+ */
+class ParkingWaitStrategy implements WaitStrategy {
+	private static final int SPIN_TRIES = 100;
+	private final long parkNanos;
+	
+	ParkingWaitStrategy(long parkNanos) {
+		this.parkNanos = parkNanos;
+	}
+	
+	@Override
+	public long waitFor(long sequence, ChatRingBuffer ringBuffer, ChatEventProcessor processor) {
+		int counter = SPIN_TRIES;
+		long available;
+		while((available = ringBuffer.getClaimed()) < sequence && processor.isRunning()) {
+			if(counter > 0) {
+				counter--;
+				Thread.onSpinWait();
+			} else {
+				LockSupport.parkNanos(parkNanos);
+			}
+		}
+		return available;
+	}
+}
+
+/**
+ * A consumer of the ring buffer running on its own thread. It takes every published event after its own sequence in one batch
+ * and only then moves its sequence on, which is what lets the publishers reuse those slots.
+ */
+class ChatEventProcessor implements Runnable {
+	private final ChatRingBuffer ringBuffer;
+	private final WaitStrategy waitStrategy;
+	private final ChatEventHandler handler;
+	private final Sequence sequence = new Sequence(-1);
+	private volatile boolean running = true;
+	
+	ChatEventProcessor(ChatRingBuffer ringBuffer, WaitStrategy waitStrategy, ChatEventHandler handler) {
+		this.ringBuffer = ringBuffer;
+		this.waitStrategy = waitStrategy;
+		this.handler = handler;
+		ringBuffer.addGatingSequence(sequence);
+	}
+	
+	@Override
+	public void run() {
+		long nextSequence = sequence.get() + 1;
+		while(true) {
+			long available = waitStrategy.waitFor(nextSequence, ringBuffer, this);
+			if(available < nextSequence) {
+				// only happens when stopping. Leave once everything claimed so far has been handled
+				if(ringBuffer.getClaimed() < nextSequence) {
+					break;
+				}
+				available = ringBuffer.getClaimed();
+			}
+			long highest = ringBuffer.getHighestPublished(nextSequence, available);
+			for (long current = nextSequence; current <= highest; current++) {
+				ChatEvent event = ringBuffer.get(current);
+				handler.onEvent(event, current, current == highest);
+			}
+			if(highest >= nextSequence) {
+				sequence.set(highest);
+				nextSequence = highest + 1;
+			} else {
+				// claimed but not yet published
+				Thread.onSpinWait();
+			}
+		}
+		ringBuffer.removeGatingSequence(sequence);
+	}
+	
+	public boolean isRunning() {
+		return running;
+	}
+	
+	/**
+	 * Asks the processor to stop once it has handled everything already claimed
+	 */
+	public void halt() {
+		running = false;
+	}
+	
+	public long getSequence() {
+		return sequence.get();
+	}
+}
+
+/**
+ * Latency histogram with log-linear buckets: 2^SUB_BITS linear buckets in every power of 2, so every recorded value is kept with
+ * about 3% precision. Recording is a few shifts and one array increment, nothing is allocated.
+ * Meant to be written by a single thread.
+ */
+class LatencyHistogram {
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	
+	private final long[] counts = new long[(64 - SUB_BITS + 1) * SUB_BUCKETS];
+	private long totalCount;
+	private long maxValue;
+	
+	public void record(long value) {
+		if(value < 0) {
+			value = 0;
+		}
+		counts[indexOf(value)]++;
+		totalCount++;
+		if(value > maxValue) {
+			maxValue = value;
+		}
+	}
+	
+	/**
+	 * Upper bound of the bucket holding the given percentile (0..100)
+	 */
+	public long percentile(double percentile) {
+		if(totalCount == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(totalCount * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if(seen >= target) {
+				return Math.min(upperBoundOf(i), maxValue);
+			}
+		}
+		return maxValue;
+	}
+	
+	public long getTotalCount() {
+		return totalCount;
+	}
+	
+	public long getMaxValue() {
+		return maxValue;
+	}
+	
+	public void reset() {
+		Arrays.fill(counts, 0);
+		totalCount = 0;
+		maxValue = 0;
+	}
+	
+	private static int indexOf(long value) {
+		if(value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - SUB_BITS;
+		int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+	}
+	
+	private static long upperBoundOf(int index) {
+		if(index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
+
+/**
+ * A group whose messages go through a ChatRingBuffer. One processor thread takes the events off the ring and fans them out
+ * to the members. Senders never allocate a message or a queue node, and neither does the processor: members receive one
+ * reusable view refilled from each event, which they retain() if they keep the message.
+ */
+class RingWhatsappGroup {
+	private final String groupName;
+	private final ChatRingBuffer ringBuffer;
+	private final ShardedMemberRegistry members = new ShardedMemberRegistry(1024, 10_000);
+	private final ChatEventProcessor processor;
+	private final Thread processorThread;
+	// only touched by the processor thread, a parallel fan-out is waited for before it is refilled
+	private final ChatMessage delivery = ChatMessage.reusableView();
+	
+	RingWhatsappGroup(String groupName, ChatRingBuffer ringBuffer, WaitStrategy waitStrategy) {
+		this.groupName = groupName;
+		this.ringBuffer = ringBuffer;
+		this.processor = new ChatEventProcessor(ringBuffer, waitStrategy, this::fanOut);
+		this.processorThread = new Thread(processor, groupName + " processor");
+		this.processorThread.setDaemon(true);
+		this.processorThread.start();
+	}
+	
+	public void join(WhatsappGroupMember member) {
+		members.join(member);
+	}
+	
+	public void leave(WhatsappGroupMember member) {
+		members.leave(member);
+	}
+	
+	public void sendText(String memberName, String text) {
+		long sequence = ringBuffer.next();
+		try {
+			ringBuffer.get(sequence).setText(memberName, text);
+		} finally {
+			ringBuffer.publish(sequence);
+		}
+	}
+	
+	public void sendMedia(String memberName, byte[] media) {
+		long sequence = ringBuffer.next();
+		try {
+			ringBuffer.get(sequence).setMedia(memberName, media);
+		} finally {
+			ringBuffer.publish(sequence);
+		}
+	}
+	
+	/**
+	 * Delivers what was already sent and stops the processor
+	 */
+	public void close() {
+		processor.halt();
+		try {
+			processorThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	public String getGroupName() {
+		return groupName;
+	}
+	
+	private void fanOut(ChatEvent event, long sequence, boolean endOfBatch) {
+		if(members.size() > 0) {
+			delivery.reuse(event.getMemberName(), event.getText(), event.getMedia(), event.getSentAtMillis());
+			members.fanOut(delivery);
+			// the view must not keep a large media message alive, the slot itself is left to the next publisher
+			delivery.reuse(null, null, null, 0);
+		}
+	}
+}
+
+/**
+ * Publish to handle latency through the ring buffer for each wait strategy, with a histogram per strategy.
+ * The handler only records the latency, so the numbers are those of the ring itself
+ */
+class ChatRingBufferBenchmark {
+	private static final int MESSAGES = 2_000_000;
+	private static final int PRODUCERS = 2;
+	
+	public static void main(String[] args) throws InterruptedException {
+		System.out.println("strategy   |      msgs/s   p50 ns   p99 ns  p99.9 ns    max ns");
+		run("busy-spin", new BusySpinWaitStrategy());
+		run("yield", new YieldingWaitStrategy());
+		run("park", new ParkingWaitStrategy(1_000));
+	}
+	
+	private static void run(String name, WaitStrategy waitStrategy) throws InterruptedException {
+		LatencyHistogram histogram = new LatencyHistogram();
+		ChatRingBuffer ringBuffer = new ChatRingBuffer(64 * 1024);
+		ChatEventProcessor processor = new ChatEventProcessor(ringBuffer, waitStrategy,
+				(event, sequence, endOfBatch) -> histogram.record(System.nanoTime() - event.getPublishedNanos()));
+		Thread consumer = new Thread(processor);
+		consumer.start();
+		
+		Thread[] producers = new Thread[PRODUCERS];
+		long startNanos = System.nanoTime();
+		for (int p = 0; p < PRODUCERS; p++) {
+			producers[p] = new Thread(() -> {
+				for (int i = 0; i < MESSAGES / PRODUCERS; i++) {
+					long sequence = ringBuffer.next();
+					ringBuffer.get(sequence).setText("sender", "Hi");
+					ringBuffer.publish(sequence);
+				}
+			});
+			producers[p].start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		processor.halt();
+		consumer.join();
+		long elapsedNanos = System.nanoTime() - startNanos;
+		System.out.printf("%-10s | %11.0f %8d %8d %9d %9d%n", name, histogram.getTotalCount() / (elapsedNanos / 1e9), histogram.percentile(50),
+				histogram.percentile(99), histogram.percentile(99.9), histogram.getMaxValue());
 	}
 }
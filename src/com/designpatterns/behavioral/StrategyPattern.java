@@ -1,5 +1,50 @@
 package com.designpatterns.behavioral;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.NoSuchElementException;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.designpatterns.metrics.MetricsRegistry;
+import com.designpatterns.output.Output;
+
 /**
  * A Strategy pattern is useful when, 1. you need to make a single task 2. and
  * multiple ways to address the task eg. Online Payment(Credit card, Netbanking,
@@ -7,9 +52,18 @@ package com.designpatterns.behavioral;
  */
 public class StrategyPattern {
 
-	public static void main(String[] args) {
-		WritingContext PdfWritingContext = new WritingContext(new PdfWriter());
-		PdfWritingContext.executeWriting();
+	public static void main(String[] args) throws IOException {
+		WritingStrategy[] strategies = { new TextWriter(), new ExcelWriter(), new PdfWriter() };
+		String[] suffixes = { ".csv", ".xlsx", ".pdf" };
+		for (int i = 0; i < strategies.length; i++) {
+			Path file = Files.createTempFile("report", suffixes[i]);
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				WritingContext writingContext = new WritingContext(strategies[i]);
+				Output.println(writingContext.executeWriting(new SampleRecordSource(100_000), channel));
+			} finally {
+				Files.deleteIfExists(file);
+			}
+		}
 	}
 
 }
@@ -20,64 +74,1692 @@ public class StrategyPattern {
  * the choice of the user
  */
 interface WritingStrategy {
-	public void print();
+	/**
+	 * Writes the records one by one to the channel and returns how many were written.
+	 * Memory use must not grow with the number of records
+	 */
+	public long write(RecordSource records, WritableByteChannel channel) throws IOException;
+}
+
+/**
+ * Type of a field in a record
+ */
+enum FieldType {
+	TEXT, LONG, DOUBLE
+}
+
+/**
+ * One row of data to be written. Numbers are read as primitives so writers can format them without boxing
+ */
+interface WritingRecord {
+	public int getFieldCount();
+
+	public FieldType getFieldType(int field);
+
+	public CharSequence getText(int field);
+
+	public long getLong(int field);
+
+	public double getDouble(int field);
+}
+
+/**
+ * The records to write, with the names of their fields. The iterator may hand out the same record object every time,
+ * filled with the next row, so a writer must not keep a record after asking for the next one
+ */
+interface RecordSource {
+	public String[] getFieldNames();
+
+	public Iterator<? extends WritingRecord> iterator();
+}
+
+/**
+ * Records that can be read in ranges, so they can be split into partitions and written in parallel
+ */
+interface PartitionedRecordSource extends RecordSource {
+	public long size();
+
+	/**
+	 * Iterator over the records from the first index up to, not including, the second. Each iterator has its own record
+	 */
+	public Iterator<? extends WritingRecord> iterator(long from, long to);
+}
+
+/**
+ * A strategy whose output is a header followed by each record on its own, like CSV. The records of a partition can then
+ * be encoded on their own and the partitions put one after the other
+ */
+interface PartitionedWritingStrategy extends WritingStrategy {
+	public void writeHeader(String[] fieldNames, ChannelOutput out) throws IOException;
+
+	public void writeRecord(WritingRecord record, ChannelOutput out) throws IOException;
+}
+
+/**
+ * A record whose fields are set one by one, meant to be reused for every row
+ */
+class ReportRow implements WritingRecord {
+	private final FieldType[] types;
+	private final CharSequence[] texts;
+	private final long[] longs;
+	private final double[] doubles;
+
+	ReportRow(int fieldCount) {
+		this.types = new FieldType[fieldCount];
+		this.texts = new CharSequence[fieldCount];
+		this.longs = new long[fieldCount];
+		this.doubles = new double[fieldCount];
+	}
+
+	public ReportRow setText(int field, CharSequence text) {
+		types[field] = FieldType.TEXT;
+		texts[field] = text;
+		return this;
+	}
+
+	public ReportRow setLong(int field, long value) {
+		types[field] = FieldType.LONG;
+		longs[field] = value;
+		return this;
+	}
+
+	public ReportRow setDouble(int field, double value) {
+		types[field] = FieldType.DOUBLE;
+		doubles[field] = value;
+		return this;
+	}
+
+	@Override
+	public int getFieldCount() {
+		return types.length;
+	}
+
+	@Override
+	public FieldType getFieldType(int field) {
+		return types[field];
+	}
+
+	@Override
+	public CharSequence getText(int field) {
+		return texts[field];
+	}
+
+	@Override
+	public long getLong(int field) {
+		return longs[field];
+	}
+
+	@Override
+	public double getDouble(int field) {
+		return doubles[field];
+	}
+}
+
+/**
+ * Generates a given number of sales rows (id, name, city, amount) on the fly, so any row count can be written without
+ * holding the data
+ */
+class SampleRecordSource implements PartitionedRecordSource {
+	private static final String[] NAMES = { "Saranya", "Arun", "Priya", "Karthik", "Divya", "Vijay", "Meena" };
+	private static final String[] CITIES = { "Chennai", "Madurai", "Coimbatore", "Salem", "Trichy" };
+
+	private final long count;
+
+	SampleRecordSource(long count) {
+		this.count = count;
+	}
+
+	@Override
+	public String[] getFieldNames() {
+		return new String[] { "Id", "Name", "City", "Amount" };
+	}
+
+	@Override
+	public long size() {
+		return count;
+	}
+
+	@Override
+	public Iterator<ReportRow> iterator() {
+		return iterator(0, count);
+	}
+
+	@Override
+	public Iterator<ReportRow> iterator(long from, long to) {
+		ReportRow row = new ReportRow(4);
+		return new Iterator<ReportRow>() {
+			private long next = from;
+
+			@Override
+			public boolean hasNext() {
+				return next < to;
+			}
+
+			@Override
+			public ReportRow next() {
+				if(!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				long id = next++;
+				return row.setLong(0, id).setText(1, NAMES[(int) (id % NAMES.length)]).setText(2, CITIES[(int) (id % CITIES.length)])
+						.setDouble(3, id * 37 % 100_000 / 100.0);
+			}
+		};
+	}
+}
+
+/**
+ * Buffers small writes and hands them to the channel in large blocks. Keeps count of every byte written, including
+ * those still in the buffer, so writers can use it as the file offset.
+ * Text and numbers are encoded straight into the buffer: ASCII text byte by byte, anything else through a UTF-8
+ * encoder kept with the output, and numbers digit by digit, so writing a record allocates nothing.
+ * An output can be reset onto another channel and reused, buffer and encoder included
+ */
+class ChannelOutput {
+	private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L };
+	// a double written digit by digit gets at most this many decimals, the rest go through Double.toString
+	private static final int MAX_DECIMALS = 9;
+
+	private WritableByteChannel channel;
+	private final ByteBuffer buffer;
+	private long flushed;
+	private CharsetEncoder encoder;
+	private CharBuffer chars;
+
+	ChannelOutput(WritableByteChannel channel, int bufferSize) {
+		this(channel, ByteBuffer.allocate(bufferSize));
+	}
+
+	/**
+	 * Writes through the given buffer, eg. a direct one
+	 */
+	ChannelOutput(WritableByteChannel channel, ByteBuffer buffer) {
+		this.channel = channel;
+		this.buffer = buffer.clear();
+	}
+
+	/**
+	 * Starts over on another channel, dropping anything not flushed
+	 */
+	public ChannelOutput reset(WritableByteChannel channel) {
+		this.channel = channel;
+		this.buffer.clear();
+		this.flushed = 0;
+		return this;
+	}
+
+	public ChannelOutput write(int b) throws IOException {
+		if(!buffer.hasRemaining()) {
+			flush();
+		}
+		buffer.put((byte) b);
+		return this;
+	}
+
+	public ChannelOutput write(byte[] bytes) throws IOException {
+		return write(bytes, 0, bytes.length);
+	}
+
+	public ChannelOutput write(byte[] bytes, int offset, int length) throws IOException {
+		while(length > 0) {
+			if(!buffer.hasRemaining()) {
+				flush();
+			}
+			int chunk = Math.min(length, buffer.remaining());
+			buffer.put(bytes, offset, chunk);
+			offset += chunk;
+			length -= chunk;
+		}
+		return this;
+	}
+
+	/**
+	 * For markup and numbers, which are plain ASCII
+	 */
+	public ChannelOutput writeAscii(String text) throws IOException {
+		for (int i = 0; i < text.length(); i++) {
+			write(text.charAt(i));
+		}
+		return this;
+	}
+
+	public ChannelOutput writeText(CharSequence text) throws IOException {
+		return writeText(text, 0, text.length());
+	}
+
+	/**
+	 * UTF-8 encodes the characters from start up to, not including, end
+	 */
+	public ChannelOutput writeText(CharSequence text, int start, int end) throws IOException {
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if(c >= 0x80) {
+				encode(text, i, end);
+				break;
+			}
+			write(c);
+		}
+		return this;
+	}
+
+	public ChannelOutput writeLong(long value) throws IOException {
+		if(value == Long.MIN_VALUE) {
+			return writeAscii("-9223372036854775808");
+		}
+		if(buffer.remaining() < 20) {
+			flush();
+		}
+		if(value < 0) {
+			buffer.put((byte) '-');
+			value = -value;
+		}
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		int end = buffer.position() + digits;
+		for (int position = end - 1; position >= end - digits; position--) {
+			buffer.put(position, (byte) ('0' + value % 10));
+			value /= 10;
+		}
+		buffer.position(end);
+		return this;
+	}
+
+	/**
+	 * Writes the fewest decimals (at least one) that read back as the same double, eg. 0.37 or 972.75. Values that need
+	 * more than 9 decimals, and values of a billion or more, are written by Double.toString
+	 */
+	public ChannelOutput writeDouble(double value) throws IOException {
+		double magnitude = Math.abs(value);
+		if(magnitude < 1e9) {
+			for (int decimals = 1; decimals <= MAX_DECIMALS; decimals++) {
+				long scaled = Math.round(magnitude * POWERS_OF_TEN[decimals]);
+				// beyond 2^53 the check below could be fooled by rounding
+				if(scaled < 1L << 53 && scaled / (double) POWERS_OF_TEN[decimals] == magnitude) {
+					if(value < 0) {
+						write('-');
+					}
+					writeLong(scaled / POWERS_OF_TEN[decimals]);
+					write('.');
+					long fraction = scaled % POWERS_OF_TEN[decimals];
+					for (int digit = decimals - 1; digit >= 0; digit--) {
+						write('0' + (int) (fraction / POWERS_OF_TEN[digit] % 10));
+					}
+					return this;
+				}
+			}
+		}
+		return writeAscii(Double.toString(value));
+	}
+
+	/**
+	 * Bytes written so far, flushed or not
+	 */
+	public long getPosition() {
+		return flushed + buffer.position();
+	}
+
+	public void flush() throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			flushed += channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Encodes the rest of a text that is not plain ASCII, a few hundred characters at a time through the reused char buffer
+	 */
+	private void encode(CharSequence text, int start, int end) throws IOException {
+		if(encoder == null) {
+			encoder = StandardCharsets.UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+			chars = CharBuffer.allocate(256);
+		}
+		encoder.reset();
+		chars.clear();
+		int next = start;
+		boolean endOfInput = false;
+		while(!endOfInput) {
+			while(next < end && chars.hasRemaining()) {
+				chars.put(text.charAt(next++));
+			}
+			chars.flip();
+			endOfInput = next == end;
+			while(encoder.encode(chars, buffer, endOfInput).isOverflow()) {
+				flush();
+			}
+			// keeps a high surrogate whose low half is still to come
+			chars.compact();
+		}
+		while(encoder.flush(buffer).isOverflow()) {
+			flush();
+		}
+	}
 }
 
 /**
  * A Text writer implementing the WritingStrategy interface. It writes data as
- * text.
+ * text, one comma separated line per record with a header line first.
  */
-class TextWriter implements WritingStrategy {
+class TextWriter implements PartitionedWritingStrategy {
+	// outputs kept for reuse, writes running at the same time beyond this get an output that is dropped afterwards
+	private static final int POOLED_OUTPUTS = Runtime.getRuntime().availableProcessors();
+
+	private final int bufferSize;
+	// direct buffers with their encoders, owned by the writer. A write takes one and gives it back, whatever thread it runs on
+	private final ArrayBlockingQueue<ChannelOutput> outputs = new ArrayBlockingQueue<>(POOLED_OUTPUTS);
+
+	TextWriter() {
+		this(64 * 1024);
+	}
+
+	TextWriter(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	@Override
+	public long write(RecordSource records, WritableByteChannel channel) throws IOException {
+		ChannelOutput out = outputs.poll();
+		if(out == null) {
+			out = new ChannelOutput(null, ByteBuffer.allocateDirect(bufferSize));
+		}
+		try {
+			out.reset(channel);
+			writeHeader(records.getFieldNames(), out);
+			long count = 0;
+			for (Iterator<? extends WritingRecord> iterator = records.iterator(); iterator.hasNext(); count++) {
+				writeRecord(iterator.next(), out);
+			}
+			out.flush();
+			return count;
+		} finally {
+			// the pooled output must not keep the caller's channel reachable
+			out.reset(null);
+			outputs.offer(out);
+		}
+	}
+
+	@Override
+	public void writeHeader(String[] fieldNames, ChannelOutput out) throws IOException {
+		for (int i = 0; i < fieldNames.length; i++) {
+			if(i > 0) {
+				out.write(',');
+			}
+			writeText(out, fieldNames[i]);
+		}
+		out.write('\n');
+	}
+
+	@Override
+	public void writeRecord(WritingRecord record, ChannelOutput out) throws IOException {
+		for (int i = 0; i < record.getFieldCount(); i++) {
+			if(i > 0) {
+				out.write(',');
+			}
+			switch (record.getFieldType(i)) {
+			case LONG:
+				out.writeLong(record.getLong(i));
+				break;
+			case DOUBLE:
+				out.writeDouble(record.getDouble(i));
+				break;
+			default:
+				writeText(out, record.getText(i));
+			}
+		}
+		out.write('\n');
+	}
 
 	@Override
-	public void print() {
-		System.out.println("Printing text...");
+	public String toString() {
+		return "TextWriter(" + bufferSize + " byte buffer)";
+	}
+
+	/**
+	 * Text with a comma, quote or line break goes in quotes, with its quotes doubled
+	 */
+	private void writeText(ChannelOutput out, CharSequence text) throws IOException {
+		boolean quote = false;
+		for (int i = 0; i < text.length() && !quote; i++) {
+			char c = text.charAt(i);
+			quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+		}
+		if(quote) {
+			out.write('"');
+			int start = 0;
+			for (int i = 0; i < text.length(); i++) {
+				if(text.charAt(i) == '"') {
+					// up to and including the quote, which then starts the next run, so it comes out twice
+					out.writeText(text, start, i + 1);
+					start = i;
+				}
+			}
+			out.writeText(text, start, text.length()).write('"');
+		} else {
+			out.writeText(text);
+		}
 	}
 
 }
 
 /**
  * An Excel writer implementing the WritingStrategy interface. It writes data as
- * Excel.
+ * Excel, an xlsx workbook streamed straight into the zip entry of its sheet.
+ * Rows are encoded into a small buffer and go on to the deflater as it fills, so only the last few hundred rows are
+ * ever in memory. A sheet holds up to 1,048,576 rows, larger reports continue on the next sheet.
+ * Text goes into the shared strings table, which is spilled to a temp file while the sheets are written and copied
+ * into the workbook at the end. No third party library is needed.
  */
 class ExcelWriter implements WritingStrategy {
+	/**
+	 * Rows one worksheet can hold, the header row included
+	 */
+	static final int MAX_SHEET_ROWS = 1_048_576;
+	private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+	private static final String MAIN_NAMESPACE = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+	private static final String RELATIONSHIPS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+	private static final String CONTENT_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.";
+
+	private final int compressionLevel;
+	private final int sharedStringCacheSize;
+
+	ExcelWriter() {
+		this(Deflater.BEST_SPEED, 4096);
+	}
+
+	/**
+	 * @param compressionLevel deflate level of the zip entries
+	 * @param sharedStringCacheSize most recently used texts remembered to reuse their shared string
+	 */
+	ExcelWriter(int compressionLevel, int sharedStringCacheSize) {
+		this.compressionLevel = compressionLevel;
+		this.sharedStringCacheSize = sharedStringCacheSize;
+	}
 
 	@Override
-	public void print() {
-		System.out.println("Printing excel...");
+	public long write(RecordSource records, WritableByteChannel channel) throws IOException {
+		// the deflater writes in 512 byte pieces, unbuffered every one of them would be a write to the channel
+		BufferedOutputStream buffered = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+		ZipOutputStream zip = new ZipOutputStream(buffered);
+		zip.setLevel(compressionLevel);
+		ChannelOutput out = new ChannelOutput(Channels.newChannel(zip), 64 * 1024);
+		Path stringsFile = Files.createTempFile("sharedStrings", ".xml");
+		try (FileChannel stringsChannel = FileChannel.open(stringsFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+			SharedStringsTable strings = new SharedStringsTable(new ChannelOutput(stringsChannel, 64 * 1024), sharedStringCacheSize);
+			String[] fieldNames = records.getFieldNames();
+			int sheets = 0;
+			int sheetRows = MAX_SHEET_ROWS;
+			long count = 0;
+			for (Iterator<? extends WritingRecord> iterator = records.iterator(); iterator.hasNext(); count++) {
+				if(sheetRows == MAX_SHEET_ROWS) {
+					if(sheets > 0) {
+						endSheet(zip, out);
+					}
+					startSheet(zip, out, ++sheets, fieldNames, strings);
+					sheetRows = 1;
+				}
+				WritingRecord record = iterator.next();
+				out.writeAscii("<row r=\"").writeLong(++sheetRows).writeAscii("\">");
+				for (int i = 0; i < record.getFieldCount(); i++) {
+					switch (record.getFieldType(i)) {
+					case LONG:
+						out.writeAscii("<c><v>").writeLong(record.getLong(i)).writeAscii("</v></c>");
+						break;
+					case DOUBLE:
+						out.writeAscii("<c><v>").writeDouble(record.getDouble(i)).writeAscii("</v></c>");
+						break;
+					default:
+						out.writeAscii("<c t=\"s\"><v>").writeLong(strings.indexOf(record.getText(i))).writeAscii("</v></c>");
+					}
+				}
+				out.writeAscii("</row>\n");
+			}
+			if(sheets == 0) {
+				startSheet(zip, out, ++sheets, fieldNames, strings);
+			}
+			endSheet(zip, out);
+			writeSharedStrings(zip, out, strings, stringsChannel);
+			writePackageParts(zip, out, sheets);
+			// finish, not close, the channel belongs to the caller
+			zip.finish();
+			buffered.flush();
+			return count;
+		}
+	}
+
+	private void startSheet(ZipOutputStream zip, ChannelOutput out, int sheet, String[] fieldNames, SharedStringsTable strings) throws IOException {
+		zip.putNextEntry(new ZipEntry("xl/worksheets/sheet" + sheet + ".xml"));
+		out.writeAscii(XML_HEADER).writeAscii("<worksheet xmlns=\"" + MAIN_NAMESPACE + "\"><sheetData>\n<row r=\"1\">");
+		for (String fieldName : fieldNames) {
+			out.writeAscii("<c t=\"s\"><v>").writeLong(strings.indexOf(fieldName)).writeAscii("</v></c>");
+		}
+		out.writeAscii("</row>\n");
+	}
+
+	private void endSheet(ZipOutputStream zip, ChannelOutput out) throws IOException {
+		out.writeAscii("</sheetData></worksheet>\n");
+		out.flush();
+		zip.closeEntry();
+	}
+
+	private void writeSharedStrings(ZipOutputStream zip, ChannelOutput out, SharedStringsTable strings, FileChannel stringsChannel) throws IOException {
+		strings.flush();
+		zip.putNextEntry(new ZipEntry("xl/sharedStrings.xml"));
+		out.writeAscii(XML_HEADER).writeAscii("<sst xmlns=\"" + MAIN_NAMESPACE + "\" count=\"" + strings.getCount() + "\" uniqueCount=\""
+				+ strings.getUniqueCount() + "\">\n");
+		out.flush();
+		WritableByteChannel target = Channels.newChannel(zip);
+		for (long position = 0, size = stringsChannel.size(); position < size;) {
+			position += stringsChannel.transferTo(position, size - position, target);
+		}
+		out.writeAscii("</sst>\n");
+		out.flush();
+		zip.closeEntry();
+	}
+
+	private void writePackageParts(ZipOutputStream zip, ChannelOutput out, int sheets) throws IOException {
+		StringBuilder types = new StringBuilder(XML_HEADER).append("<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">")
+				.append("<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>")
+				.append("<Default Extension=\"xml\" ContentType=\"application/xml\"/>")
+				.append("<Override PartName=\"/xl/workbook.xml\" ContentType=\"" + CONTENT_TYPE + "sheet.main+xml\"/>")
+				.append("<Override PartName=\"/xl/sharedStrings.xml\" ContentType=\"" + CONTENT_TYPE + "sharedStrings+xml\"/>")
+				.append("<Override PartName=\"/xl/styles.xml\" ContentType=\"" + CONTENT_TYPE + "styles+xml\"/>");
+		StringBuilder workbook = new StringBuilder(XML_HEADER).append("<workbook xmlns=\"" + MAIN_NAMESPACE + "\" xmlns:r=\"" + RELATIONSHIPS + "\"><sheets>");
+		StringBuilder workbookRels = new StringBuilder(XML_HEADER).append("<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">");
+		for (int sheet = 1; sheet <= sheets; sheet++) {
+			types.append("<Override PartName=\"/xl/worksheets/sheet" + sheet + ".xml\" ContentType=\"" + CONTENT_TYPE + "worksheet+xml\"/>");
+			workbook.append("<sheet name=\"Report" + sheet + "\" sheetId=\"" + sheet + "\" r:id=\"rId" + sheet + "\"/>");
+			workbookRels.append("<Relationship Id=\"rId" + sheet + "\" Type=\"" + RELATIONSHIPS + "/worksheet\" Target=\"worksheets/sheet" + sheet + ".xml\"/>");
+		}
+		workbookRels.append("<Relationship Id=\"rId" + (sheets + 1) + "\" Type=\"" + RELATIONSHIPS + "/sharedStrings\" Target=\"sharedStrings.xml\"/>")
+				.append("<Relationship Id=\"rId" + (sheets + 2) + "\" Type=\"" + RELATIONSHIPS + "/styles\" Target=\"styles.xml\"/>");
+		writeEntry(zip, out, "[Content_Types].xml", types.append("</Types>"));
+		writeEntry(zip, out, "_rels/.rels", XML_HEADER + "<Relationships xmlns=\"http://schemas.openxmlformats.org/package/2006/relationships\">"
+				+ "<Relationship Id=\"rId1\" Type=\"" + RELATIONSHIPS + "/officeDocument\" Target=\"xl/workbook.xml\"/></Relationships>");
+		writeEntry(zip, out, "xl/workbook.xml", workbook.append("</sheets></workbook>"));
+		writeEntry(zip, out, "xl/_rels/workbook.xml.rels", workbookRels.append("</Relationships>"));
+		writeEntry(zip, out, "xl/styles.xml", XML_HEADER + "<styleSheet xmlns=\"" + MAIN_NAMESPACE + "\">"
+				+ "<fonts count=\"1\"><font><sz val=\"11\"/><name val=\"Calibri\"/></font></fonts>"
+				+ "<fills count=\"2\"><fill><patternFill patternType=\"none\"/></fill><fill><patternFill patternType=\"gray125\"/></fill></fills>"
+				+ "<borders count=\"1\"><border><left/><right/><top/><bottom/><diagonal/></border></borders>"
+				+ "<cellStyleXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>"
+				+ "<cellXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\"/></cellXfs>"
+				+ "<cellStyles count=\"1\"><cellStyle name=\"Normal\" xfId=\"0\" builtinId=\"0\"/></cellStyles></styleSheet>");
+	}
+
+	private void writeEntry(ZipOutputStream zip, ChannelOutput out, String name, CharSequence content) throws IOException {
+		zip.putNextEntry(new ZipEntry(name));
+		out.writeText(content);
+		out.flush();
+		zip.closeEntry();
+	}
+
+	/**
+	 * Escapes the markup characters and drops the control characters XML 1.0 does not allow at all, which would make the
+	 * workbook unreadable. The text itself is returned when it needs neither
+	 */
+	static CharSequence escapeXml(CharSequence text) {
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if(c == '<' || c == '>' || c == '&' || c == '"' || !isXmlChar(c)) {
+				StringBuilder escaped = new StringBuilder(text.length() + 16).append(text, 0, i);
+				for (int j = i; j < text.length(); j++) {
+					char next = text.charAt(j);
+					switch (next) {
+					case '<':
+						escaped.append("&lt;");
+						break;
+					case '>':
+						escaped.append("&gt;");
+						break;
+					case '&':
+						escaped.append("&amp;");
+						break;
+					case '"':
+						escaped.append("&quot;");
+						break;
+					default:
+						if(isXmlChar(next)) {
+							escaped.append(next);
+						}
+					}
+				}
+				return escaped;
+			}
+		}
+		return text;
+	}
+
+	private static boolean isXmlChar(char c) {
+		return c >= 0x20 ? c != 0xFFFE && c != 0xFFFF : c == '\t' || c == '\n' || c == '\r';
 	}
 
 }
 
+/**
+ * The shared strings of a workbook. Each text is written out as soon as it is first seen and cells refer to it by index.
+ * Only the most recently used texts are remembered, so memory stays bounded: a text that was forgotten is simply added
+ * again under a new index, which costs a little file size and nothing else.
+ */
+class SharedStringsTable {
+	private final ChannelOutput out;
+	private final Map<String, Integer> recent;
+	private int uniqueCount;
+	private long count;
+	private long hits;
+
+	SharedStringsTable(ChannelOutput out, int cacheSize) {
+		this.out = out;
+		this.recent = new LinkedHashMap<String, Integer>(Math.min(cacheSize, 1024), 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Index of the text in the table, adding it when it is not among the recent ones
+	 */
+	public int indexOf(CharSequence text) throws IOException {
+		count++;
+		String key = text.toString();
+		Integer index = recent.get(key);
+		if(index != null) {
+			hits++;
+			return index;
+		}
+		recent.put(key, uniqueCount);
+		boolean preserve = !key.isEmpty() && (Character.isWhitespace(key.charAt(0)) || Character.isWhitespace(key.charAt(key.length() - 1)));
+		out.writeAscii(preserve ? "<si><t xml:space=\"preserve\">" : "<si><t>").writeText(ExcelWriter.escapeXml(key)).writeAscii("</t></si>\n");
+		return uniqueCount++;
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Text cells written
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Entries in the table
+	 */
+	public int getUniqueCount() {
+		return uniqueCount;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+}
+
+/**
+ * Peak heap and rows/s of the xlsx writer at 100K, 1M and 10M rows. Run it with a small heap, eg. -Xmx32m, to see
+ * the row count makes no difference to the memory needed
+ */
+class ExcelWriterBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		HeapPeakMeter heap = new HeapPeakMeter();
+		// warm up
+		StrategyBenchmarks.writeToTempFile(new ExcelWriter(), new SampleRecordSource(200_000), ".xlsx");
+		System.out.printf("max heap %d MB%n", Runtime.getRuntime().maxMemory() / (1024 * 1024));
+		for (long rows : new long[] { 100_000, 1_000_000, 10_000_000 }) {
+			heap.reset();
+			long startNanos = System.nanoTime();
+			long fileSize = StrategyBenchmarks.writeToTempFile(new ExcelWriter(), new SampleRecordSource(rows), ".xlsx");
+			long elapsedNanos = System.nanoTime() - startNanos;
+			System.out.printf("%,11d rows: %,10.0f rows/s, file %,6.1f MB, peak heap %,5.1f MB%n", rows, rows * 1e9 / elapsedNanos,
+					fileSize / (1024.0 * 1024), heap.getPeakBytes() / (1024.0 * 1024));
+		}
+	}
+}
+
 /**
  * A PDF writer implementing the WritingStrategy interface. It writes data as
- * PDF.
+ * PDF, one line per record in fixed width columns. Every page is Flate compressed and written out as soon as it is
+ * full, together with its page object. The cross reference entries go to a temp file as the objects are written and
+ * are copied into the xref table at the end, so memory depends on the size of a page, not of the document.
  */
 class PdfWriter implements WritingStrategy {
+	static final int LINES_PER_PAGE = 64;
+	private static final int COLUMN_WIDTH = 16;
+	// objects 1 to 3 are the catalog, the page tree and the font, pages start at 4
+	private static final int PAGES_OBJECT = 2;
+	private static final int FIRST_PAGE_OBJECT = 4;
+	// page states kept for reuse, writes running at the same time beyond this get one that is ended afterwards
+	private static final int POOLED_PAGES = Runtime.getRuntime().availableProcessors();
+
+	private final int compressionLevel;
+	// owned by the writer like TextWriter's outputs, so their deflaters go with it and not with the threads that used them
+	private final ArrayBlockingQueue<PageState> pages = new ArrayBlockingQueue<>(POOLED_PAGES);
+
+	PdfWriter() {
+		this(Deflater.BEST_SPEED);
+	}
+
+	PdfWriter(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Pages a document of the given number of records takes, the header line included
+	 */
+	static long pageCount(long records) {
+		return Math.max(1, (records + LINES_PER_PAGE) / LINES_PER_PAGE);
+	}
 
 	@Override
-	public void print() {
-		System.out.println("Printing PDF...");
+	public long write(RecordSource records, WritableByteChannel channel) throws IOException {
+		ChannelOutput out = new ChannelOutput(channel, 64 * 1024);
+		PageState page = pages.poll();
+		if(page == null) {
+			page = new PageState(compressionLevel);
+		}
+		Path xrefFile = Files.createTempFile("xref", ".txt");
+		try (FileChannel xrefChannel = FileChannel.open(xrefFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+			ChannelOutput xref = new ChannelOutput(xrefChannel, 16 * 1024);
+			out.writeAscii("%PDF-1.4\n");
+			long catalogOffset = out.getPosition();
+			out.writeAscii("1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+			writeXrefEntry(xref, out.getPosition());
+			out.writeAscii("3 0 obj\n<< /Type /Font /Subtype /Type1 /BaseFont /Courier /Encoding /WinAnsiEncoding >>\nendobj\n");
+			int nextObject = FIRST_PAGE_OBJECT;
+			int lines = 0;
+			long count = 0;
+			page.start();
+			writeHeader(page, records.getFieldNames());
+			lines++;
+			for (Iterator<? extends WritingRecord> iterator = records.iterator(); iterator.hasNext(); count++) {
+				writeRecord(page, iterator.next());
+				if(++lines == LINES_PER_PAGE) {
+					writePage(out, xref, page, nextObject);
+					nextObject += 2;
+					lines = 0;
+					page.start();
+				}
+			}
+			if(lines > 0 || nextObject == FIRST_PAGE_OBJECT) {
+				writePage(out, xref, page, nextObject);
+				nextObject += 2;
+			}
+			long pagesOffset = out.getPosition();
+			out.writeAscii("2 0 obj\n<< /Type /Pages /Kids [");
+			for (int object = FIRST_PAGE_OBJECT + 1; object < nextObject; object += 2) {
+				out.writeLong(object).writeAscii(" 0 R ");
+			}
+			out.writeAscii("] /Count ").writeLong((nextObject - FIRST_PAGE_OBJECT) / 2).writeAscii(" >>\nendobj\n");
+			long xrefOffset = out.getPosition();
+			out.writeAscii("xref\n0 ").writeLong(nextObject).writeAscii("\n0000000000 65535 f \n");
+			writeXrefEntry(out, catalogOffset);
+			writeXrefEntry(out, pagesOffset);
+			xref.flush();
+			out.flush();
+			for (long position = 0, size = xrefChannel.size(); position < size;) {
+				position += xrefChannel.transferTo(position, size - position, channel);
+			}
+			out.writeAscii("trailer\n<< /Size ").writeLong(nextObject).writeAscii(" /Root 1 0 R >>\nstartxref\n").writeLong(xrefOffset).writeAscii("\n%%EOF\n");
+			out.flush();
+			return count;
+		} finally {
+			if(!pages.offer(page)) {
+				page.end();
+			}
+		}
+	}
+
+	/**
+	 * Compresses the page content and writes it with its page object
+	 */
+	private void writePage(ChannelOutput out, ChannelOutput xref, PageState page, int contentObject) throws IOException {
+		page.finish();
+		int length = page.deflate();
+		writeXrefEntry(xref, out.getPosition());
+		out.writeLong(contentObject).writeAscii(" 0 obj\n<< /Length ").writeLong(length).writeAscii(" /Filter /FlateDecode >>\nstream\n")
+				.write(page.getCompressed(), 0, length).writeAscii("\nendstream\nendobj\n");
+		writeXrefEntry(xref, out.getPosition());
+		out.writeLong(contentObject + 1).writeAscii(" 0 obj\n<< /Type /Page /Parent 2 0 R /MediaBox [0 0 612 792] /Contents ").writeLong(contentObject)
+				.writeAscii(" 0 R /Resources << /Font << /F1 3 0 R >> >> >>\nendobj\n");
 	}
 
+	/**
+	 * One 20 byte cross reference entry, the offset padded to 10 digits
+	 */
+	private void writeXrefEntry(ChannelOutput out, long offset) throws IOException {
+		for (long digit = 1_000_000_000L; digit > 0; digit /= 10) {
+			out.write('0' + (int) (offset / digit % 10));
+		}
+		out.writeAscii(" 00000 n \n");
+	}
+
+	private void writeHeader(PageState page, String[] fieldNames) {
+		page.write('(');
+		for (int i = 0; i < fieldNames.length; i++) {
+			writeField(page, fieldNames[i], i < fieldNames.length - 1);
+		}
+		endLine(page);
+	}
+
+	/**
+	 * One line per record. Numbers are formatted by the page's ChannelOutput, digit by digit into its scratch buffer, so a
+	 * record allocates nothing
+	 */
+	private void writeRecord(PageState page, WritingRecord record) throws IOException {
+		page.write('(');
+		int fieldCount = record.getFieldCount();
+		for (int i = 0; i < fieldCount; i++) {
+			boolean padded = i < fieldCount - 1;
+			switch (record.getFieldType(i)) {
+			case LONG:
+				page.numbers.reset(null).writeLong(record.getLong(i));
+				writeNumber(page, padded);
+				break;
+			case DOUBLE:
+				page.numbers.reset(null).writeDouble(record.getDouble(i));
+				writeNumber(page, padded);
+				break;
+			default:
+				writeField(page, record.getText(i), padded);
+			}
+		}
+		endLine(page);
+	}
+
+	/**
+	 * A text field cut to the column width. Characters outside Latin-1 are shown as '?'
+	 */
+	private void writeField(PageState page, CharSequence field, boolean padded) {
+		int width = 0;
+		for (int j = 0; j < field.length() && width < COLUMN_WIDTH - 1; j++, width++) {
+			char c = field.charAt(j);
+			if(c == '(' || c == ')' || c == '\\') {
+				page.write('\\');
+			}
+			page.write(c < 0x100 ? c : '?');
+		}
+		pad(page, width, padded);
+	}
+
+	/**
+	 * The number just formatted into the page's digits, plain ASCII that needs no escaping
+	 */
+	private void writeNumber(PageState page, boolean padded) {
+		int width = Math.min(page.digits.position(), COLUMN_WIDTH - 1);
+		page.write(page.digits.array(), 0, width);
+		pad(page, width, padded);
+	}
+
+	private void pad(PageState page, int width, boolean padded) {
+		for (; width < COLUMN_WIDTH && padded; width++) {
+			page.write(' ');
+		}
+	}
+
+	private void endLine(PageState page) {
+		page.write(')');
+		page.write(' ');
+		page.write('\'');
+		page.write('\n');
+	}
+
+	/**
+	 * The content of the page being filled and the deflater that compresses it, used by one write at a time and reused for
+	 * every page
+	 */
+	private static class PageState extends ByteArrayOutputStream {
+		private static final byte[] PAGE_START = "BT\n/F1 8 Tf\n11 TL\n36 756 Td\n".getBytes(StandardCharsets.US_ASCII);
+		private static final byte[] PAGE_END = "ET\n".getBytes(StandardCharsets.US_ASCII);
+
+		private final Deflater deflater;
+		private byte[] compressed = new byte[8 * 1024];
+		// the longest number ChannelOutput writes, Double.toString's included, fits without a flush
+		final ByteBuffer digits = ByteBuffer.allocate(32);
+		final ChannelOutput numbers = new ChannelOutput(null, digits);
+
+		PageState(int level) {
+			super(8 * 1024);
+			this.deflater = new Deflater(level);
+		}
+
+		void start() {
+			reset();
+			write(PAGE_START, 0, PAGE_START.length);
+		}
+
+		void finish() {
+			write(PAGE_END, 0, PAGE_END.length);
+		}
+
+		/**
+		 * Deflates the page content into the compressed buffer and returns its length
+		 */
+		int deflate() {
+			deflater.reset();
+			deflater.setInput(buf, 0, count);
+			deflater.finish();
+			int length = 0;
+			while(!deflater.finished()) {
+				if(length == compressed.length) {
+					compressed = Arrays.copyOf(compressed, compressed.length * 2);
+				}
+				length += deflater.deflate(compressed, length, compressed.length - length);
+			}
+			return length;
+		}
+
+		byte[] getCompressed() {
+			return compressed;
+		}
+
+		/**
+		 * Frees the deflater's native memory, the state cannot be used afterwards
+		 */
+		void end() {
+			deflater.end();
+		}
+	}
+
+}
+
+/**
+ * Pages/s and peak heap of the PDF writer for documents of growing size. Run it with a small heap, eg. -Xmx32m, to see
+ * the page count makes no difference to the memory needed
+ */
+class PdfWriterBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		HeapPeakMeter heap = new HeapPeakMeter();
+		// warm up
+		StrategyBenchmarks.writeToTempFile(new PdfWriter(), new SampleRecordSource(200_000), ".pdf");
+		System.out.printf("max heap %d MB%n", Runtime.getRuntime().maxMemory() / (1024 * 1024));
+		for (long pages : new long[] { 1_000, 10_000, 100_000 }) {
+			long rows = pages * PdfWriter.LINES_PER_PAGE - 1;
+			heap.reset();
+			long startNanos = System.nanoTime();
+			long fileSize = StrategyBenchmarks.writeToTempFile(new PdfWriter(), new SampleRecordSource(rows), ".pdf");
+			long elapsedNanos = System.nanoTime() - startNanos;
+			System.out.printf("%,8d pages: %,8.0f pages/s, %,10.0f rows/s, file %,6.1f MB, peak heap %,5.1f MB%n", PdfWriter.pageCount(rows),
+					pages * 1e9 / elapsedNanos, rows * 1e9 / elapsedNanos, fileSize / (1024.0 * 1024), heap.getPeakBytes() / (1024.0 * 1024));
+		}
+	}
+}
+
+/**
+ * How long a strategy took to write a set of records, and how much it wrote
+ */
+final class WritingReport {
+	private final String strategyName;
+	private final long rows;
+	private final long bytes;
+	private final long elapsedNanos;
+
+	WritingReport(String strategyName, long rows, long bytes, long elapsedNanos) {
+		this.strategyName = strategyName;
+		this.rows = rows;
+		this.bytes = bytes;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	public String getStrategyName() {
+		return strategyName;
+	}
+
+	public long getRows() {
+		return rows;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	public double getRowsPerSecond() {
+		return rows * 1e9 / Math.max(1, elapsedNanos);
+	}
+
+	public double getBytesPerSecond() {
+		return bytes * 1e9 / Math.max(1, elapsedNanos);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %,d rows, %,d bytes in %.1f ms, %,.0f rows/s, %.1f MB/s", strategyName, rows, bytes, elapsedNanos / 1e6,
+				getRowsPerSecond(), getBytesPerSecond() / (1024 * 1024));
+	}
+}
+
+/**
+ * Counts the bytes that go through to the channel it wraps
+ */
+class CountingByteChannel implements WritableByteChannel {
+	private final WritableByteChannel channel;
+	private long bytesWritten;
+
+	CountingByteChannel(WritableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int written = channel.write(src);
+		bytesWritten += written;
+		return written;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+}
+
+/**
+ * Takes everything and keeps nothing
+ */
+class DiscardingByteChannel implements WritableByteChannel {
+
+	@Override
+	public int write(ByteBuffer src) {
+		int length = src.remaining();
+		src.position(src.limit());
+		return length;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return true;
+	}
+
+	@Override
+	public void close() {
+	}
+}
+
+/**
+ * Collects what is written to it in a heap buffer that grows as needed. Cleared and reused for the next partition
+ */
+class MemoryChannel implements WritableByteChannel {
+	private ByteBuffer buffer;
+
+	MemoryChannel(int initialCapacity) {
+		this.buffer = ByteBuffer.allocate(initialCapacity);
+	}
+
+	@Override
+	public int write(ByteBuffer src) {
+		int length = src.remaining();
+		if(length > buffer.remaining()) {
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+			buffer.flip();
+			buffer = larger.put(buffer);
+		}
+		buffer.put(src);
+		return length;
+	}
+
+	/**
+	 * What was written since the last clear, ready to be read
+	 */
+	public ByteBuffer getContents() {
+		return buffer.duplicate().flip();
+	}
+
+	public int size() {
+		return buffer.position();
+	}
+
+	public void clear() {
+		buffer.clear();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return true;
+	}
+
+	@Override
+	public void close() {
+	}
 }
 
 /**
  * The class that does the actual writing. It takes a Strategy  interface argument and exposes a method which in-turn calls
- * the print() method in the strategy interface.
+ * the write() method in the strategy interface.
  * At runtime, we can define any type of writer (Text, Excel or PDF) and get it printed without altering any code.
  * This is possible because the Strategy interface stands as a base instance for all its sub-extensions
+ * 
+ * Every job, with its rows, bytes and duration, and every failed job is counted in the metrics registry
  */
 class WritingContext {
-	
+	private static final MetricsRegistry.Counter JOBS = MetricsRegistry.getDefault().counter("strategy.jobs");
+	private static final MetricsRegistry.Counter FAILURES = MetricsRegistry.getDefault().counter("strategy.failures");
+	private static final MetricsRegistry.Counter ROWS = MetricsRegistry.getDefault().counter("strategy.rows");
+	private static final MetricsRegistry.Counter BYTES = MetricsRegistry.getDefault().counter("strategy.bytes");
+	private static final MetricsRegistry.Histogram WRITE_NANOS = MetricsRegistry.getDefault().histogram("strategy.write.nanos");
+	// one pool per parallelism asked for, shared by every context and kept for the next job. Their workers are daemon threads
+	private static final Map<Integer, ForkJoinPool> SHARED_POOLS = new ConcurrentHashMap<>();
+
 	private WritingStrategy writingStrategy;
+	private final Executor executor;
 
 	protected WritingContext(WritingStrategy writingStrategy) {
+		this(writingStrategy, null);
+	}
+
+	/**
+	 * @param executor runs the partitions of a parallel write, null for a shared pool with as many workers as the write's parallelism
+	 */
+	protected WritingContext(WritingStrategy writingStrategy, Executor executor) {
 		super();
 		this.writingStrategy = writingStrategy;
+		this.executor = executor;
+	}
+
+	/**
+	 * Writes the records with the strategy and reports rows/s and bytes/s
+	 */
+	public WritingReport executeWriting(RecordSource records, WritableByteChannel channel) throws IOException {
+		CountingByteChannel counting = new CountingByteChannel(channel);
+		long startNanos = System.nanoTime();
+		long rows;
+		try {
+			rows = writingStrategy.write(records, counting);
+		} catch (IOException | RuntimeException e) {
+			FAILURES.increment();
+			throw e;
+		}
+		return recorded(new WritingReport(writingStrategy.getClass().getSimpleName(), rows, counting.getBytesWritten(), System.nanoTime() - startNanos));
+	}
+
+	/**
+	 * Writes the records in parallel. The records are split into partitions, each partition is encoded on a fork/join
+	 * worker into its own buffer, and the worker writes the buffer at its place in the file as soon as the partitions
+	 * before it have been encoded, with a positional write. At most twice as many partitions as workers are in memory at
+	 * a time. A strategy that can not be split this way writes the records one after the other instead.
+	 * The partitions run on the context's executor. If one fails, the writes already started are waited for before the
+	 * failure is thrown, so none of them touches the file afterwards
+	 */
+	public WritingReport executeWriting(PartitionedRecordSource records, FileChannel file, int parallelism, int partitionSize) throws IOException {
+		if(!(writingStrategy instanceof PartitionedWritingStrategy)) {
+			file.truncate(0);
+			return executeWriting(records, file);
+		}
+		PartitionedWritingStrategy strategy = (PartitionedWritingStrategy) writingStrategy;
+		long startNanos = System.nanoTime();
+		long size = records.size();
+		int partitions = (int) ((size + partitionSize - 1) / partitionSize);
+		Semaphore inFlight = new Semaphore(parallelism * 2);
+		Queue<MemoryChannel> buffers = new ConcurrentLinkedQueue<>();
+		Queue<ChannelOutput> outputs = new ConcurrentLinkedQueue<>();
+		CompletableFuture<?>[] writes = new CompletableFuture<?>[partitions];
+		Executor pool = executor != null ? executor : SHARED_POOLS.computeIfAbsent(parallelism, ForkJoinPool::new);
+		try {
+			MemoryChannel header = new MemoryChannel(1024);
+			ChannelOutput headerOut = new ChannelOutput(header, 1024);
+			strategy.writeHeader(records.getFieldNames(), headerOut);
+			headerOut.flush();
+			writeAt(file, header.getContents(), 0);
+			CompletableFuture<Long> nextOffset = CompletableFuture.completedFuture((long) header.size());
+			for (int partition = 0; partition < partitions; partition++) {
+				inFlight.acquire();
+				if(nextOffset.isCompletedExceptionally()) {
+					inFlight.release();
+					break;
+				}
+				long from = (long) partition * partitionSize;
+				long to = Math.min(size, from + partitionSize);
+				CompletableFuture<MemoryChannel> encoded = CompletableFuture.supplyAsync(() -> encode(strategy, records.iterator(from, to), buffers, outputs, partitionSize), pool);
+				// the end is worked out before the write can start, the buffer goes back to the pool after it
+				nextOffset = nextOffset.thenCombine(encoded, (position, buffer) -> position + buffer.size());
+				writes[partition] = nextOffset.thenAcceptBothAsync(encoded, (end, buffer) -> {
+					try {
+						writeAt(file, buffer.getContents(), end - buffer.size());
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					buffer.clear();
+					buffers.offer(buffer);
+				}, pool).whenComplete((done, failure) -> inFlight.release());
+			}
+			long bytes = nextOffset.join();
+			for (CompletableFuture<?> write : writes) {
+				if(write != null) {
+					write.join();
+				}
+			}
+			file.truncate(bytes);
+			return recorded(new WritingReport(strategy.getClass().getSimpleName() + " x" + parallelism, size, bytes, System.nanoTime() - startNanos));
+		} catch (InterruptedException e) {
+			FAILURES.increment();
+			awaitWrites(writes);
+			Thread.currentThread().interrupt();
+			throw new IOException("Writing was interrupted", e);
+		} catch (CompletionException e) {
+			FAILURES.increment();
+			awaitWrites(writes);
+			Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+			throw cause instanceof IOException ? (IOException) cause : new IOException("Writing failed", cause);
+		}
+	}
+
+	/**
+	 * Waits for every partition write that was started, whether it succeeds or not
+	 */
+	private static void awaitWrites(CompletableFuture<?>[] writes) {
+		for (CompletableFuture<?> write : writes) {
+			if(write != null) {
+				try {
+					write.join();
+				} catch (CompletionException | CancellationException e) {
+					// the first failure is the one reported
+				}
+			}
+		}
+	}
+
+	private static WritingReport recorded(WritingReport report) {
+		JOBS.increment();
+		ROWS.add(report.getRows());
+		BYTES.add(report.getBytes());
+		WRITE_NANOS.recordNanos(report.getElapsedNanos());
+		return report;
+	}
+
+	/**
+	 * Buffers and outputs are taken from the queues and go back for the next partition, so a job only creates as many
+	 * as it has partitions in flight
+	 */
+	private static MemoryChannel encode(PartitionedWritingStrategy strategy, Iterator<? extends WritingRecord> records, Queue<MemoryChannel> buffers,
+			Queue<ChannelOutput> outputs, int partitionSize) {
+		MemoryChannel buffer = buffers.poll();
+		if(buffer == null) {
+			buffer = new MemoryChannel(partitionSize * 32);
+		}
+		ChannelOutput out = outputs.poll();
+		if(out == null) {
+			out = new ChannelOutput(null, 64 * 1024);
+		}
+		try {
+			out.reset(buffer);
+			while(records.hasNext()) {
+				strategy.writeRecord(records.next(), out);
+			}
+			out.flush();
+			return buffer;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			out.reset(null);
+			outputs.offer(out);
+		}
+	}
+
+	private static void writeAt(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			position += file.write(buffer, position);
+		}
+	}
+}
+
+/**
+ * Scaling of the partitioned CSV writer from 1 to N workers, N being the number of cores unless given as the argument
+ */
+class ParallelWritingBenchmark {
+	private static final long ROWS = 5_000_000;
+	private static final int PARTITION_SIZE = 65_536;
+
+	public static void main(String[] args) throws IOException {
+		int maxParallelism = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		WritingContext writingContext = new WritingContext(new TextWriter());
+		PartitionedRecordSource records = new SampleRecordSource(ROWS);
+		Path file = Files.createTempFile("report", ".csv");
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			// warm up
+			writingContext.executeWriting(records, channel, maxParallelism, PARTITION_SIZE);
+			channel.truncate(0);
+			WritingReport sequential = writingContext.executeWriting(records, channel);
+			System.out.println("sequential " + sequential);
+			for (int parallelism = 1; parallelism <= maxParallelism; parallelism = parallelism < maxParallelism ? Math.min(parallelism * 2, maxParallelism) : parallelism + 1) {
+				WritingReport report = writingContext.executeWriting(records, channel, parallelism, PARTITION_SIZE);
+				System.out.printf("%s, %.2fx sequential%n", report, report.getRowsPerSecond() / sequential.getRowsPerSecond());
+			}
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+}
+
+/**
+ * A writing context that picks the strategy for each job at runtime, from what it has measured so far. Jobs are grouped
+ * into size classes by their number of records (up to 10, up to 100, ...) as the fastest strategy for small jobs need not
+ * be the fastest for large ones. Within a size class every candidate is first tried a few times, after that the one
+ * with the best recent rows/s is used, except that a bounded share of jobs still goes to a random other candidate so a
+ * candidate that got faster, or was unlucky, is noticed. The candidates must produce the same output.
+ */
+class AdaptiveWritingContext {
+	private static final int SIZE_CLASSES = 19;
+	private static final int RECENT_DECISIONS = 256;
+
+	private final WritingStrategy[] candidates;
+	private final WritingContext[] contexts;
+	private final int initialTrials;
+	private final double explorationRate;
+	private final StrategyStats[][] stats;
+	private final Deque<Decision> recentDecisions = new ArrayDeque<>();
+
+	/**
+	 * @param initialTrials jobs each candidate gets in a size class before the measurements are trusted
+	 * @param explorationRate share of the later jobs that go to a random other candidate, at most 0.5
+	 */
+	AdaptiveWritingContext(List<? extends WritingStrategy> candidates, int initialTrials, double explorationRate) {
+		if(candidates.isEmpty() || explorationRate < 0 || explorationRate > 0.5) {
+			throw new IllegalArgumentException("Needs candidates and an exploration rate from 0 to 0.5 --> " + explorationRate);
+		}
+		this.candidates = candidates.toArray(new WritingStrategy[0]);
+		this.contexts = new WritingContext[this.candidates.length];
+		this.stats = new StrategyStats[SIZE_CLASSES][this.candidates.length];
+		for (int i = 0; i < this.candidates.length; i++) {
+			contexts[i] = new WritingContext(this.candidates[i]);
+			for (int sizeClass = 0; sizeClass < SIZE_CLASSES; sizeClass++) {
+				stats[sizeClass][i] = new StrategyStats();
+			}
+		}
+		this.initialTrials = initialTrials;
+		this.explorationRate = explorationRate;
+	}
+
+	/**
+	 * Size class of a job, from its number of records. Jobs of unknown size go into class 0
+	 */
+	static int sizeClassOf(long records) {
+		int sizeClass = 0;
+		for (long limit = 10; records > limit && sizeClass < SIZE_CLASSES - 1; limit *= 10) {
+			sizeClass++;
+		}
+		return sizeClass;
+	}
+
+	/**
+	 * Writes the records with the strategy chosen for their size class and records how it did
+	 */
+	public WritingReport executeWriting(RecordSource records, WritableByteChannel channel) throws IOException {
+		int sizeClass = sizeClassOf(records instanceof PartitionedRecordSource ? ((PartitionedRecordSource) records).size() : 0);
+		int best = bestCandidate(sizeClass);
+		int chosen = best;
+		boolean explored = false;
+		int leastTried = leastTriedCandidate(sizeClass);
+		if(stats[sizeClass][leastTried].getRuns() < initialTrials) {
+			chosen = leastTried;
+		} else if(candidates.length > 1 && ThreadLocalRandom.current().nextDouble() < explorationRate) {
+			chosen = (best + 1 + ThreadLocalRandom.current().nextInt(candidates.length - 1)) % candidates.length;
+			explored = true;
+		}
+		WritingReport report = contexts[chosen].executeWriting(records, channel);
+		stats[sizeClass][chosen].record(report);
+		synchronized (recentDecisions) {
+			if(recentDecisions.size() == RECENT_DECISIONS) {
+				recentDecisions.removeFirst();
+			}
+			recentDecisions.addLast(new Decision(sizeClass, chosen, chosen == best && !explored, report));
+		}
+		return report;
+	}
+
+	/**
+	 * Index of the candidate with the best recent rows/s in the size class
+	 */
+	public int bestCandidate(int sizeClass) {
+		int best = 0;
+		for (int i = 1; i < candidates.length; i++) {
+			if(stats[sizeClass][i].getMeanRowsPerSecond() > stats[sizeClass][best].getMeanRowsPerSecond()) {
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	private int leastTriedCandidate(int sizeClass) {
+		int least = 0;
+		for (int i = 1; i < candidates.length; i++) {
+			if(stats[sizeClass][i].getRuns() < stats[sizeClass][least].getRuns()) {
+				least = i;
+			}
+		}
+		return least;
+	}
+
+	public WritingStrategy getCandidate(int index) {
+		return candidates[index];
+	}
+
+	public StrategyStats getStats(int sizeClass, int candidate) {
+		return stats[sizeClass][candidate];
 	}
-	
-	public void executeWriting() {
-		writingStrategy.print();
+
+	/**
+	 * The last decisions, oldest first
+	 */
+	public List<Decision> getRecentDecisions() {
+		synchronized (recentDecisions) {
+			return new ArrayList<>(recentDecisions);
+		}
+	}
+
+	/**
+	 * The runs and recent rows/s of each candidate, for every size class that has seen jobs, with an arrow at the one in use
+	 */
+	public String describe() {
+		StringBuilder description = new StringBuilder();
+		for (int sizeClass = 0; sizeClass < SIZE_CLASSES; sizeClass++) {
+			long runs = 0;
+			for (StrategyStats candidateStats : stats[sizeClass]) {
+				runs += candidateStats.getRuns();
+			}
+			if(runs == 0) {
+				continue;
+			}
+			int best = bestCandidate(sizeClass);
+			description.append(String.format("up to %,d records:%n", (long) Math.pow(10, sizeClass + 1)));
+			for (int i = 0; i < candidates.length; i++) {
+				description.append(String.format("  %s %-30s %4d runs %,12.0f rows/s%n", i == best ? "->" : "  ", candidates[i],
+						stats[sizeClass][i].getRuns(), stats[sizeClass][i].getMeanRowsPerSecond()));
+			}
+		}
+		return description.toString();
+	}
+
+	/**
+	 * Runs and throughput of one candidate in one size class. The throughput is a moving average that weighs recent
+	 * jobs most, so a candidate that was measured before the JIT got to it is not held back by that for ever
+	 */
+	static class StrategyStats {
+		private static final double WEIGHT = 0.2;
+
+		private long runs;
+		private double meanRowsPerSecond;
+		private long totalElapsedNanos;
+
+		synchronized void record(WritingReport report) {
+			runs++;
+			meanRowsPerSecond = runs == 1 ? report.getRowsPerSecond() : meanRowsPerSecond + WEIGHT * (report.getRowsPerSecond() - meanRowsPerSecond);
+			totalElapsedNanos += report.getElapsedNanos();
+		}
+
+		public synchronized long getRuns() {
+			return runs;
+		}
+
+		public synchronized double getMeanRowsPerSecond() {
+			return meanRowsPerSecond;
+		}
+
+		public synchronized long getMeanElapsedNanos() {
+			return runs == 0 ? 0 : totalElapsedNanos / runs;
+		}
+	}
+
+	/**
+	 * Which candidate a job went to, and whether it was the best known one at the time
+	 */
+	static final class Decision {
+		private final int sizeClass;
+		private final int candidate;
+		private final boolean exploited;
+		private final WritingReport report;
+
+		Decision(int sizeClass, int candidate, boolean exploited, WritingReport report) {
+			this.sizeClass = sizeClass;
+			this.candidate = candidate;
+			this.exploited = exploited;
+			this.report = report;
+		}
+
+		public int getSizeClass() {
+			return sizeClass;
+		}
+
+		public int getCandidate() {
+			return candidate;
+		}
+
+		/**
+		 * False for the initial trials and the exploration jobs
+		 */
+		public boolean isExploited() {
+			return exploited;
+		}
+
+		public WritingReport getReport() {
+			return report;
+		}
+	}
+}
+
+/**
+ * Gives the adaptive context CSV jobs of random size and three text writers that only differ in their buffer size,
+ * then shows what it measured, which one it settled on for each size class, and how often the jobs went there
+ */
+class AdaptiveWritingBenchmark {
+	private static final int JOBS = 600;
+
+	public static void main(String[] args) throws IOException {
+		List<TextWriter> candidates = Arrays.asList(new TextWriter(256), new TextWriter(8 * 1024), new TextWriter(64 * 1024));
+		AdaptiveWritingContext writingContext = new AdaptiveWritingContext(candidates, 3, 0.1);
+		Path file = Files.createTempFile("report", ".csv");
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			for (int job = 0; job < JOBS; job++) {
+				long rows = (long) Math.pow(10, 2 + ThreadLocalRandom.current().nextDouble() * 3.5);
+				channel.truncate(0).position(0);
+				writingContext.executeWriting(new SampleRecordSource(rows), channel);
+			}
+		} finally {
+			Files.deleteIfExists(file);
+		}
+		System.out.print(writingContext.describe());
+		int exploited = 0;
+		int onBest = 0;
+		List<AdaptiveWritingContext.Decision> decisions = writingContext.getRecentDecisions();
+		for (AdaptiveWritingContext.Decision decision : decisions) {
+			if(decision.isExploited()) {
+				exploited++;
+			}
+			if(decision.getCandidate() == writingContext.bestCandidate(decision.getSizeClass())) {
+				onBest++;
+			}
+		}
+		System.out.printf("last %d jobs: %d on the best known candidate at the time, %d on today's best%n", decisions.size(), exploited, onBest);
+	}
+}
+
+/**
+ * Bytes allocated per record by the text writer once it is warmed up, measured with the thread's allocation counter.
+ * The records come from a reused row and the output is thrown away, so all that is counted is the encoding
+ */
+class TextWriterAllocationBenchmark {
+	private static final long ROWS = 1_000_000;
+
+	public static void main(String[] args) throws IOException {
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		TextWriter writer = new TextWriter();
+		DiscardingByteChannel channel = new DiscardingByteChannel();
+		for (int run = 0; run < 5; run++) {
+			long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+			long startNanos = System.nanoTime();
+			writer.write(new SampleRecordSource(ROWS), channel);
+			long elapsedNanos = System.nanoTime() - startNanos;
+			long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+			System.out.printf("run %d: %,10.0f rows/s, %,d bytes allocated, %.4f bytes per record%n", run + 1, ROWS * 1e9 / elapsedNanos, allocated,
+					(double) allocated / ROWS);
+		}
+	}
+}
+
+/**
+ * Peak heap use since the last reset, summed over the heap memory pools
+ */
+class HeapPeakMeter {
+	private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+
+	HeapPeakMeter() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP) {
+				heapPools.add(pool);
+			}
+		}
+	}
+
+	/**
+	 * Collects garbage first, so the peak that follows is the run's own
+	 */
+	public void reset() {
+		System.gc();
+		heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+	}
+
+	public long getPeakBytes() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : heapPools) {
+			peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+}
+
+/**
+ * Helpers shared by the writing benchmarks
+ */
+class StrategyBenchmarks {
+
+	/**
+	 * Writes the records to a temp file, deletes it and returns its size
+	 */
+	static long writeToTempFile(WritingStrategy strategy, RecordSource records, String suffix) throws IOException {
+		Path file = Files.createTempFile("report", suffix);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			strategy.write(records, channel);
+			return channel.size();
+		} finally {
+			Files.deleteIfExists(file);
+		}
 	}
 }
@@ -1,5 +1,8 @@
 package com.designpatterns.creational;
 
+import com.designpatterns.jfr.PatternEvents;
+import com.designpatterns.output.Output;
+
 /**
 * Modified Factory Pattern example
 **/
@@ -13,7 +16,7 @@ public class AbstractFactoryPattern {
 			studentFactory.getStudent("bachelorStudent").getStudentDetails();
 			employeeFactory.getEmployee("contractEmployee").getEmployeeDetails();
 		} catch (Exception e) {
-			System.out.println("Exception occured while creating bean:"+ e.getMessage());
+			Output.println("Exception occured while creating bean:"+ e.getMessage());
 		}
 
 	}
@@ -32,7 +35,7 @@ class BachelorStudent implements Student {
 
 	@Override
 	public void getStudentDetails() {
-		System.out.println("Created Bachelor Student");
+		Output.println("Created Bachelor Student");
 	}
 	
 }
@@ -41,7 +44,7 @@ class MasterStudent implements Student {
 
 	@Override
 	public void getStudentDetails() {
-		System.out.println("Created Master Student");
+		Output.println("Created Master Student");
 	}
 	
 }
@@ -50,7 +53,7 @@ class FullTimeEmployee implements Employee {
 
 	@Override
 	public void getEmployeeDetails() {
-		System.out.println("Created Full Time Employee");		
+		Output.println("Created Full Time Employee");		
 	}
 	
 }
@@ -59,7 +62,7 @@ class ContractEmployee implements Employee {
 
 	@Override
 	public void getEmployeeDetails() {
-		System.out.println("Created Contract Employee");
+		Output.println("Created Contract Employee");
 	}
 	
 }
@@ -72,6 +75,21 @@ class StudentBeanFactory extends AbstractBeanFactory {
 
 	@Override
 	public Student getStudent(String beanType) throws Exception {
+		if(!PatternEvents.FactoryCreation.isRecording()) {
+			return createStudent(beanType);
+		}
+		PatternEvents.FactoryCreation event = new PatternEvents.FactoryCreation();
+		event.begin();
+		Student student = null;
+		try {
+			student = createStudent(beanType);
+			return student;
+		} finally {
+			event.finish(getClass(), beanType, student);
+		}
+	}
+	
+	private Student createStudent(String beanType) throws Exception {
 		if(beanType.equalsIgnoreCase("bachelorStudent"))
 		{
 			return new BachelorStudent();
@@ -102,6 +120,21 @@ class EmployeeBeanFactory extends AbstractBeanFactory {
 
 	@Override
 	public Employee getEmployee(String beanType) throws Exception {
+		if(!PatternEvents.FactoryCreation.isRecording()) {
+			return createEmployee(beanType);
+		}
+		PatternEvents.FactoryCreation event = new PatternEvents.FactoryCreation();
+		event.begin();
+		Employee employee = null;
+		try {
+			employee = createEmployee(beanType);
+			return employee;
+		} finally {
+			event.finish(getClass(), beanType, employee);
+		}
+	}
+	
+	private Employee createEmployee(String beanType) throws Exception {
 		if(beanType.equalsIgnoreCase("fullTimeEmployee"))
 		{
 			return new FullTimeEmployee();		}
@@ -1,5 +1,8 @@
 package com.designpatterns.creational;
 
+import com.designpatterns.jfr.PatternEvents;
+import com.designpatterns.output.Output;
+
 public class AbstractFactoryPatternV1 {
 
 	public static void main(String[] args) {
@@ -11,7 +14,7 @@ public class AbstractFactoryPatternV1 {
 			nokiaMobileFactory.getNokiaMobile("Lumia920").getNokiaMobileDetails();
 			nokiaMobileFactory.getSamsungMobile("samsungGalaxy");
 		} catch (Exception e) {
-			System.out.println("Exception occured while creating bean:"+ e.getMessage());
+			Output.println("Exception occured while creating bean:"+ e.getMessage());
 		}
 	}
 
@@ -29,7 +32,7 @@ class SamsungGalaryGrand implements Samsung {
 
 	@Override
 	public void getSamsungMobileDetails() {
-		System.out.println("Created Samsung Galaxy Grand");
+		Output.println("Created Samsung Galaxy Grand");
 	}
 	
 }
@@ -38,7 +41,7 @@ class SamsungNote implements Samsung {
 
 	@Override
 	public void getSamsungMobileDetails() {
-		System.out.println("Created Samsung Note");
+		Output.println("Created Samsung Note");
 	}
 	
 }
@@ -47,7 +50,7 @@ class NokiaLumia implements Nokia {
 
 	@Override
 	public void getNokiaMobileDetails() {
-		System.out.println("Create Nokia Lumia");
+		Output.println("Create Nokia Lumia");
 	}
 	
 }
@@ -56,7 +59,7 @@ class NokiaGSeries implements Nokia {
 
 	@Override
 	public void getNokiaMobileDetails() {
-		System.out.println("Created Nokia G Series");
+		Output.println("Created Nokia G Series");
 	}
 	
 }
@@ -70,6 +73,21 @@ class SamsungMobileFactory extends AbstractMobileFactory {
 
 	@Override
 	public Samsung getSamsungMobile(String mobileType) throws Exception {
+		if(!PatternEvents.FactoryCreation.isRecording()) {
+			return createSamsungMobile(mobileType);
+		}
+		PatternEvents.FactoryCreation event = new PatternEvents.FactoryCreation();
+		event.begin();
+		Samsung mobile = null;
+		try {
+			mobile = createSamsungMobile(mobileType);
+			return mobile;
+		} finally {
+			event.finish(getClass(), mobileType, mobile);
+		}
+	}
+	
+	private Samsung createSamsungMobile(String mobileType) throws Exception {
 		if("samsungNote".equalsIgnoreCase(mobileType)){
 			return new SamsungNote();
 		} else if("samsungGalaxy".equalsIgnoreCase(mobileType)) {
@@ -81,7 +99,7 @@ class SamsungMobileFactory extends AbstractMobileFactory {
 
 	@Override
 	public Nokia getNokiaMobile(String mobileType) {
-		System.out.println("Invalid Implementation");
+		Output.println("Invalid Implementation");
 		return null;
 	}
 	
@@ -91,12 +109,27 @@ class NokiaMobileFactory extends AbstractMobileFactory {
 
 	@Override
 	public Samsung getSamsungMobile(String mobileType) throws Exception {
-		System.out.println("Invalid Implementation");
+		Output.println("Invalid Implementation");
 		return null;
 	}
 
 	@Override
 	public Nokia getNokiaMobile(String mobileType) throws Exception {
+		if(!PatternEvents.FactoryCreation.isRecording()) {
+			return createNokiaMobile(mobileType);
+		}
+		PatternEvents.FactoryCreation event = new PatternEvents.FactoryCreation();
+		event.begin();
+		Nokia mobile = null;
+		try {
+			mobile = createNokiaMobile(mobileType);
+			return mobile;
+		} finally {
+			event.finish(getClass(), mobileType, mobile);
+		}
+	}
+	
+	private Nokia createNokiaMobile(String mobileType) throws Exception {
 		if(mobileType.equalsIgnoreCase("Lumia920"))
 		{
 			return new NokiaLumia();
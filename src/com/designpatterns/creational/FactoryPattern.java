@@ -1,5 +1,8 @@
 package com.designpatterns.creational;
 
+import com.designpatterns.jfr.PatternEvents;
+import com.designpatterns.output.Output;
+
 /**
  * A Factory in general, is a place where something is created. The same applies here in programming too.
  * Thus it is a creational pattern.
@@ -27,7 +30,7 @@ public class FactoryPattern {
 			factory.getBean("CountryBean").createBean();
 			factory.getBean("NonExistingBean").createBean();
 		} catch (Exception e) {
-			System.out.println("Exception occured while creating bean:"+ e.getMessage());
+			Output.println("Exception occured while creating bean:"+ e.getMessage());
 		}
 	}
 
@@ -49,7 +52,7 @@ class StudentBean implements Bean {
 	public StudentBean() {};
 	
 	public StudentBean(String name, int age, String course) {
-		System.out.println("Creating student bean "+name+" -- "+age+" -- "+course);
+		Output.println("Creating student bean "+name+" -- "+age+" -- "+course);
 	}
 	
 	@Override
@@ -68,7 +71,7 @@ class EmployeeBean implements Bean {
 	
 	public EmployeeBean(String name, String empId, String company, String dept) 
 	{
-		System.out.println("EmployeeBean: "+name+"--"+empId+"--"+company+"--"+dept);
+		Output.println("EmployeeBean: "+name+"--"+empId+"--"+company+"--"+dept);
 	}
 	
 	@Override
@@ -87,7 +90,7 @@ class CountryBean implements Bean
 	
 	public CountryBean(String name, String capital) 
 	{
-		System.out.println("CountryBean: "+name+"--"+capital);
+		Output.println("CountryBean: "+name+"--"+capital);
 	}
 
 	@Override
@@ -98,9 +101,26 @@ class CountryBean implements Bean
 
 /**
  * This is the factory which is responsible for taking an input parameter and returning appropriate Bean of the requested type
+ * 
+ * Each creation is a FactoryCreation event in a flight recording
  */
 class BeanFactory{
 	public Bean getBean(String beanType) throws Exception {
+		if(!PatternEvents.FactoryCreation.isRecording()) {
+			return createBean(beanType);
+		}
+		PatternEvents.FactoryCreation event = new PatternEvents.FactoryCreation();
+		event.begin();
+		Bean bean = null;
+		try {
+			bean = createBean(beanType);
+			return bean;
+		} finally {
+			event.finish(getClass(), beanType, bean);
+		}
+	}
+	
+	private Bean createBean(String beanType) throws Exception {
 		Bean bean = null;
 		if("studentBean".equalsIgnoreCase(beanType)) {
 			bean = new StudentBean();
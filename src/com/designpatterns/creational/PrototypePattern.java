@@ -3,6 +3,10 @@ package com.designpatterns.creational;
 import java.util.HashMap;
 import java.util.Map;
 
+import com.designpatterns.jfr.PatternEvents;
+import com.designpatterns.metrics.MetricsRegistry;
+import com.designpatterns.output.Output;
+
 /**
  * A prototype pattern is a creational pattern. 
  * 
@@ -19,7 +23,7 @@ public class PrototypePattern {
 
 	public static void main(String[] args) {
 		DBConnectionPool.loadDBConnections();
-		System.out.println(new DBConnectionPool().getConnection("oracleConnection"));
+		Output.println(new DBConnectionPool().getConnection("oracleConnection"));
 	}
 }
 
@@ -51,7 +55,7 @@ class OracleDBConnection extends DBConnection{
 
 	@Override
 	public void connect(String userName, String password, String[] configParams) {
-		System.out.println("Connecting Oracle Database");
+		Output.println("Connecting Oracle Database");
 	}
 	
 }
@@ -63,7 +67,7 @@ class MySqlDBConnection extends DBConnection
 {
 	@Override
 	public void connect(String userName, String password, String[] configParams) {
-		System.out.println("Connecting to MySql datasource");
+		Output.println("Connecting to MySql datasource");
 	}
 }
 
@@ -74,7 +78,7 @@ class SqlServerDBConnection extends DBConnection
 {
 	@Override
 	public void connect(String userName, String password, String[] configParams) {
-		System.out.println("Connecting to SqlServer datasource");
+		Output.println("Connecting to SqlServer datasource");
 	}
 }
 
@@ -84,19 +88,51 @@ class SqlServerDBConnection extends DBConnection
  * 
  * The load method and the map instance are made as static to make the function execution only once 
  * and shared across the program
+ * 
+ * Every request for an unknown connection is counted in the metrics registry, and every lookup is a PoolAccess event
+ * in a flight recording. Clones are only counted once the metrics are exported: counting one costs about as much as the
+ * clone itself
  */
 class DBConnectionPool {
-	private static Map<String, DBConnection> connectionPoolMap = new HashMap<>();
+	// filled completely before it is published, so lookups and the size gauge read it without a lock
+	private static volatile Map<String, DBConnection> connectionPoolMap = new HashMap<>();
+	private static final MetricsRegistry.Counter CLONES = MetricsRegistry.getDefault().counter("prototype.pool.clones");
+	private static final MetricsRegistry.Counter MISSES = MetricsRegistry.getDefault().counter("prototype.pool.misses");
+	
+	static {
+		MetricsRegistry.getDefault().gauge("prototype.pool.size", () -> connectionPoolMap.size());
+	}
 	
 	public static void loadDBConnections() {
-		System.out.println("Loading Database Connections...");
-		connectionPoolMap.put("oracleConnection", new OracleDBConnection());
-		connectionPoolMap.put("mySqlConnection", new MySqlDBConnection());
-		connectionPoolMap.put("sqlServerConnection", new SqlServerDBConnection());
+		Output.println("Loading Database Connections...");
+		Map<String, DBConnection> connections = new HashMap<>();
+		connections.put("oracleConnection", new OracleDBConnection());
+		connections.put("mySqlConnection", new MySqlDBConnection());
+		connections.put("sqlServerConnection", new SqlServerDBConnection());
+		connectionPoolMap = connections;
 	}
 	
 	public DBConnection getConnection(String connectionName) {
-		return (DBConnection) connectionPoolMap.get(connectionName).clone();
+		PatternEvents.PoolAccess event = PatternEvents.PoolAccess.isRecording() ? new PatternEvents.PoolAccess() : null;
+		if(event != null) {
+			event.begin();
+		}
+		DBConnection prototype = connectionPoolMap.get(connectionName);
+		if(prototype == null) {
+			MISSES.increment();
+			if(event != null) {
+				event.finish("prototype", connectionName, false);
+			}
+			throw new IllegalArgumentException("No connection available for name --> "+connectionName);
+		}
+		if(MetricsRegistry.isExported()) {
+			CLONES.increment();
+		}
+		DBConnection connection = (DBConnection) prototype.clone();
+		if(event != null) {
+			event.finish("prototype", connectionName, true);
+		}
+		return connection;
 	}
 	
 }
@@ -1,5 +1,7 @@
 package com.designpatterns.creational;
 
+import com.designpatterns.output.Output;
+
 /**
  * Singleton is only one object per program execution environment. For a particular program or an application, creating 
  * only one instance of a class. 
@@ -15,9 +17,9 @@ public class Singleton {
 	public static void main(String[] args) {
 		Database db1 = Database.getInstance();
 		Database db2 = Database.getInstance();
-		System.out.println(db1.getInstance());
-		System.out.println(db2.getInstance());
-		System.out.println(db1==db2);
+		Output.println(db1.getInstance());
+		Output.println(db2.getInstance());
+		Output.println(db1==db2);
 	}
 
 }
@@ -53,7 +55,7 @@ class Database_v2 {
 		
 	}
 	
-	public synchronized Database_v2 getInstance() {
+	public static synchronized Database_v2 getInstance() {
 		if(instance==null) {
 			instance=new Database_v2();
 		}
@@ -72,13 +74,14 @@ class Database_v2 {
  * To avoid it we have a double checked singleton
  */
 class Database_v3 {
-	private static Database_v3 instance = null;
+	// volatile, so no thread sees the instance before it is fully constructed
+	private static volatile Database_v3 instance = null;
 	private Database_v3() {
 		
 	}
 	public static Database_v3 getInstance() {
 		if(instance==null) { // Check 1
-			synchronized (instance) // Once its found to be null, lock and create the instance 
+			synchronized (Database_v3.class) // Once its found to be null, lock and create the instance. The lock is the class, the instance is still null here
 			{
 				if(instance==null) { // Check 2. This is to ensure that if any thread already has created an instance
 					instance=new Database_v3(); // Only if both the conditions pass, create the instance
@@ -96,13 +99,13 @@ class Database_v3 {
 class Database_v4 implements Cloneable {
 	
 	// Make the instance transient so that it will be excluded from Serializing
-	private transient static Database_v4 instance = null;
+	private transient static volatile Database_v4 instance = null;
 	private Database_v4() {
 		
 	}
 	public static Database_v4 getInstance() {
 		if(instance==null) {
-			synchronized (instance) {
+			synchronized (Database_v4.class) {
 				if(instance==null) {
 					instance=new Database_v4();
 				}
@@ -0,0 +1,112 @@
+package com.designpatterns.jfr;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdk.jfr.ValueDescriptor;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Summarizes the pattern events of a .jfr recording: for every event type, and within it for every combination of
+ * its text and yes/no fields (factory and type, pool and hit, ...), the number of events and their durations.
+ *
+ * Usage: RecordingAnalyzer recording.jfr
+ */
+public class RecordingAnalyzer {
+
+	public static void main(String[] args) throws IOException {
+		if(args.length != 1) {
+			System.err.println("Usage: RecordingAnalyzer recording.jfr");
+			System.exit(2);
+		}
+		Map<String, Map<String, DurationStats>> summary = summarize(Paths.get(args[0]));
+		if(summary.isEmpty()) {
+			System.out.println("No " + PatternEvents.PREFIX + "* events in the recording");
+			return;
+		}
+		summary.forEach((eventType, groups) -> {
+			System.out.println(eventType);
+			System.out.printf("  %-80s %10s %12s %12s %12s %12s%n", "", "count", "mean us", "p50 us", "p99 us", "max us");
+			groups.forEach((group, stats) -> System.out.printf("  %-80s %10d %12.1f %12.1f %12.1f %12.1f%n", group, stats.count, stats.mean(),
+					stats.percentile(0.50), stats.percentile(0.99), stats.percentile(1.0)));
+		});
+	}
+
+	/**
+	 * Event type name to group to durations, for the events named with the pattern events prefix
+	 */
+	static Map<String, Map<String, DurationStats>> summarize(Path recording) throws IOException {
+		Map<String, Map<String, DurationStats>> summary = new TreeMap<>();
+		try (RecordingFile file = new RecordingFile(recording)) {
+			while (file.hasMoreEvents()) {
+				RecordedEvent event = file.readEvent();
+				String eventType = event.getEventType().getName();
+				if(!eventType.startsWith(PatternEvents.PREFIX)) {
+					continue;
+				}
+				summary.computeIfAbsent(eventType.substring(PatternEvents.PREFIX.length()), type -> new TreeMap<>())
+						.computeIfAbsent(groupOf(event), group -> new DurationStats())
+						.add(event.getDuration());
+			}
+		}
+		return summary;
+	}
+
+	private static String groupOf(RecordedEvent event) {
+		StringBuilder group = new StringBuilder();
+		for (ValueDescriptor field : event.getFields()) {
+			String type = field.getTypeName();
+			if(("java.lang.String".equals(type) || "boolean".equals(type)) && !"eventThread".equals(field.getName())) {
+				if(group.length() > 0) {
+					group.append(' ');
+				}
+				Object value = event.getValue(field.getName());
+				group.append(field.getName()).append('=').append(value);
+			}
+		}
+		return group.toString();
+	}
+
+	/**
+	 * The durations of one group of events, in nanoseconds
+	 */
+	static class DurationStats {
+		private long[] nanos = new long[64];
+		private int count;
+		private boolean sorted;
+
+		void add(Duration duration) {
+			if(count == nanos.length) {
+				nanos = Arrays.copyOf(nanos, count * 2);
+			}
+			nanos[count++] = duration.toNanos();
+			sorted = false;
+		}
+
+		double mean() {
+			long total = 0;
+			for (int i = 0; i < count; i++) {
+				total += nanos[i];
+			}
+			return total / 1e3 / count;
+		}
+
+		/**
+		 * In microseconds
+		 */
+		double percentile(double fraction) {
+			if(!sorted) {
+				Arrays.sort(nanos, 0, count);
+				sorted = true;
+			}
+			int index = (int) Math.ceil(fraction * count) - 1;
+			return nanos[Math.max(0, index)] / 1e3;
+		}
+	}
+}
@@ -0,0 +1,482 @@
+package com.designpatterns.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * One place for the runtime numbers of the patterns: counters, latency histograms and gauges, looked up by name.
+ *
+ * Metrics are looked up once, when the instrumented class is loaded, and kept in a field. Recording on them afterwards
+ * is a plain store into slots owned by the recording thread: no lock, no CAS and no allocation. Reading is the slow
+ * side, it walks every metric and every thread's slots and is meant for the exporters: a plain text page served by the
+ * JDK's HTTP server, and an MBean with one attribute per value.
+ *
+ * The default registry also exports itself when the JVM is started with -Ddesignpatterns.metrics.jmx=true and/or
+ * -Ddesignpatterns.metrics.port=&lt;port&gt;, so any pattern's main can be watched without changing it. With a port the
+ * JVM stays up after main returns, so the final numbers can still be read.
+ */
+public final class MetricsRegistry {
+	public static final String JMX_PROPERTY = "designpatterns.metrics.jmx";
+	public static final String PORT_PROPERTY = "designpatterns.metrics.port";
+
+	private static volatile boolean exported;
+
+	private final ConcurrentMap<String, Object> metrics = new ConcurrentHashMap<>();
+
+	public static MetricsRegistry getDefault() {
+		return DefaultHolder.REGISTRY;
+	}
+
+	/**
+	 * Whether a registry has been exported over JMX or HTTP. The few paths where recording costs about as much as the
+	 * work itself check this first, so they only pay for numbers that someone can read
+	 */
+	public static boolean isExported() {
+		return exported;
+	}
+
+	/**
+	 * Returns the counter of that name, registering it the first time
+	 */
+	public Counter counter(String name) {
+		return register(name, Counter.class, Counter::new);
+	}
+
+	/**
+	 * Returns the latency histogram of that name, registering it the first time. Values are in nanoseconds
+	 */
+	public Histogram histogram(String name) {
+		return register(name, Histogram.class, Histogram::new);
+	}
+
+	/**
+	 * Registers a value that is read when the metrics are exported. A gauge registered again under the same name
+	 * replaces the earlier one
+	 */
+	public void gauge(String name, LongSupplier value) {
+		Object existing = metrics.get(name);
+		if(existing != null && !(existing instanceof Gauge)) {
+			throw new IllegalArgumentException("Metric is already registered with another type --> "+name);
+		}
+		metrics.put(name, new Gauge(value));
+	}
+
+	private <T> T register(String name, Class<T> type, Supplier<T> factory) {
+		if(name == null || name.isEmpty() || name.chars().anyMatch(Character::isWhitespace)) {
+			throw new IllegalArgumentException("Invalid metric name --> "+name);
+		}
+		Object metric = metrics.computeIfAbsent(name, key -> factory.get());
+		if(!type.isInstance(metric)) {
+			throw new IllegalArgumentException("Metric is already registered with another type --> "+name);
+		}
+		return type.cast(metric);
+	}
+
+	/**
+	 * Every value, by name and sorted. A histogram gives its count, mean, 50th, 90th and 99th percentile and max
+	 */
+	public Map<String, Long> sample() {
+		Map<String, Long> values = new TreeMap<>();
+		metrics.forEach((name, metric) -> {
+			if(metric instanceof Counter) {
+				values.put(name, ((Counter) metric).get());
+			} else if(metric instanceof Gauge) {
+				values.put(name, ((Gauge) metric).value.getAsLong());
+			} else {
+				((Histogram) metric).sampleInto(name, values);
+			}
+		});
+		return values;
+	}
+
+	/**
+	 * The sample as text, one "name value" line per value
+	 */
+	public String toText() {
+		StringBuilder text = new StringBuilder();
+		sample().forEach((name, value) -> text.append(name).append(' ').append(value).append('\n'));
+		return text.toString();
+	}
+
+	/**
+	 * Registers the registry with the platform MBean server under com.designpatterns:type=Metrics
+	 */
+	public ObjectName exportToJmx() throws JMException {
+		ObjectName objectName = new ObjectName("com.designpatterns:type=Metrics");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if(!server.isRegistered(objectName)) {
+			server.registerMBean(new MetricsMBean(this), objectName);
+		}
+		exported = true;
+		return objectName;
+	}
+
+	/**
+	 * Serves the text export at /metrics. The server keeps the JVM running until it is stopped
+	 */
+	public HttpServer startHttpServer(InetSocketAddress address) throws IOException {
+		HttpServer server = HttpServer.create(address, 0);
+		server.createContext("/metrics", exchange -> {
+			try {
+				byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(body);
+				}
+			} finally {
+				exchange.close();
+			}
+		});
+		server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "metrics-http");
+			thread.setDaemon(true);
+			return thread;
+		}));
+		server.start();
+		exported = true;
+		return server;
+	}
+
+	private static class DefaultHolder {
+		private static final MetricsRegistry REGISTRY = createDefault();
+
+		private static MetricsRegistry createDefault() {
+			MetricsRegistry registry = new MetricsRegistry();
+			try {
+				if(Boolean.getBoolean(JMX_PROPERTY)) {
+					registry.exportToJmx();
+				}
+				Integer port = Integer.getInteger(PORT_PROPERTY);
+				if(port != null) {
+					registry.startHttpServer(new InetSocketAddress(port));
+				}
+			} catch (IOException | JMException e) {
+				// the patterns run the same without the export
+				System.err.println("Metrics are not exported: "+e);
+			}
+			return registry;
+		}
+	}
+
+	/**
+	 * A count that many threads add to. Each thread adds to a slot of its own, so an increment is a plain store without
+	 * a CAS, and reading sums the slots
+	 */
+	public static final class Counter {
+		private final ThreadSlots slots = new ThreadSlots(1, -1);
+
+		private Counter() {
+		}
+
+		public void increment() {
+			ThreadSlots.add(slots.get(), 0, 1);
+		}
+
+		public void add(long amount) {
+			ThreadSlots.add(slots.get(), 0, amount);
+		}
+
+		public long get() {
+			return slots.sum()[0];
+		}
+	}
+
+	/**
+	 * Latencies in nanoseconds, counted in log-linear buckets: eight buckets per power of two, so a percentile is
+	 * within 12.5% of the true value whatever the range. Each thread records into buckets of its own, so threads timing
+	 * similar calls do not all increment the same bucket. Recording a value is working out its bucket with a few shifts
+	 * and three plain stores
+	 */
+	public static final class Histogram {
+		private static final int SUB_BUCKET_BITS = 3;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+		private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+		// the slots after the buckets
+		private static final int SUM = BUCKETS;
+		private static final int MAX = BUCKETS + 1;
+		private static final int SAMPLE_TICKS = BUCKETS + 2;
+		private static final int SAMPLE_EVERY = 64;
+
+		/**
+		 * What startSample() returns for the calls it does not time
+		 */
+		public static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+		private final ThreadSlots slots = new ThreadSlots(BUCKETS + 3, MAX);
+
+		private Histogram() {
+		}
+
+		public void recordNanos(long nanos) {
+			long value = Math.max(0, nanos);
+			long[] own = slots.get();
+			ThreadSlots.add(own, bucketOf(value), 1);
+			ThreadSlots.add(own, SUM, value);
+			ThreadSlots.max(own, MAX, value);
+		}
+
+		/**
+		 * Records the time since a System.nanoTime() taken earlier, or nothing for NOT_SAMPLED
+		 */
+		public void recordSince(long startNanos) {
+			if(startNanos != NOT_SAMPLED) {
+				recordNanos(System.nanoTime() - startNanos);
+			}
+		}
+
+		/**
+		 * System.nanoTime() for the first and then every 64th call on a thread, NOT_SAMPLED for the others. Reading the
+		 * clock twice can cost more than a short call being timed, so hot paths time a sample and give the result to
+		 * recordSince, which skips the rest. The count is then the number of samples
+		 */
+		public long startSample() {
+			long[] own = slots.get();
+			long ticks = own[SAMPLE_TICKS];
+			ThreadSlots.add(own, SAMPLE_TICKS, 1);
+			return (ticks & (SAMPLE_EVERY - 1)) == 0 ? System.nanoTime() : NOT_SAMPLED;
+		}
+
+		/**
+		 * Summed over the buckets, so recording does not keep a count of its own
+		 */
+		public long getCount() {
+			return countOf(slots.sum());
+		}
+
+		public long getMax() {
+			return slots.sum()[MAX];
+		}
+
+		/**
+		 * The value below which the given fraction of the recorded values fall, as the upper end of its bucket
+		 */
+		public long getPercentile(double fraction) {
+			if(fraction < 0 || fraction > 1) {
+				throw new IllegalArgumentException("Percentile must be between 0 and 1 --> "+fraction);
+			}
+			return percentileOf(slots.sum(), fraction);
+		}
+
+		private void sampleInto(String name, Map<String, Long> values) {
+			long[] sample = slots.sum();
+			long total = countOf(sample);
+			values.put(name + ".count", total);
+			values.put(name + ".mean", total == 0 ? 0 : sample[SUM] / total);
+			values.put(name + ".p50", percentileOf(sample, 0.50));
+			values.put(name + ".p90", percentileOf(sample, 0.90));
+			values.put(name + ".p99", percentileOf(sample, 0.99));
+			values.put(name + ".max", sample[MAX]);
+		}
+
+		private static long countOf(long[] sample) {
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				total += sample[i];
+			}
+			return total;
+		}
+
+		private static long percentileOf(long[] sample, double fraction) {
+			long rank = (long) Math.ceil(fraction * countOf(sample));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += sample[i];
+				if(seen >= rank && seen > 0) {
+					return Math.min(upperBoundOf(i), sample[MAX]);
+				}
+			}
+			return 0;
+		}
+
+		static int bucketOf(long value) {
+			if(value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+			return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+		}
+
+		static long upperBoundOf(int bucket) {
+			if(bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+			long subBucket = bucket % SUB_BUCKETS;
+			long shift = exponent - SUB_BUCKET_BITS;
+			long upper = (SUB_BUCKETS + subBucket + 1) << shift;
+			return upper < 0 ? Long.MAX_VALUE : upper - 1;
+		}
+	}
+
+	/**
+	 * A row of longs per thread, written only by its thread. A thread gets its row the first time it records, after
+	 * that recording is a thread local lookup and a plain store, where a LongAdder pays for a CAS on every add even
+	 * when uncontended. Readers sum the rows. Rows of threads that have ended are folded into one retired row, when the rows are
+	 * read and when a new thread registers, so short lived threads do not pile up
+	 */
+	private static final class ThreadSlots {
+		private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+		private final int size;
+		// the one slot kept as a maximum rather than a sum, -1 for none
+		private final int maxSlot;
+		private final Map<Thread, long[]> rows = new HashMap<>();
+		private final long[] retired;
+		private final ThreadLocal<long[]> own = ThreadLocal.withInitial(this::register);
+
+		ThreadSlots(int size, int maxSlot) {
+			this.size = size;
+			this.maxSlot = maxSlot;
+			this.retired = new long[size];
+		}
+
+		long[] get() {
+			return own.get();
+		}
+
+		/**
+		 * Only called by the row's thread, so reading the slot back needs no ordering
+		 */
+		static void add(long[] row, int slot, long amount) {
+			LONGS.setOpaque(row, slot, row[slot] + amount);
+		}
+
+		static void max(long[] row, int slot, long value) {
+			if(value > row[slot]) {
+				LONGS.setOpaque(row, slot, value);
+			}
+		}
+
+		private synchronized long[] register() {
+			retireEnded();
+			long[] row = new long[size];
+			rows.put(Thread.currentThread(), row);
+			return row;
+		}
+
+		synchronized long[] sum() {
+			retireEnded();
+			long[] total = retired.clone();
+			for (long[] row : rows.values()) {
+				merge(total, row);
+			}
+			return total;
+		}
+
+		private void retireEnded() {
+			Iterator<Map.Entry<Thread, long[]>> entries = rows.entrySet().iterator();
+			while(entries.hasNext()) {
+				Map.Entry<Thread, long[]> entry = entries.next();
+				if(!entry.getKey().isAlive()) {
+					// the thread's last stores happen before it is seen as ended
+					merge(retired, entry.getValue());
+					entries.remove();
+				}
+			}
+		}
+
+		private void merge(long[] into, long[] row) {
+			for (int i = 0; i < size; i++) {
+				long value = (long) LONGS.getOpaque(row, i);
+				into[i] = i == maxSlot ? Math.max(into[i], value) : into[i] + value;
+			}
+		}
+	}
+
+	private static final class Gauge {
+		private final LongSupplier value;
+
+		private Gauge(LongSupplier value) {
+			this.value = value;
+		}
+	}
+}
+
+/**
+ * The registry as an MBean, one read-only long attribute per value of the sample. The attributes follow the metrics
+ * registered at the time the MBean info is asked for
+ */
+class MetricsMBean implements DynamicMBean {
+	private final MetricsRegistry registry;
+
+	MetricsMBean(MetricsRegistry registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Long value = registry.sample().get(attribute);
+		if(value == null) {
+			throw new AttributeNotFoundException("No metric available for name --> "+attribute);
+		}
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Long> sample = registry.sample();
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Long value = sample.get(attribute);
+			if(value != null) {
+				list.add(new Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read only --> "+attribute.getName());
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName), "No operations available, got --> "+actionName);
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		Map<String, Long> sample = registry.sample();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[sample.size()];
+		int i = 0;
+		for (String name : sample.keySet()) {
+			attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+		}
+		return new MBeanInfo(getClass().getName(), "Design pattern metrics", attributes, null, null, null);
+	}
+}
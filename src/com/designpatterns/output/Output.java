@@ -0,0 +1,468 @@
+package com.designpatterns.output;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.designpatterns.metrics.MetricsRegistry;
+
+/**
+ * Where the patterns print their lines, instead of System.out. System.out takes a lock and flushes on every line, so
+ * threads printing at the same time queue up behind each other and the terminal.
+ *
+ * The sink is pluggable. The default one is an AsyncSink on standard out: printing only puts the line in a lock free
+ * queue, and a background thread writes the lines out in large batches. It is flushed when the JVM shuts down. Started
+ * with -Ddesignpatterns.output=sync the patterns print through System.out as before. The queue size and what happens
+ * when it is full are set with -Ddesignpatterns.output.capacity and -Ddesignpatterns.output.overflow=block|drop_newest.
+ */
+public final class Output {
+	public static final String SINK_PROPERTY = "designpatterns.output";
+	public static final String CAPACITY_PROPERTY = "designpatterns.output.capacity";
+	public static final String OVERFLOW_PROPERTY = "designpatterns.output.overflow";
+
+	private static volatile Sink sink;
+
+	private Output() {
+	}
+
+	public static void println(String line) {
+		getSink().println(line);
+	}
+
+	public static void println(Object value) {
+		getSink().println(String.valueOf(value));
+	}
+
+	/**
+	 * Formats on the caller's thread, the format is expected to end with %n like with System.out
+	 */
+	public static void printf(String format, Object... args) {
+		String text = String.format(format, args);
+		int end = text.endsWith(System.lineSeparator()) ? text.length() - System.lineSeparator().length() : text.length();
+		getSink().println(text.substring(0, end));
+	}
+
+	/**
+	 * Returns once every line printed before the call is out
+	 */
+	public static void flush() {
+		getSink().flush();
+	}
+
+	public static Sink getSink() {
+		Sink current = sink;
+		if(current == null) {
+			synchronized (Output.class) {
+				current = sink;
+				if(current == null) {
+					current = createDefaultSink();
+					sink = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Replaces the sink. The one it replaces is flushed, but left open
+	 */
+	public static synchronized void setSink(Sink newSink) {
+		if(newSink == null) {
+			throw new IllegalArgumentException("Sink must not be null");
+		}
+		Sink previous = sink;
+		sink = newSink;
+		if(previous != null) {
+			previous.flush();
+		}
+	}
+
+	private static Sink createDefaultSink() {
+		String kind = System.getProperty(SINK_PROPERTY, "async");
+		if("sync".equalsIgnoreCase(kind)) {
+			return new PrintStreamSink(System.out);
+		}
+		if(!"async".equalsIgnoreCase(kind)) {
+			throw new IllegalArgumentException("Unknown output sink, expected sync or async --> "+kind);
+		}
+		int capacity = Integer.getInteger(CAPACITY_PROPERTY, 8192);
+		OverflowPolicy overflow = OverflowPolicy.valueOf(System.getProperty(OVERFLOW_PROPERTY, "block").toUpperCase());
+		AsyncSink asyncSink = AsyncSink.toStandardOut(capacity, overflow);
+		Runtime.getRuntime().addShutdownHook(new Thread(asyncSink::close, "output-flush"));
+		return asyncSink;
+	}
+
+	/**
+	 * Takes whole lines, the sink adds the line separator
+	 */
+	public interface Sink extends AutoCloseable {
+		void println(String line);
+
+		void flush();
+
+		@Override
+		void close();
+	}
+
+	/**
+	 * What the async sink does with a new line when its queue is full
+	 */
+	public enum OverflowPolicy {
+		/** Wait until the writer has made room */
+		BLOCK,
+		/** Throw away the new line and count it */
+		DROP_NEWEST
+	}
+
+	/**
+	 * Prints straight to a PrintStream on the caller's thread
+	 */
+	public static final class PrintStreamSink implements Sink {
+		private final PrintStream out;
+
+		public PrintStreamSink(PrintStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void println(String line) {
+			out.println(line);
+		}
+
+		@Override
+		public void flush() {
+			out.flush();
+		}
+
+		@Override
+		public void close() {
+			out.flush();
+		}
+	}
+
+	/**
+	 * Lines go into a bounded ring of slots. Printing threads claim a slot with a CAS on the tail and publish the line by
+	 * setting the slot's sequence, so they never take a lock and never wait for each other's writes. One writer thread
+	 * takes the lines in order, encodes them into a direct buffer and writes the buffer when it is full or the queue has
+	 * run dry, so a busy sink writes in large batches and an idle one still gets every line out straight away.
+	 *
+	 * The writer parks when the queue is empty and printing threads only wake it when it is actually parked.
+	 */
+	public static final class AsyncSink implements Sink {
+		private static final MetricsRegistry.Counter WRITTEN = MetricsRegistry.getDefault().counter("output.lines.written");
+		private static final MetricsRegistry.Counter DROPPED = MetricsRegistry.getDefault().counter("output.lines.dropped");
+		private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+		private final String[] lines;
+		private final AtomicLongArray sequences;
+		private final int mask;
+		private final AtomicLong tail = new AtomicLong();
+		private final OverflowPolicy overflowPolicy;
+		private final WritableByteChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+		private final CharsetEncoder encoder;
+		private final LongAdder dropped = new LongAdder();
+		private final CountDownLatch stopped = new CountDownLatch(1);
+		private final Thread writer;
+		// writer thread only, and printers once it has stopped
+		private long head;
+		private volatile long writtenUpTo;
+		private volatile boolean writerParked;
+		private volatile boolean running = true;
+
+		/**
+		 * @param capacity power of 2, at least 2: with a single slot the sequence that publishes a line is the one that
+		 *        frees the slot for the next
+		 */
+		public AsyncSink(WritableByteChannel channel, Charset charset, int capacity, OverflowPolicy overflowPolicy) {
+			if(capacity < 2 || Integer.bitCount(capacity) != 1) {
+				throw new IllegalArgumentException("Capacity must be a power of 2 and at least 2, got --> "+capacity);
+			}
+			this.lines = new String[capacity];
+			this.sequences = new AtomicLongArray(capacity);
+			for (int i = 0; i < capacity; i++) {
+				sequences.set(i, i);
+			}
+			this.mask = capacity - 1;
+			this.channel = channel;
+			this.overflowPolicy = overflowPolicy;
+			this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+			this.writer = new Thread(this::writeLines, "output-writer");
+			this.writer.setDaemon(true);
+			this.writer.start();
+		}
+
+		/**
+		 * On the standard out file descriptor, in the charset System.out uses
+		 */
+		public static AsyncSink toStandardOut(int capacity, OverflowPolicy overflowPolicy) {
+			String encoding = System.getProperty("sun.stdout.encoding");
+			Charset charset = encoding != null && Charset.isSupported(encoding) ? Charset.forName(encoding) : Charset.defaultCharset();
+			return new AsyncSink(new FileOutputStream(FileDescriptor.out).getChannel(), charset, capacity, overflowPolicy);
+		}
+
+		@Override
+		public void println(String line) {
+			if(!running) {
+				// shutting down, the writer may already be gone
+				System.out.println(line);
+				return;
+			}
+			int idle = 0;
+			while(!offer(line)) {
+				if(overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+					dropped.increment();
+					DROPPED.increment();
+					return;
+				}
+				if(!running || !writer.isAlive()) {
+					// the writer is stopping or gone and will not make room, empty the queue here
+					writeLeftovers();
+					continue;
+				}
+				wakeWriter();
+				idle = backOff(idle);
+			}
+			if(!running || !writer.isAlive()) {
+				// raced with close, the writer may have exited before this line was published
+				writeLeftovers();
+				return;
+			}
+			if(writerParked) {
+				LockSupport.unpark(writer);
+			}
+		}
+
+		/**
+		 * Once the writer has stopped, writes the published lines on the printing thread. Every printer that publishes
+		 * after that comes here too, so a line still being published by another printer is written by that printer
+		 */
+		private void writeLeftovers() {
+			boolean interrupted = false;
+			while(true) {
+				try {
+					stopped.await();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			synchronized (this) {
+				drain();
+				writeBuffer();
+			}
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private boolean offer(String line) {
+			long position = tail.get();
+			while(true) {
+				int index = (int) position & mask;
+				long sequence = sequences.getAcquire(index);
+				if(sequence == position) {
+					if(tail.compareAndSet(position, position + 1)) {
+						lines[index] = line;
+						sequences.setRelease(index, position + 1);
+						return true;
+					}
+					position = tail.get();
+				} else if(sequence < position) {
+					// the slot still holds the line from one lap ago
+					return false;
+				} else {
+					position = tail.get();
+				}
+			}
+		}
+
+		/**
+		 * Waits for the writer to have written every line printed so far
+		 */
+		@Override
+		public void flush() {
+			long target = tail.get();
+			int idle = 0;
+			while(writtenUpTo < target && writer.isAlive()) {
+				wakeWriter();
+				idle = backOff(idle);
+			}
+		}
+
+		/**
+		 * Writes what is still queued and stops the writer
+		 */
+		@Override
+		public void close() {
+			running = false;
+			LockSupport.unpark(writer);
+			try {
+				stopped.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		public long getDropped() {
+			return dropped.sum();
+		}
+
+		private void wakeWriter() {
+			if(writerParked) {
+				LockSupport.unpark(writer);
+			}
+		}
+
+		private static int backOff(int idle) {
+			if(idle < 100) {
+				Thread.onSpinWait();
+			} else if(idle < 200) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(50_000);
+			}
+			return idle + 1;
+		}
+
+		private void writeLines() {
+			try {
+				while(true) {
+					if(drain()) {
+						continue;
+					}
+					writeBuffer();
+					writtenUpTo = head;
+					if(!running && tail.get() == head) {
+						return;
+					}
+					writerParked = true;
+					// check again after announcing the park, a printer that missed the flag has already published its line
+					if(!hasNext() && running) {
+						LockSupport.park(this);
+					}
+					writerParked = false;
+				}
+			} finally {
+				stopped.countDown();
+			}
+		}
+
+		private boolean hasNext() {
+			return sequences.getAcquire((int) head & mask) == head + 1;
+		}
+
+		/**
+		 * Encodes the published lines into the buffer, writing it out whenever it fills up
+		 */
+		private boolean drain() {
+			boolean any = false;
+			while(hasNext()) {
+				int index = (int) head & mask;
+				String line = lines[index];
+				lines[index] = null;
+				sequences.setRelease(index, head + mask + 1);
+				encode(line);
+				head++;
+				any = true;
+			}
+			return any;
+		}
+
+		private void encode(String line) {
+			CharBuffer chars = CharBuffer.wrap(line);
+			encoder.reset();
+			while(true) {
+				CoderResult result = encoder.encode(chars, buffer, true);
+				if(result.isOverflow()) {
+					writeBuffer();
+					continue;
+				}
+				break;
+			}
+			while(encoder.flush(buffer).isOverflow()) {
+				writeBuffer();
+			}
+			if(buffer.remaining() < LINE_SEPARATOR.length) {
+				writeBuffer();
+			}
+			buffer.put(LINE_SEPARATOR);
+			WRITTEN.increment();
+		}
+
+		private void writeBuffer() {
+			buffer.flip();
+			try {
+				while(buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			} catch (IOException e) {
+				// the lines in the buffer are lost, later ones are tried again
+				System.err.println("Output sink failed to write: "+e);
+			} finally {
+				buffer.clear();
+			}
+			writtenUpTo = head;
+		}
+	}
+}
+
+/**
+ * Lines/s through System.out and through the async sink with 1 to 32 printing threads. Run with standard out sent to
+ * a file or /dev/null, the results go to standard error
+ */
+class OutputSinkBenchmark {
+	private static final int LINES = 2_000_000;
+
+	public static void main(String[] args) throws InterruptedException {
+		Output.AsyncSink asyncSink = Output.AsyncSink.toStandardOut(8192, Output.OverflowPolicy.BLOCK);
+		Output.Sink systemOut = new Output.PrintStreamSink(System.out);
+		// warm up
+		run(systemOut, 4, LINES / 4);
+		run(asyncSink, 4, LINES / 4);
+		System.err.println("threads | System.out lines/s | async sink lines/s");
+		for (int threads = 1; threads <= 32; threads *= 2) {
+			double direct = run(systemOut, threads, LINES);
+			double async = run(asyncSink, threads, LINES);
+			System.err.printf("%7d | %18.0f | %18.0f  (%.1fx)%n", threads, direct, async, async / direct);
+		}
+		asyncSink.close();
+	}
+
+	/**
+	 * Until every line is out, so the async sink is not credited for lines still in its queue
+	 */
+	private static double run(Output.Sink sink, int threads, int lines) throws InterruptedException {
+		Thread[] printers = new Thread[threads];
+		int perThread = lines / threads;
+		long startNanos = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			String prefix = "printer " + t + " line ";
+			printers[t] = new Thread(() -> {
+				for (int i = 0; i < perThread; i++) {
+					sink.println(prefix + i);
+				}
+			});
+			printers[t].start();
+		}
+		for (Thread printer : printers) {
+			printer.join();
+		}
+		sink.flush();
+		return (double) perThread * threads * 1e9 / (System.nanoTime() - startNanos);
+	}
+}
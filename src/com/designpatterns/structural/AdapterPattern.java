@@ -1,5 +1,35 @@
 package com.learn.desgin.patterns.structural;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+import com.designpatterns.output.Output;
+
 /**
  * 
  * The Adapter Design Pattern is part of structural design pattern and it is a powerful and essential tool for software developers. 
@@ -36,12 +66,12 @@ class Mobile implements MobileDataReader
 	
 	@Override
 	public void readInternalSDcard() {
-		System.out.println("Reading mobile's internal SD card");
+		Output.println("Reading mobile's internal SD card");
 	}
 
 	@Override
 	public void readExternalSDCard() {
-		System.out.println("Reading mobile's external SD card");
+		Output.println("Reading mobile's external SD card");
 	}
 }
 
@@ -57,7 +87,7 @@ class SDCard implements SDcardReader
 {
 	@Override
 	public void readSDcard() {
-		System.out.println("Reading data from MemoryCard");
+		Output.println("Reading data from MemoryCard");
 	}
 }
 
@@ -73,7 +103,149 @@ class USBPort implements USBReader
 {
 	@Override
 	public void readUSBPort() {
-		System.out.println("Reading data from USB port");
+		Output.println("Reading data from USB port");
+	}
+}
+
+/**
+ * Asynchronous counterpart of MobileDataReader. Each read returns immediately and completes with the number of bytes read
+ */
+interface AsyncMobileDataReader
+{
+	public CompletableFuture<Long> readInternalSDcardAsync();
+	public CompletableFuture<Long> readExternalSDCardAsync();
+}
+
+/**
+ * Asynchronous counterpart of SDcardReader
+ */
+interface AsyncSDcardReader
+{
+	public CompletableFuture<Long> readSDcardAsync();
+}
+
+/**
+ * Asynchronous counterpart of USBReader
+ */
+interface AsyncUSBReader
+{
+	public CompletableFuture<Long> readUSBPortAsync();
+}
+
+/**
+ * Reads a whole file with an AsynchronousFileChannel. Each completed chunk schedules the next read from its completion handler,
+ * so no thread waits on the device and a single I/O thread can keep hundreds of reads outstanding.
+ */
+class AsyncFileReader
+{
+	private final ExecutorService ioExecutor;
+	private final int chunkSize;
+	
+	public AsyncFileReader(ExecutorService ioExecutor, int chunkSize)
+	{
+		this.ioExecutor = ioExecutor;
+		this.chunkSize = chunkSize;
+	}
+	
+	public CompletableFuture<Long> readFully(Path file)
+	{
+		CompletableFuture<Long> result = new CompletableFuture<>();
+		AsynchronousFileChannel channel;
+		try {
+			channel = AsynchronousFileChannel.open(file, EnumSet.of(StandardOpenOption.READ), ioExecutor);
+		} catch (IOException e) {
+			result.completeExceptionally(e);
+			return result;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+		channel.read(buffer, 0L, 0L, new CompletionHandler<Integer, Long>() {
+			@Override
+			public void completed(Integer read, Long position) {
+				if(read < 0)
+				{
+					close(channel);
+					result.complete(position);
+					return;
+				}
+				long nextPosition = position + read;
+				buffer.clear();
+				channel.read(buffer, nextPosition, nextPosition, this);
+			}
+
+			@Override
+			public void failed(Throwable exc, Long position) {
+				close(channel);
+				result.completeExceptionally(exc);
+			}
+		});
+		return result;
+	}
+	
+	private static void close(AsynchronousFileChannel channel)
+	{
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing left to read, a failing close does not change the result
+		}
+	}
+}
+
+class AsyncMobile implements AsyncMobileDataReader
+{
+	private final AsyncFileReader fileReader;
+	private final Path internalSDcard;
+	private final Path externalSDCard;
+	
+	public AsyncMobile(AsyncFileReader fileReader, Path internalSDcard, Path externalSDCard)
+	{
+		this.fileReader = fileReader;
+		this.internalSDcard = internalSDcard;
+		this.externalSDCard = externalSDCard;
+	}
+
+	@Override
+	public CompletableFuture<Long> readInternalSDcardAsync() {
+		return fileReader.readFully(internalSDcard);
+	}
+
+	@Override
+	public CompletableFuture<Long> readExternalSDCardAsync() {
+		return fileReader.readFully(externalSDCard);
+	}
+}
+
+class AsyncSDCard implements AsyncSDcardReader
+{
+	private final AsyncFileReader fileReader;
+	private final Path sdCard;
+	
+	public AsyncSDCard(AsyncFileReader fileReader, Path sdCard)
+	{
+		this.fileReader = fileReader;
+		this.sdCard = sdCard;
+	}
+
+	@Override
+	public CompletableFuture<Long> readSDcardAsync() {
+		return fileReader.readFully(sdCard);
+	}
+}
+
+class AsyncUSBPort implements AsyncUSBReader
+{
+	private final AsyncFileReader fileReader;
+	private final Path usbDrive;
+	
+	public AsyncUSBPort(AsyncFileReader fileReader, Path usbDrive)
+	{
+		this.fileReader = fileReader;
+		this.usbDrive = usbDrive;
+	}
+
+	@Override
+	public CompletableFuture<Long> readUSBPortAsync() {
+		return fileReader.readFully(usbDrive);
 	}
 }
 
@@ -124,28 +296,28 @@ class Laptop implements LaptopDataReader
 	
 	@Override
 	public void readInternalHDD() {
-		System.out.println("Reading laptop's internal hard disk");
+		Output.println("Reading laptop's internal hard disk");
 	}
 
 	@Override
 	public void readExternalHDD() {
-		System.out.println("Reading laptop's external hard disk");
+		Output.println("Reading laptop's external hard disk");
 	}
 
 	@Override
 	public void readDiscDrive() {
-		System.out.println("Reading laptop's DVD drive");
+		Output.println("Reading laptop's DVD drive");
 	}
 
 	@Override
 	public void readSDcard() {
-		System.out.println("Reading laptop's SD card via LaptopAdapter");
+		Output.println("Reading laptop's SD card via LaptopAdapter");
 		laptopAdapter.readSDcard();
 	}
 
 	@Override
 	public void readUSB() {
-		System.out.println("Reading laptop's USB port via LaptopAdapter");
+		Output.println("Reading laptop's USB port via LaptopAdapter");
 		laptopAdapter.readUSB();
 	}
 }
@@ -155,9 +327,14 @@ class Laptop implements LaptopDataReader
  */
 class LaptopAdapter 
 {
-	private MobileDataReader mobileDataReader;
-	private SDcardReader sdCardReader;
-	private USBReader usbReader;
+	// the adapter is shared, and readers are set and read on any thread, the common pool's included
+	private volatile MobileDataReader mobileDataReader;
+	private volatile SDcardReader sdCardReader;
+	private volatile USBReader usbReader;
+	private volatile AsyncMobileDataReader asyncMobileDataReader;
+	private volatile AsyncSDcardReader asyncSdCardReader;
+	private volatile AsyncUSBReader asyncUsbReader;
+	private ChunkedCopyEngine copyEngine = new ChunkedCopyEngine(new DirectBufferPool(4, 1 << 20));
 	
 	private LaptopAdapter(){}
 	
@@ -177,14 +354,75 @@ class LaptopAdapter
 		private static LaptopAdapter laptopAdapter = new LaptopAdapter();
 	}
 	
+	/**
+	 * Switches the adapter to the asynchronous readers. Passing null for a device keeps the blocking reader for it.
+	 * The blocking read methods keep working either way, so Laptop does not need to know which style is in use.
+	 */
+	public void setAsyncReaders(AsyncMobileDataReader asyncMobileDataReader, AsyncSDcardReader asyncSdCardReader, AsyncUSBReader asyncUsbReader)
+	{
+		this.asyncMobileDataReader = asyncMobileDataReader;
+		this.asyncSdCardReader = asyncSdCardReader;
+		this.asyncUsbReader = asyncUsbReader;
+	}
+	
 	/**
 	 * This adapter method reads the data from mobile
 	 */
 	public void readMobile()
 	{
-		mobileDataReader = new Mobile();
-		mobileDataReader.readInternalSDcard();
-		mobileDataReader.readExternalSDCard();
+		if(asyncMobileDataReader != null)
+		{
+			readMobileAsync().join();
+			return;
+		}
+		readMobileBlocking();
+	}
+	
+	/**
+	 * Reads both SD cards of the mobile at the same time. With only the blocking reader configured, the read runs on the common pool
+	 */
+	public CompletableFuture<Long> readMobileAsync()
+	{
+		AsyncMobileDataReader asyncReader = asyncMobileDataReader;
+		if(asyncReader == null)
+		{
+			return CompletableFuture.supplyAsync(() -> {
+				readMobileBlocking();
+				return 0L;
+			});
+		}
+		return asyncReader.readInternalSDcardAsync()
+				.thenCombine(asyncReader.readExternalSDCardAsync(), Long::sum);
+	}
+	
+	/**
+	 * Reads through the reader it creates, not through the field, which another thread may have replaced meanwhile
+	 */
+	private void readMobileBlocking()
+	{
+		MobileDataReader reader = new Mobile();
+		mobileDataReader = reader;
+		reader.readInternalSDcard();
+		reader.readExternalSDCard();
+	}
+	
+	/**
+	 * Backs up the mobile's internal and external SD card into the target. Both cards go through the shared copy engine,
+	 * so the same pooled buffers are reused for every backup instead of allocating new ones per read.
+	 */
+	public CopyResult backupMobile(ReadableByteChannel internalSDcard, ReadableByteChannel externalSDCard, WritableByteChannel target) throws IOException
+	{
+		CopyResult internalCopy = copyEngine.copy(internalSDcard, target);
+		CopyResult externalCopy = copyEngine.copy(externalSDCard, target);
+		return internalCopy.add(externalCopy);
+	}
+	
+	/**
+	 * Copies an SD card into the target through the shared copy engine
+	 */
+	public CopyResult backupSDcard(ReadableByteChannel sdCard, WritableByteChannel target) throws IOException
+	{
+		return copyEngine.copy(sdCard, target);
 	}
 	
 	/**
@@ -192,15 +430,799 @@ class LaptopAdapter
 	 */
 	public void readSDcard()
 	{
-		sdCardReader = new SDCard();
-		sdCardReader.readSDcard();
+		AsyncSDcardReader asyncReader = asyncSdCardReader;
+		if(asyncReader != null)
+		{
+			asyncReader.readSDcardAsync().join();
+			return;
+		}
+		SDcardReader reader = new SDCard();
+		sdCardReader = reader;
+		reader.readSDcard();
+	}
+	
+	public CompletableFuture<Long> readSDcardAsync()
+	{
+		AsyncSDcardReader asyncReader = asyncSdCardReader;
+		if(asyncReader == null)
+		{
+			return CompletableFuture.supplyAsync(() -> {
+				readSDcard();
+				return 0L;
+			});
+		}
+		return asyncReader.readSDcardAsync();
 	}
 	
 	/**
 	 * This adapter method reads the data from USB
 	 */
 	public void readUSB() {
-		usbReader = new USBPort();
-		usbReader.readUSBPort();
+		AsyncUSBReader asyncReader = asyncUsbReader;
+		if(asyncReader != null)
+		{
+			asyncReader.readUSBPortAsync().join();
+			return;
+		}
+		USBReader reader = new USBPort();
+		usbReader = reader;
+		reader.readUSBPort();
+	}
+	
+	public CompletableFuture<Long> readUSBAsync()
+	{
+		AsyncUSBReader asyncReader = asyncUsbReader;
+		if(asyncReader == null)
+		{
+			return CompletableFuture.supplyAsync(() -> {
+				readUSB();
+				return 0L;
+			});
+		}
+		return asyncReader.readUSBPortAsync();
+	}
+}
+
+/**
+ * Reads one chunk of a device and returns the number of bytes read
+ */
+interface DeviceChunkReader
+{
+	public long readChunk(int chunkIndex) throws Exception;
+}
+
+/**
+ * Token bucket style limiter. Every read reserves its bytes against the budget and sleeps until the bytes fit 
+ * into the configured bytes per second.
+ */
+class BandwidthLimiter
+{
+	private final long bytesPerSecond;
+	private long nextFreeNanos = System.nanoTime();
+	
+	public BandwidthLimiter(long bytesPerSecond)
+	{
+		this.bytesPerSecond = bytesPerSecond;
+	}
+	
+	public void acquire(long bytes) throws InterruptedException
+	{
+		if(bytesPerSecond <= 0)
+		{
+			return;
+		}
+		long waitNanos;
+		synchronized (this)
+		{
+			long now = System.nanoTime();
+			long start = Math.max(now, nextFreeNanos);
+			nextFreeNanos = start + bytes * 1_000_000_000L / bytesPerSecond;
+			waitNanos = start - now;
+		}
+		if(waitNanos > 0)
+		{
+			Thread.sleep(waitNanos / 1_000_000L, (int) (waitNanos % 1_000_000L));
+		}
+	}
+}
+
+/**
+ * One device in the scheduler. The lane runs as many readers as its queue depth on the scheduler's executor, each taking
+ * the next unread chunk, so a device never has more reads outstanding than its queue depth and a slow device can only
+ * ever slow down itself.
+ */
+class DeviceLane
+{
+	private final String deviceName;
+	private final int queueDepth;
+	private final int chunkCount;
+	private final DeviceChunkReader reader;
+	private final BandwidthLimiter limiter;
+	private final LongAdder bytesRead = new LongAdder();
+	
+	public DeviceLane(String deviceName, int queueDepth, long bytesPerSecond, int chunkCount, DeviceChunkReader reader)
+	{
+		if(queueDepth < 1)
+		{
+			throw new IllegalArgumentException("Queue depth must be at least 1 for device --> "+deviceName);
+		}
+		this.deviceName = deviceName;
+		this.queueDepth = queueDepth;
+		this.chunkCount = chunkCount;
+		this.reader = reader;
+		this.limiter = new BandwidthLimiter(bytesPerSecond);
+	}
+	
+	/**
+	 * Submits every chunk of the device. The returned future completes with the device's result once its last chunk is read
+	 */
+	public CompletableFuture<DeviceReadResult> start(long startNanos, Executor executor)
+	{
+		AtomicInteger nextChunk = new AtomicInteger();
+		CompletableFuture<?>[] readers = new CompletableFuture<?>[Math.min(queueDepth, chunkCount)];
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = CompletableFuture.runAsync(() -> {
+				int chunkIndex;
+				while((chunkIndex = nextChunk.getAndIncrement()) < chunkCount)
+				{
+					readChunk(chunkIndex);
+				}
+			}, executor);
+		}
+		return CompletableFuture.allOf(readers)
+				.handle((ignored, error) -> new DeviceReadResult(deviceName, bytesRead.sum(), System.nanoTime() - startNanos, error));
+	}
+	
+	private void readChunk(int chunkIndex)
+	{
+		try {
+			long bytes = reader.readChunk(chunkIndex);
+			limiter.acquire(bytes);
+			bytesRead.add(bytes);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Reading "+deviceName+" was interrupted", e);
+		} catch (Exception e) {
+			throw new IllegalStateException("Failed reading chunk "+chunkIndex+" of "+deviceName, e);
+		}
+	}
+}
+
+/**
+ * Outcome of reading a single device
+ */
+class DeviceReadResult
+{
+	private final String deviceName;
+	private final long bytesRead;
+	private final long elapsedNanos;
+	private final Throwable error;
+	
+	public DeviceReadResult(String deviceName, long bytesRead, long elapsedNanos, Throwable error)
+	{
+		this.deviceName = deviceName;
+		this.bytesRead = bytesRead;
+		this.elapsedNanos = elapsedNanos;
+		this.error = error;
+	}
+	
+	public String getDeviceName() {
+		return deviceName;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	public Throwable getError() {
+		return error;
+	}
+
+	public double getMegabytesPerSecond() {
+		return elapsedNanos == 0 ? 0 : bytesRead / 1e6 / (elapsedNanos / 1e9);
+	}
+}
+
+/**
+ * Per device and aggregate throughput of one run of the scheduler
+ */
+class DeviceReadReport
+{
+	private final List<DeviceReadResult> results;
+	private final long wallNanos;
+	
+	public DeviceReadReport(List<DeviceReadResult> results, long wallNanos)
+	{
+		this.results = results;
+		this.wallNanos = wallNanos;
+	}
+	
+	public List<DeviceReadResult> getResults() {
+		return results;
+	}
+	
+	public long getTotalBytes() {
+		return results.stream().mapToLong(DeviceReadResult::getBytesRead).sum();
+	}
+	
+	public double getAggregateMegabytesPerSecond() {
+		return wallNanos == 0 ? 0 : getTotalBytes() / 1e6 / (wallNanos / 1e9);
+	}
+	
+	public void print()
+	{
+		for (DeviceReadResult result : results) {
+			Output.printf("%-12s %8.1f MB in %6d ms -> %7.1f MB/s%s%n", result.getDeviceName(), result.getBytesRead() / 1e6,
+					result.getElapsedNanos() / 1_000_000L, result.getMegabytesPerSecond(),
+					result.getError() == null ? "" : " (failed: "+result.getError().getMessage()+")");
+		}
+		Output.printf("%-12s %8.1f MB in %6d ms -> %7.1f MB/s%n", "All devices", getTotalBytes() / 1e6,
+				wallNanos / 1_000_000L, getAggregateMegabytesPerSecond());
+	}
+}
+
+/**
+ * Reads all registered devices concurrently. Each device is a separate lane with its own queue depth and bandwidth
+ * limit, and the scheduler only waits for all lanes at the very end. The lanes run on the executor passed in, which
+ * needs as many threads as the queue depths add up to for every device to be read at full depth.
+ */
+class DeviceReadScheduler
+{
+	private final Map<String, DeviceLane> lanes = new LinkedHashMap<>();
+	private final Executor executor;
+	
+	public DeviceReadScheduler(Executor executor)
+	{
+		this.executor = executor;
+	}
+	
+	public DeviceReadScheduler addDevice(String deviceName, int queueDepth, long bytesPerSecond, int chunkCount, DeviceChunkReader reader)
+	{
+		lanes.put(deviceName, new DeviceLane(deviceName, queueDepth, bytesPerSecond, chunkCount, reader));
+		return this;
+	}
+	
+	public DeviceReadReport readAll() throws InterruptedException
+	{
+		long startNanos = System.nanoTime();
+		List<CompletableFuture<DeviceReadResult>> running = new ArrayList<>();
+		for (DeviceLane lane : lanes.values()) {
+			running.add(lane.start(startNanos, executor));
+		}
+		List<DeviceReadResult> results = new ArrayList<>();
+		for (CompletableFuture<DeviceReadResult> future : running) {
+			try {
+				results.add(future.get());
+			} catch (ExecutionException e) {
+				// handle() in DeviceLane never completes exceptionally
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		return new DeviceReadReport(results, System.nanoTime() - startNanos);
+	}
+}
+
+/**
+ * A fixed set of direct buffers shared by every copy. Direct buffers are costly to allocate and are only released by the GC,
+ * so they are created once up front and handed out again and again.
+ */
+class DirectBufferPool
+{
+	private final BlockingQueue<ByteBuffer> freeBuffers;
+	private final int bufferSize;
+	
+	public DirectBufferPool(int bufferCount, int bufferSize)
+	{
+		if(bufferCount < 2)
+		{
+			throw new IllegalArgumentException("Double buffering needs at least 2 buffers, got --> "+bufferCount);
+		}
+		this.bufferSize = bufferSize;
+		this.freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+		for (int i = 0; i < bufferCount; i++) {
+			freeBuffers.add(ByteBuffer.allocateDirect(bufferSize));
+		}
+	}
+	
+	public ByteBuffer acquire() throws InterruptedException
+	{
+		ByteBuffer buffer = freeBuffers.take();
+		buffer.clear();
+		return buffer;
+	}
+	
+	public void release(ByteBuffer buffer)
+	{
+		freeBuffers.offer(buffer);
+	}
+	
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
+
+/**
+ * Outcome of one copy: bytes moved, time taken and the CRC32C of everything that was copied
+ */
+class CopyResult
+{
+	// CRC32C's polynomial, bit reversed
+	private static final long CASTAGNOLI = 0x82F63B78L;
+	
+	private final long bytesCopied;
+	private final long elapsedNanos;
+	private final long checksum;
+	
+	public CopyResult(long bytesCopied, long elapsedNanos, long checksum)
+	{
+		this.bytesCopied = bytesCopied;
+		this.elapsedNanos = elapsedNanos;
+		this.checksum = checksum;
+	}
+	
+	/**
+	 * Combines two copies made one after another into the same target. The checksum is the CRC32C of both copies'
+	 * bytes in that order, as if they had been copied in one go
+	 */
+	public CopyResult add(CopyResult other)
+	{
+		return new CopyResult(bytesCopied + other.bytesCopied, elapsedNanos + other.elapsedNanos,
+				combineCrc32c(checksum, other.checksum, other.bytesCopied));
+	}
+	
+	/**
+	 * The CRC32C of two blocks one after the other, from the CRC32C of each and the length of the second, the way zlib's
+	 * crc32_combine does it: appending the second block's length in zeros to the first CRC is a linear operator over GF(2),
+	 * applied by squaring a 32x32 bit matrix once per bit of the length
+	 */
+	static long combineCrc32c(long crc1, long crc2, long length2)
+	{
+		if(length2 <= 0)
+		{
+			return crc1;
+		}
+		long[] even = new long[32];
+		long[] odd = new long[32];
+		// the operator for one zero bit
+		odd[0] = CASTAGNOLI;
+		for (int n = 1; n < 32; n++)
+		{
+			odd[n] = 1L << (n - 1);
+		}
+		// two zero bits, then four
+		square(even, odd);
+		square(odd, even);
+		// the first squaring below gives one zero byte, each following one doubles it
+		do
+		{
+			square(even, odd);
+			if((length2 & 1) != 0)
+			{
+				crc1 = times(even, crc1);
+			}
+			length2 >>= 1;
+			if(length2 == 0)
+			{
+				break;
+			}
+			square(odd, even);
+			if((length2 & 1) != 0)
+			{
+				crc1 = times(odd, crc1);
+			}
+			length2 >>= 1;
+		}
+		while(length2 != 0);
+		return crc1 ^ crc2;
+	}
+	
+	private static long times(long[] matrix, long vector)
+	{
+		long sum = 0;
+		for (int i = 0; vector != 0; i++, vector >>>= 1)
+		{
+			if((vector & 1) != 0)
+			{
+				sum ^= matrix[i];
+			}
+		}
+		return sum;
+	}
+	
+	private static void square(long[] square, long[] matrix)
+	{
+		for (int n = 0; n < 32; n++)
+		{
+			square[n] = times(matrix, matrix[n]);
+		}
+	}
+	
+	public long getBytesCopied() {
+		return bytesCopied;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	public long getChecksum() {
+		return checksum;
+	}
+
+	public double getMegabytesPerSecond() {
+		return elapsedNanos == 0 ? 0 : bytesCopied / 1e6 / (elapsedNanos / 1e9);
+	}
+}
+
+/**
+ * Copies a channel in chunks using buffers from the pool. A reader thread fills a buffer and updates the checksum while
+ * the calling thread writes the previously filled buffer, so reading and writing overlap (double buffering).
+ * Once the pool is warm, a copy allocates nothing per chunk.
+ */
+class ChunkedCopyEngine
+{
+	// Marks the end of the source in the hand-off queue
+	private static final ByteBuffer END_OF_SOURCE = ByteBuffer.allocate(0);
+	
+	private final DirectBufferPool bufferPool;
+	private final ExecutorService readerThread = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Chunked copy reader");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	public ChunkedCopyEngine(DirectBufferPool bufferPool)
+	{
+		this.bufferPool = bufferPool;
+	}
+	
+	/**
+	 * Only one copy runs at a time, since the reader thread and the pool are shared by all copies
+	 */
+	public synchronized CopyResult copy(ReadableByteChannel source, WritableByteChannel target) throws IOException
+	{
+		long startNanos = System.nanoTime();
+		BlockingQueue<ByteBuffer> filledBuffers = new ArrayBlockingQueue<>(2);
+		CRC32C checksum = new CRC32C();
+		AtomicBoolean aborted = new AtomicBoolean();
+		CompletableFuture<Void> reading = CompletableFuture.runAsync(() -> readAll(source, filledBuffers, checksum, aborted), readerThread);
+		
+		long bytesCopied = 0;
+		boolean endOfSource = false;
+		try {
+			ByteBuffer buffer;
+			while((buffer = filledBuffers.take()) != END_OF_SOURCE)
+			{
+				try {
+					while(buffer.hasRemaining())
+					{
+						bytesCopied += target.write(buffer);
+					}
+				} finally {
+					bufferPool.release(buffer);
+				}
+			}
+			endOfSource = true;
+			reading.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Copy was interrupted", e);
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause() != null && e.getCause().getCause() instanceof IOException ? e.getCause().getCause() : e.getCause();
+			throw cause instanceof IOException ? (IOException) cause : new IOException("Copy failed", cause);
+		} finally {
+			if(!endOfSource)
+			{
+				// stop the reader and hand its buffers back, otherwise the next copy would find the pool empty
+				aborted.set(true);
+				drain(filledBuffers);
+			}
+		}
+		return new CopyResult(bytesCopied, System.nanoTime() - startNanos, checksum.getValue());
+	}
+	
+	private void readAll(ReadableByteChannel source, BlockingQueue<ByteBuffer> filledBuffers, CRC32C checksum, AtomicBoolean aborted)
+	{
+		try {
+			try {
+				while(!aborted.get())
+				{
+					ByteBuffer buffer = bufferPool.acquire();
+					boolean handedOff = false;
+					try {
+						if(fill(source, buffer) <= 0)
+						{
+							break;
+						}
+						buffer.flip();
+						checksum.update(buffer);
+						buffer.rewind();
+						filledBuffers.put(buffer);
+						handedOff = true;
+					} finally {
+						// a failed read must not keep the buffer, the pool is shared by every later copy
+						if(!handedOff)
+						{
+							bufferPool.release(buffer);
+						}
+					}
+				}
+			} finally {
+				filledBuffers.put(END_OF_SOURCE);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Fills the buffer as far as the source allows. Returns -1 only when nothing could be read before the end of the source
+	 */
+	private static int fill(ReadableByteChannel source, ByteBuffer buffer) throws IOException
+	{
+		int total = 0;
+		while(buffer.hasRemaining())
+		{
+			int read = source.read(buffer);
+			if(read < 0)
+			{
+				return total == 0 ? -1 : total;
+			}
+			total += read;
+		}
+		return total;
+	}
+	
+	/**
+	 * Releases every buffer still queued, up to the reader's end marker
+	 */
+	private void drain(BlockingQueue<ByteBuffer> filledBuffers)
+	{
+		boolean interrupted = false;
+		ByteBuffer buffer;
+		while(true)
+		{
+			try {
+				buffer = filledBuffers.take();
+			} catch (InterruptedException e) {
+				interrupted = true;
+				continue;
+			}
+			if(buffer == END_OF_SOURCE)
+			{
+				break;
+			}
+			bufferPool.release(buffer);
+		}
+		if(interrupted)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
+
+/**
+ * Measures the copy engine by copying a large synthetic SD card into a sink that discards the bytes.
+ * Prints the sustained throughput and the heap allocated per GB copied, next to a naive copy that allocates a new array per read.
+ */
+class ChunkedCopyBenchmark
+{
+	public static void main(String[] args) throws IOException
+	{
+		long bytesPerRun = 2L << 30;
+		ChunkedCopyEngine engine = new ChunkedCopyEngine(new DirectBufferPool(4, 1 << 20));
+		
+		// warm up so the JIT and the pool are settled before measuring
+		engine.copy(new SyntheticCardChannel(bytesPerRun / 8), new DiscardingChannel());
+		naiveCopy(new SyntheticCardChannel(bytesPerRun / 8), new DiscardingChannel());
+		
+		long allocatedBefore = allocatedBytes();
+		CopyResult pooled = engine.copy(new SyntheticCardChannel(bytesPerRun), new DiscardingChannel());
+		long pooledAllocated = allocatedBytes() - allocatedBefore;
+		
+		allocatedBefore = allocatedBytes();
+		long startNanos = System.nanoTime();
+		naiveCopy(new SyntheticCardChannel(bytesPerRun), new DiscardingChannel());
+		long naiveNanos = System.nanoTime() - startNanos;
+		long naiveAllocated = allocatedBytes() - allocatedBefore;
+		
+		double gigabytes = bytesPerRun / (double) (1L << 30);
+		System.out.printf("Pooled engine: %8.1f MB/s, %12.0f bytes allocated per GB%n", pooled.getMegabytesPerSecond(), pooledAllocated / gigabytes);
+		System.out.printf("Naive copy   : %8.1f MB/s, %12.0f bytes allocated per GB%n", bytesPerRun / 1e6 / (naiveNanos / 1e9), naiveAllocated / gigabytes);
+	}
+	
+	private static void naiveCopy(ReadableByteChannel source, WritableByteChannel target) throws IOException
+	{
+		CRC32C checksum = new CRC32C();
+		while(true)
+		{
+			ByteBuffer buffer = ByteBuffer.wrap(new byte[1 << 20]);
+			if(source.read(buffer) < 0)
+			{
+				break;
+			}
+			buffer.flip();
+			checksum.update(buffer);
+			buffer.rewind();
+			target.write(buffer);
+		}
+	}
+	
+	/**
+	 * Heap allocated so far by all live threads, as reported by the HotSpot thread MXBean
+	 */
+	private static long allocatedBytes()
+	{
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long total = 0;
+		for (long allocated : threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds())) {
+			total += Math.max(allocated, 0);
+		}
+		return total;
+	}
+}
+
+/**
+ * A card of the given size whose contents are generated on the fly, so the benchmark measures the copy and not the disk
+ */
+class SyntheticCardChannel implements ReadableByteChannel
+{
+	private long remaining;
+	private boolean open = true;
+	
+	public SyntheticCardChannel(long size)
+	{
+		this.remaining = size;
+	}
+	
+	@Override
+	public int read(ByteBuffer dst) {
+		if(remaining == 0)
+		{
+			return -1;
+		}
+		int count = (int) Math.min(dst.remaining(), remaining);
+		for (int i = 0; i < count; i++) {
+			dst.put((byte) (remaining - i));
+		}
+		remaining -= count;
+		return count;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+	}
+}
+
+/**
+ * A target that accepts and drops every byte
+ */
+class DiscardingChannel implements WritableByteChannel
+{
+	@Override
+	public int write(ByteBuffer src) {
+		int count = src.remaining();
+		src.position(src.limit());
+		return count;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return true;
+	}
+
+	@Override
+	public void close() {
+	}
+}
+
+/**
+ * Reads every device of a laptop at the same time through the scheduler. The devices are simulated with a fixed latency
+ * per chunk, so the run takes a few hundred milliseconds and its numbers vary from run to run.
+ */
+class DeviceReadDemo
+{
+	public static void main(String[] args) throws InterruptedException
+	{
+		Laptop laptop = new Laptop(false, false, false, false);
+		ExecutorService readers = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "device reader");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			new DeviceReadScheduler(readers)
+					.addDevice("Internal HDD", 4, 200_000_000L, 32, new SimulatedDevice(2, 1 << 20, laptop::readInternalHDD))
+					.addDevice("External HDD", 2, 100_000_000L, 32, new SimulatedDevice(4, 1 << 20, laptop::readExternalHDD))
+					.addDevice("DVD", 1, 10_000_000L, 8, new SimulatedDevice(50, 1 << 19, laptop::readDiscDrive))
+					.addDevice("SD card", 2, 40_000_000L, 16, new SimulatedDevice(5, 1 << 19, laptop::readSDcard))
+					.addDevice("USB", 2, 60_000_000L, 16, new SimulatedDevice(3, 1 << 19, laptop::readUSB))
+					.readAll()
+					.print();
+		} finally {
+			readers.shutdown();
+		}
+	}
+	
+	/**
+	 * Stands in for a real device. Every chunk takes a fixed latency, and the first chunk also runs the device's read
+	 * method so that the laptop still reports which device is being read.
+	 */
+	private static class SimulatedDevice implements DeviceChunkReader
+	{
+		private final long latencyMillis;
+		private final int chunkSize;
+		private final Runnable onFirstChunk;
+		
+		public SimulatedDevice(long latencyMillis, int chunkSize, Runnable onFirstChunk)
+		{
+			this.latencyMillis = latencyMillis;
+			this.chunkSize = chunkSize;
+			this.onFirstChunk = onFirstChunk;
+		}
+		
+		@Override
+		public long readChunk(int chunkIndex) throws Exception {
+			if(chunkIndex == 0)
+			{
+				onFirstChunk.run();
+			}
+			Thread.sleep(latencyMillis);
+			return chunkSize;
+		}
+	}
+}
+
+/**
+ * Drives hundreds of device reads from a single I/O thread through the asynchronous readers
+ */
+class AsyncDeviceReadDemo
+{
+	public static void main(String[] args) throws IOException
+	{
+		int outstandingReads = 500;
+		Path sdCardImage = Files.createTempFile("sdcard", ".img");
+		Path usbImage = Files.createTempFile("usb", ".img");
+		Files.write(sdCardImage, new byte[4 << 20]);
+		Files.write(usbImage, new byte[4 << 20]);
+		ExecutorService ioThread = Executors.newSingleThreadExecutor();
+		try {
+			AsyncFileReader fileReader = new AsyncFileReader(ioThread, 64 * 1024);
+			LaptopAdapter adapter = LaptopAdapter.getAdapterInstance();
+			adapter.setAsyncReaders(new AsyncMobile(fileReader, sdCardImage, sdCardImage), new AsyncSDCard(fileReader, sdCardImage), new AsyncUSBPort(fileReader, usbImage));
+			try {
+				// the blocking surface still works, it just waits on the asynchronous read
+				new Laptop(true, false, false, true);
+				
+				long startNanos = System.nanoTime();
+				List<CompletableFuture<Long>> reads = new ArrayList<>();
+				for (int i = 0; i < outstandingReads; i++) {
+					reads.add(i % 2 == 0 ? adapter.readSDcardAsync() : adapter.readUSBAsync());
+				}
+				long bytes = reads.stream().mapToLong(CompletableFuture::join).sum();
+				long elapsedNanos = System.nanoTime() - startNanos;
+				Output.printf("%d reads on one I/O thread: %.1f MB in %d ms -> %.1f MB/s%n", outstandingReads, bytes / 1e6,
+						elapsedNanos / 1_000_000L, bytes / 1e6 / (elapsedNanos / 1e9));
+			} finally {
+				// the adapter is shared, everyone else gets the blocking readers back
+				adapter.setAsyncReaders(null, null, null);
+			}
+		} finally {
+			ioThread.shutdown();
+			Files.deleteIfExists(sdCardImage);
+			Files.deleteIfExists(usbImage);
+		}
 	}
 }
@@ -1,5 +1,35 @@
 package com.learn.desgin.patterns.structural;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntUnaryOperator;
+import java.util.function.UnaryOperator;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.designpatterns.output.Output;
+
 /**
  * Decorator helps in adding a new functionality to an existing object, without altering its Structure. 
  * Since it deals with structure it belongs to the set of Structural pattern.
@@ -21,15 +51,18 @@ public class DecoratorPattern
 	public static void main(String args[])
 	{
 		// prior to adding new functionality
-		System.out.println("Whatsapp version 1:");
+		Output.println("Whatsapp version 1:");
 		whatsappVer1.sendTextMsg(msg);
 		whatsappVer1.sendPictureMsg(imageBytes);
 		
 		// after adding new functionality
-		System.out.println("\nWhatsapp version 2:");
+		Output.println("\nWhatsapp version 2:");
 		whatsappVer2.setSignature("* Calvin - 9843398927 - calvinjose.1987@gmail.com");
 		whatsappVer2.sendTextMsg(msg);
 		whatsappVer2.sendPictureMsg(imageBytes);
+		
+		// the same text message as segments, the signature is appended without copying the message
+		whatsappVer2.sendCompositeMsg(CompositeMessage.of(msg));
 	}
 }
 
@@ -37,18 +70,147 @@ interface WhatsappMessage
 {
 	public void sendTextMsg(String msg);
 	public void sendPictureMsg(byte[] imageBytes);
+	public void sendCompositeMsg(CompositeMessage msg);
+	
+	/**
+	 * A picture made of the remaining bytes of the segments, one after the other. The segments are consumed during the call
+	 * and not kept, so the caller may reuse their memory afterwards. Unless the implementation can send them as they are, they are joined
+	 * into one array for sendPictureMsg
+	 */
+	public default void sendPictureSegments(ByteBuffer... segments)
+	{
+		int length = 0;
+		for (ByteBuffer segment : segments) {
+			length += segment.remaining();
+		}
+		byte[] imageBytes = new byte[length];
+		int position = 0;
+		for (ByteBuffer segment : segments) {
+			int remaining = segment.remaining();
+			segment.get(imageBytes, position, remaining);
+			position += remaining;
+		}
+		sendPictureMsg(imageBytes);
+	}
+	
+	/**
+	 * Text messages that go out together. Unless the implementation can send them in one go, they are sent one by one
+	 */
+	public default void sendTextBatch(TextBatch batch)
+	{
+		for (int i = 0; i < batch.size(); i++) {
+			sendTextMsg(batch.get(i));
+		}
+	}
 }
 
 class WhatsappVer1 implements WhatsappMessage
 {
+	private GatheringByteChannel outbound;
+	private ByteBuffer frameBuffer;
+	
+	public WhatsappVer1() {}
+	
+	/**
+	 * Sends every message into the given channel instead of printing it
+	 */
+	public WhatsappVer1(GatheringByteChannel outbound)
+	{
+		this.outbound = outbound;
+	}
+	
 	@Override
 	public void sendTextMsg(String msg) {
-		System.out.println("Sending whatsapp text message :\n"+ msg);
+		if(outbound != null)
+		{
+			write(ByteBuffer.wrap(msg.getBytes(StandardCharsets.UTF_8)));
+			return;
+		}
+		Output.println("Sending whatsapp text message :\n"+ msg);
 	}
 
 	@Override
 	public void sendPictureMsg(byte[] imageBytes) {
-		System.out.println("Sending whatsapp picture message");
+		if(outbound != null)
+		{
+			write(ByteBuffer.wrap(imageBytes));
+			return;
+		}
+		Output.println("Sending whatsapp picture message");
+	}
+	
+	/**
+	 * On a channel the segments go out with gathering writes, so they are never joined into a single array
+	 */
+	@Override
+	public void sendPictureSegments(ByteBuffer... segments) {
+		if(outbound == null)
+		{
+			WhatsappMessage.super.sendPictureSegments(segments);
+			return;
+		}
+		long length = 0;
+		for (ByteBuffer segment : segments) {
+			length += segment.remaining();
+		}
+		try {
+			for (long written = 0; written < length;) {
+				written += outbound.write(segments);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * All segments go out in one gathering write, so they are never joined into a single array
+	 */
+	@Override
+	public void sendCompositeMsg(CompositeMessage msg) {
+		if(outbound != null)
+		{
+			try {
+				msg.writeTo(outbound);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return;
+		}
+		Output.println("Sending whatsapp text message :\n"+ msg);
+	}
+	
+	/**
+	 * On a channel the batch goes out as frames, see WhatsappFrames, encoded into one reused buffer. On the console every
+	 * message is printed like a single one
+	 */
+	@Override
+	public synchronized void sendTextBatch(TextBatch batch) {
+		if(outbound == null)
+		{
+			WhatsappMessage.super.sendTextBatch(batch);
+			return;
+		}
+		if(frameBuffer == null)
+		{
+			frameBuffer = ByteBuffer.allocateDirect(64 * 1024);
+		}
+		try {
+			WhatsappFrames.write(batch, frameBuffer, outbound);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private void write(ByteBuffer buffer)
+	{
+		try {
+			while(buffer.hasRemaining())
+			{
+				outbound.write(buffer);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
 	}
 }
 
@@ -70,12 +232,35 @@ abstract class AbstractWhatsappDecorator implements WhatsappMessage
 	public void sendPictureMsg(byte[] imageBytes){
 		whatsappMessage.sendPictureMsg(imageBytes);
 	}
+	
+	@Override
+	public void sendCompositeMsg(CompositeMessage msg){
+		whatsappMessage.sendCompositeMsg(msg);
+	}
+	
+	/**
+	 * For decorators that leave text alone. sendTextBatch itself is not passed on by default, it goes through this
+	 * decorator's sendTextMsg one message at a time, so a decorator that changes text changes every message of a batch
+	 */
+	protected void forwardTextBatch(TextBatch batch){
+		whatsappMessage.sendTextBatch(batch);
+	}
+	
+	/**
+	 * Same as forwardTextBatch for a picture in segments, which otherwise goes through this decorator's sendPictureMsg as one array
+	 */
+	protected void forwardPictureSegments(ByteBuffer... segments){
+		whatsappMessage.sendPictureSegments(segments);
+	}
 }
 
 class WhatsappVer2 extends AbstractWhatsappDecorator
 {
 	private WhatsappMessage whatsappMessage;
 	private String signature;
+	private ByteBuffer signatureSegment;
+	private int imageWidth;
+	private SharpenFilter sharpenFilter = new SharpenFilter(ForkJoinPool.commonPool());
 	
 	public WhatsappVer2(WhatsappMessage whatsappMessage) {
 		super(whatsappMessage);
@@ -88,20 +273,57 @@ class WhatsappVer2 extends AbstractWhatsappDecorator
 		whatsappMessage.sendTextMsg(msgWithSignature);
 	}
 	
+	/**
+	 * Signs every message like sendTextMsg does, into a batch of its own so the sender's batch is left as it was
+	 */
+	@Override
+	public void sendTextBatch(TextBatch batch){
+		TextBatch signed = new TextBatch(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			signed.add(addSignature(batch.get(i)));
+		}
+		whatsappMessage.sendTextBatch(signed);
+	}
+	
 	@Override
 	public void sendPictureMsg(byte[] imageBytes){
 		byte[] enhancedImageBytes = getEnhancedImageBytes(imageBytes);
 		whatsappMessage.sendPictureMsg(enhancedImageBytes);
 	}
 	
+	/**
+	 * Appends the newline and the signature as two more segments. The message itself is not touched
+	 */
+	@Override
+	public void sendCompositeMsg(CompositeMessage msg){
+		if(signatureSegment != null)
+		{
+			msg.append(CompositeMessage.NEWLINE.duplicate()).append(signatureSegment.duplicate());
+		}
+		whatsappMessage.sendCompositeMsg(msg);
+	}
+	
+	/**
+	 * Sharpens the picture in place when its dimensions are known: a binary PPM carries them in its header, a raw RGB image
+	 * needs the configured width. Anything else is sent as it is
+	 */
 	private byte[] getEnhancedImageBytes(byte[] imageBytes) {
-		System.out.println("Performing enhanced image processing");
+		Output.println("Performing enhanced image processing");
+		RgbImageHeader header = RgbImageHeader.read(imageBytes);
+		if(header != null)
+		{
+			sharpenFilter.apply(imageBytes, header.getOffset(), header.getWidth(), header.getHeight());
+		}
+		else if(imageWidth > 0 && imageBytes.length % (imageWidth * 3) == 0)
+		{
+			sharpenFilter.apply(imageBytes, imageWidth, imageBytes.length / (imageWidth * 3));
+		}
 		return imageBytes;
 	}
 
 	private String addSignature(String plainTextMsg)
 	{
-		System.out.println("Adding signature to the plain message");
+		Output.println("Adding signature to the plain message");
 		return plainTextMsg.concat("\n").concat(signature);
 	}
 	
@@ -109,7 +331,1584 @@ class WhatsappVer2 extends AbstractWhatsappDecorator
 		return signature;
 	}
 
+	public int getImageWidth() {
+		return imageWidth;
+	}
+
+	/**
+	 * Width in pixels of the raw RGB pictures sent through this decorator, which have no header to tell it. 0, the default,
+	 * leaves raw pictures alone. PPM pictures are sharpened either way
+	 */
+	public void setImageWidth(int imageWidth) {
+		this.imageWidth = imageWidth;
+	}
+
 	public void setSignature(String signature) {
 		this.signature = signature;
+		// encoded once here, every message then shares the same read only bytes
+		this.signatureSegment = signature == null ? null : ByteBuffer.wrap(signature.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+	}
+}
+
+/**
+ * Collects text and picture transforms in order and fuses them into one WhatsappPipeline.
+ * 
+ * Stacking decorators costs one interface call and one pass over the message per layer. Here the text transforms are folded
+ * into a single prefix and suffix, and each run of byte by byte picture transforms into a single lookup table, so a message
+ * is passed over once per run whatever the number of transforms in it.
+ * 
+ * Picture transforms that need more than one byte at a time, like a sharpen filter, or that change the length, like
+ * compression, cannot be folded into a table. They are added with transformPicture and run as their own pass, in order with
+ * the tables around them.
+ */
+class WhatsappPipelineBuilder
+{
+	private final StringBuilder prefix = new StringBuilder();
+	private final StringBuilder suffix = new StringBuilder();
+	private final List<UnaryOperator<byte[]>> pictureStages = new ArrayList<>();
+	private final List<IntUnaryOperator> byteTransforms = new ArrayList<>();
+	
+	/**
+	 * Puts the text in front of the message as it is at this point of the pipeline
+	 */
+	public WhatsappPipelineBuilder prependText(String text)
+	{
+		prefix.insert(0, text);
+		return this;
+	}
+	
+	public WhatsappPipelineBuilder appendText(String text)
+	{
+		suffix.append(text);
+		return this;
+	}
+	
+	/**
+	 * Same as what WhatsappVer2 does to a text message
+	 */
+	public WhatsappPipelineBuilder appendSignature(String signature)
+	{
+		return appendText("\n").appendText(signature);
+	}
+	
+	/**
+	 * Maps every byte (0..255) of a picture to a new value (0..255)
+	 */
+	public WhatsappPipelineBuilder mapPictureBytes(IntUnaryOperator transform)
+	{
+		byteTransforms.add(transform);
+		return this;
+	}
+	
+	/**
+	 * Runs the whole picture through the transform, which may change it in place and return it, or return a new array of
+	 * any length. Ends the current run of byte transforms
+	 */
+	public WhatsappPipelineBuilder transformPicture(UnaryOperator<byte[]> transform)
+	{
+		if(!byteTransforms.isEmpty())
+		{
+			pictureStages.add(new PictureLookupTable(byteTransforms));
+			byteTransforms.clear();
+		}
+		pictureStages.add(transform);
+		return this;
+	}
+	
+	public WhatsappPipeline build(WhatsappMessage target)
+	{
+		List<UnaryOperator<byte[]>> stages = new ArrayList<>(pictureStages);
+		if(!byteTransforms.isEmpty())
+		{
+			stages.add(new PictureLookupTable(byteTransforms));
+		}
+		return new WhatsappPipeline(target, prefix.toString(), suffix.toString(), stages);
+	}
+}
+
+/**
+ * A run of byte by byte picture transforms, run once for each possible byte value so the picture only needs a table lookup
+ */
+final class PictureLookupTable implements UnaryOperator<byte[]>
+{
+	private final byte[] table = new byte[256];
+	
+	PictureLookupTable(List<IntUnaryOperator> transforms)
+	{
+		for (int value = 0; value < 256; value++) {
+			int mapped = value;
+			for (IntUnaryOperator transform : transforms) {
+				mapped = transform.applyAsInt(mapped) & 0xFF;
+			}
+			table[value] = (byte) mapped;
+		}
+	}
+	
+	/**
+	 * Maps the picture in place
+	 */
+	@Override
+	public byte[] apply(byte[] picture)
+	{
+		for (int i = 0; i < picture.length; i++) {
+			picture[i] = table[picture[i] & 0xFF];
+		}
+		return picture;
+	}
+}
+
+/**
+ * The fused form of a list of transforms. It is final and is the only WhatsappMessage between the caller and the target,
+ * so the call site stays monomorphic no matter how many transforms were added.
+ */
+final class WhatsappPipeline implements WhatsappMessage
+{
+	private final WhatsappMessage target;
+	private final String prefix;
+	private final String suffix;
+	private final ByteBuffer prefixSegment;
+	private final ByteBuffer suffixSegment;
+	private final List<UnaryOperator<byte[]>> pictureStages;
+	
+	WhatsappPipeline(WhatsappMessage target, String prefix, String suffix, List<UnaryOperator<byte[]>> pictureStages)
+	{
+		this.target = target;
+		this.prefix = prefix;
+		this.suffix = suffix;
+		this.prefixSegment = ByteBuffer.wrap(prefix.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+		this.suffixSegment = ByteBuffer.wrap(suffix.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+		this.pictureStages = List.copyOf(pictureStages);
+	}
+	
+	/**
+	 * The message is copied exactly once, into a builder that already has the final size
+	 */
+	@Override
+	public void sendTextMsg(String msg) {
+		if(prefix.isEmpty() && suffix.isEmpty())
+		{
+			target.sendTextMsg(msg);
+			return;
+		}
+		target.sendTextMsg(new StringBuilder(prefix.length() + msg.length() + suffix.length())
+				.append(prefix).append(msg).append(suffix).toString());
+	}
+	
+	/**
+	 * One pass per picture stage. Like the decorators it replaces, the pipeline takes the picture over: it is changed in place,
+	 * so a caller that still needs the original has to send a copy
+	 */
+	@Override
+	public void sendPictureMsg(byte[] imageBytes) {
+		byte[] picture = imageBytes;
+		for (UnaryOperator<byte[]> stage : pictureStages) {
+			picture = stage.apply(picture);
+		}
+		target.sendPictureMsg(picture);
+	}
+	
+	@Override
+	public void sendCompositeMsg(CompositeMessage msg) {
+		if(prefixSegment.hasRemaining())
+		{
+			msg.prepend(prefixSegment.duplicate());
+		}
+		if(suffixSegment.hasRemaining())
+		{
+			msg.append(suffixSegment.duplicate());
+		}
+		target.sendCompositeMsg(msg);
+	}
+}
+
+/**
+ * A fused pipeline against the same transforms as a hand stacked chain of decorators. The chain mixes three decorator types,
+ * like a real chain would, so its call sites go megamorphic. The decorators here do what WhatsappVer2 does without the console output.
+ */
+class WhatsappPipelineBenchmark
+{
+	private static final int MESSAGES = 200_000;
+	private static final int PICTURES = 200;
+	private static final String MESSAGE = "Hi How are you? Shall we meet for lunch tomorrow at the usual place near the office?";
+	
+	public static void main(String[] args)
+	{
+		byte[] picture = new byte[256 * 1024];
+		System.out.println("layers | chain text ns/msg  pipeline text ns/msg | chain picture MB/s  pipeline picture MB/s");
+		for (int layers = 3; layers <= 12; layers += 3) {
+			WhatsappMessage chain = new WhatsappVer1(new CountingChannel());
+			WhatsappPipelineBuilder builder = new WhatsappPipelineBuilder();
+			for (int layer = 0; layer < layers; layer++) {
+				String tag = "[" + layer + "]";
+				switch (layer % 3) {
+				case 0:
+					chain = new SignatureDecorator(chain, tag);
+					break;
+				case 1:
+					chain = new HeaderDecorator(chain, tag);
+					break;
+				default:
+					chain = new PictureBrightnessDecorator(chain, 3);
+					break;
+				}
+			}
+			// the outermost decorator runs first, so the builder gets the layers from the outside in
+			for (int layer = layers - 1; layer >= 0; layer--) {
+				String tag = "[" + layer + "]";
+				switch (layer % 3) {
+				case 0:
+					builder.appendSignature(tag);
+					break;
+				case 1:
+					builder.prependText(tag);
+					break;
+				default:
+					builder.mapPictureBytes(value -> Math.min(255, value + 3));
+					break;
+				}
+			}
+			WhatsappPipeline pipeline = builder.build(new WhatsappVer1(new CountingChannel()));
+			
+			for (int warmup = 0; warmup < 3; warmup++) {
+				sendTexts(chain);
+				sendTexts(pipeline);
+				sendPictures(chain, picture);
+				sendPictures(pipeline, picture);
+			}
+			double megabytes = PICTURES * (double) picture.length / 1e6;
+			System.out.printf("%6d | %17d  %20d | %18.1f  %21.1f%n", layers, sendTexts(chain) / MESSAGES, sendTexts(pipeline) / MESSAGES,
+					megabytes / (sendPictures(chain, picture) / 1e9), megabytes / (sendPictures(pipeline, picture) / 1e9));
+		}
+	}
+	
+	private static long sendTexts(WhatsappMessage whatsapp)
+	{
+		long startNanos = System.nanoTime();
+		for (int i = 0; i < MESSAGES; i++) {
+			whatsapp.sendTextMsg(MESSAGE);
+		}
+		return System.nanoTime() - startNanos;
+	}
+	
+	private static long sendPictures(WhatsappMessage whatsapp, byte[] picture)
+	{
+		long startNanos = System.nanoTime();
+		for (int i = 0; i < PICTURES; i++) {
+			whatsapp.sendPictureMsg(picture);
+		}
+		return System.nanoTime() - startNanos;
+	}
+	
+	private static class SignatureDecorator extends AbstractWhatsappDecorator
+	{
+		private final String signature;
+		
+		SignatureDecorator(WhatsappMessage whatsappMessage, String signature)
+		{
+			super(whatsappMessage);
+			this.signature = signature;
+		}
+		
+		@Override
+		public void sendTextMsg(String msg) {
+			super.sendTextMsg(msg.concat("\n").concat(signature));
+		}
+	}
+	
+	private static class HeaderDecorator extends AbstractWhatsappDecorator
+	{
+		private final String header;
+		
+		HeaderDecorator(WhatsappMessage whatsappMessage, String header)
+		{
+			super(whatsappMessage);
+			this.header = header;
+		}
+		
+		@Override
+		public void sendTextMsg(String msg) {
+			super.sendTextMsg(header.concat(msg));
+		}
+	}
+	
+	private static class PictureBrightnessDecorator extends AbstractWhatsappDecorator
+	{
+		private final int amount;
+		
+		PictureBrightnessDecorator(WhatsappMessage whatsappMessage, int amount)
+		{
+			super(whatsappMessage);
+			this.amount = amount;
+		}
+		
+		@Override
+		public void sendPictureMsg(byte[] imageBytes) {
+			for (int i = 0; i < imageBytes.length; i++) {
+				imageBytes[i] = (byte) Math.min(255, (imageBytes[i] & 0xFF) + amount);
+			}
+			super.sendPictureMsg(imageBytes);
+		}
+	}
+}
+
+/**
+ * Holds text messages back and sends them together, as one TextBatch, once the batch reaches a message count, a byte size
+ * or has waited for the linger time. The target then sees one send per batch instead of one per message. How the batch
+ * is encoded is up to the layer that writes it: WhatsappVer1 on a channel writes one frame per message, see
+ * WhatsappFrames, and the decorators in between handle every message of the batch as they would a single one.
+ * 
+ * Picture messages are not batched, they flush the pending texts first so the order of the messages is kept.
+ * Call close() on shutdown so the last batch is not lost, nothing can be sent after it.
+ */
+class BatchingWhatsappDecorator extends AbstractWhatsappDecorator implements AutoCloseable
+{
+	private final int maxMessages;
+	private final long maxBytes;
+	private final long lingerNanos;
+	private final ScheduledExecutorService lingerTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Whatsapp batch linger");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	// reused for every batch, the layers below are done with it once the send returns
+	private final TextBatch batch;
+	private long[] enqueueNanos;
+	private ScheduledFuture<?> lingerFlush;
+	private boolean closed;
+	
+	private long batchesSent;
+	private long messagesSent;
+	private long messagesDropped;
+	private long totalAddedLatencyNanos;
+	private long maxAddedLatencyNanos;
+	
+	public BatchingWhatsappDecorator(WhatsappMessage whatsappMessage, int maxMessages, long maxBytes, long lingerTime, TimeUnit lingerUnit)
+	{
+		super(whatsappMessage);
+		if(maxMessages < 1)
+		{
+			throw new IllegalArgumentException("A batch needs room for at least 1 message, got --> "+maxMessages);
+		}
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+		this.lingerNanos = lingerUnit.toNanos(lingerTime);
+		this.batch = new TextBatch(maxMessages);
+		this.enqueueNanos = new long[maxMessages];
+	}
+	
+	@Override
+	public synchronized void sendTextMsg(String msg) {
+		checkOpen();
+		add(msg);
+	}
+	
+	/**
+	 * Adds all messages to the batch under one lock, flushing as often as the thresholds require
+	 */
+	public synchronized void sendTextMsgs(List<String> msgs) {
+		checkOpen();
+		for (String msg : msgs) {
+			add(msg);
+		}
+	}
+	
+	@Override
+	public synchronized void sendTextBatch(TextBatch msgs) {
+		checkOpen();
+		for (int i = 0; i < msgs.size(); i++) {
+			add(msgs.get(i));
+		}
+	}
+	
+	@Override
+	public synchronized void sendPictureMsg(byte[] imageBytes) {
+		checkOpen();
+		flush();
+		super.sendPictureMsg(imageBytes);
+	}
+	
+	@Override
+	public synchronized void sendPictureSegments(ByteBuffer... segments) {
+		checkOpen();
+		flush();
+		forwardPictureSegments(segments);
+	}
+	
+	@Override
+	public synchronized void sendCompositeMsg(CompositeMessage msg) {
+		checkOpen();
+		flush();
+		super.sendCompositeMsg(msg);
+	}
+	
+	/**
+	 * Sends whatever is in the batch right now
+	 */
+	public synchronized void flush()
+	{
+		if(lingerFlush != null)
+		{
+			lingerFlush.cancel(false);
+			lingerFlush = null;
+		}
+		int sendingMessages = batch.size();
+		if(sendingMessages == 0)
+		{
+			return;
+		}
+		try {
+			forwardTextBatch(batch);
+		} catch (RuntimeException e) {
+			// part of the batch may already be out, so it is not sent again. The caller gets the failure, a linger flush only the count
+			messagesDropped += sendingMessages;
+			throw e;
+		} finally {
+			batch.clear();
+		}
+		
+		long now = System.nanoTime();
+		for (int i = 0; i < sendingMessages; i++) {
+			long addedLatency = now - enqueueNanos[i];
+			totalAddedLatencyNanos += addedLatency;
+			maxAddedLatencyNanos = Math.max(maxAddedLatencyNanos, addedLatency);
+		}
+		batchesSent++;
+		messagesSent += sendingMessages;
+	}
+	
+	/**
+	 * Flushes the last batch and stops the linger timer. Sending afterwards throws IllegalStateException
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if(closed)
+		{
+			return;
+		}
+		try {
+			flush();
+		} finally {
+			closed = true;
+			lingerTimer.shutdown();
+		}
+	}
+	
+	private void checkOpen()
+	{
+		if(closed)
+		{
+			throw new IllegalStateException("Batching decorator is closed");
+		}
+	}
+	
+	private void add(String msg)
+	{
+		enqueueNanos[batch.size()] = System.nanoTime();
+		batch.add(msg);
+		if(batch.size() >= maxMessages || batch.encodedLength() >= maxBytes)
+		{
+			flush();
+		}
+		else if(lingerFlush == null)
+		{
+			lingerFlush = lingerTimer.schedule(this::flush, lingerNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+	
+	public synchronized long getBatchesSent() {
+		return batchesSent;
+	}
+
+	public synchronized long getMessagesSent() {
+		return messagesSent;
+	}
+
+	/**
+	 * Messages of batches whose send failed
+	 */
+	public synchronized long getMessagesDropped() {
+		return messagesDropped;
+	}
+
+	/**
+	 * Average time a message waited in the batch before it was sent
+	 */
+	public synchronized long getAverageAddedLatencyNanos() {
+		return messagesSent == 0 ? 0 : totalAddedLatencyNanos / messagesSent;
+	}
+
+	public synchronized long getMaxAddedLatencyNanos() {
+		return maxAddedLatencyNanos;
+	}
+}
+
+/**
+ * Text messages handed down a chain together. It holds the messages themselves, not their bytes: the layer that writes
+ * them decides on the encoding. A batch is only valid during the send it is passed to, its sender reuses it afterwards.
+ */
+class TextBatch
+{
+	private String[] messages;
+	private int size;
+	private long encodedLength;
+	
+	TextBatch(int capacity)
+	{
+		this.messages = new String[Math.max(1, capacity)];
+	}
+	
+	public void add(String msg)
+	{
+		if(size == messages.length)
+		{
+			messages = Arrays.copyOf(messages, size * 2);
+		}
+		messages[size++] = msg;
+		encodedLength += WhatsappFrames.frameLength(msg);
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public String get(int index) {
+		if(index < 0 || index >= size)
+		{
+			throw new IndexOutOfBoundsException("No message at index --> "+index);
+		}
+		return messages[index];
+	}
+	
+	/**
+	 * Bytes the batch takes as frames
+	 */
+	public long encodedLength() {
+		return encodedLength;
+	}
+	
+	void clear()
+	{
+		Arrays.fill(messages, 0, size, null);
+		size = 0;
+		encodedLength = 0;
+	}
+}
+
+/**
+ * How a batch of text messages goes over a byte channel: per message a 4 byte big endian length, then that many bytes of
+ * UTF-8. write encodes a batch without allocating, decode splits received bytes back into the messages.
+ */
+final class WhatsappFrames
+{
+	static final int HEADER = Integer.BYTES;
+	
+	private WhatsappFrames() {
+	}
+	
+	static int frameLength(String msg)
+	{
+		return HEADER + utf8Length(msg);
+	}
+	
+	/**
+	 * Encodes the batch into the buffer, writing the buffer out whenever it is full and once more at the end
+	 */
+	static void write(TextBatch batch, ByteBuffer buffer, WritableByteChannel channel) throws IOException
+	{
+		buffer.clear();
+		for (int i = 0; i < batch.size(); i++) {
+			String msg = batch.get(i);
+			if(buffer.remaining() < HEADER)
+			{
+				drain(buffer, channel);
+			}
+			buffer.putInt(utf8Length(msg));
+			for (int c = 0; c < msg.length(); c++) {
+				if(buffer.remaining() < 4)
+				{
+					drain(buffer, channel);
+				}
+				char ch = msg.charAt(c);
+				if(ch < 0x80)
+				{
+					buffer.put((byte) ch);
+				}
+				else if(ch < 0x800)
+				{
+					buffer.put((byte) (0xC0 | ch >> 6)).put((byte) (0x80 | ch & 0x3F));
+				}
+				else if(Character.isHighSurrogate(ch) && c + 1 < msg.length() && Character.isLowSurrogate(msg.charAt(c + 1)))
+				{
+					int codePoint = Character.toCodePoint(ch, msg.charAt(++c));
+					buffer.put((byte) (0xF0 | codePoint >> 18)).put((byte) (0x80 | codePoint >> 12 & 0x3F))
+							.put((byte) (0x80 | codePoint >> 6 & 0x3F)).put((byte) (0x80 | codePoint & 0x3F));
+				}
+				else if(Character.isSurrogate(ch))
+				{
+					// a lone surrogate, replaced the way String.getBytes does
+					buffer.put((byte) '?');
+				}
+				else
+				{
+					buffer.put((byte) (0xE0 | ch >> 12)).put((byte) (0x80 | ch >> 6 & 0x3F)).put((byte) (0x80 | ch & 0x3F));
+				}
+			}
+		}
+		drain(buffer, channel);
+	}
+	
+	/**
+	 * Takes every complete frame from the buffer and leaves a frame that has not fully arrived for the next call
+	 */
+	static List<String> decode(ByteBuffer received)
+	{
+		List<String> messages = new ArrayList<>();
+		while(received.remaining() >= HEADER)
+		{
+			int length = received.getInt(received.position());
+			if(length < 0)
+			{
+				throw new IllegalArgumentException("Frame length must not be negative, got --> "+length);
+			}
+			if(received.remaining() - HEADER < length)
+			{
+				break;
+			}
+			received.position(received.position() + HEADER);
+			byte[] bytes = new byte[length];
+			received.get(bytes);
+			messages.add(new String(bytes, StandardCharsets.UTF_8));
+		}
+		return messages;
+	}
+	
+	private static int utf8Length(String msg)
+	{
+		int length = 0;
+		for (int c = 0; c < msg.length(); c++) {
+			char ch = msg.charAt(c);
+			if(ch < 0x80)
+			{
+				length += 1;
+			}
+			else if(ch < 0x800)
+			{
+				length += 2;
+			}
+			else if(Character.isHighSurrogate(ch) && c + 1 < msg.length() && Character.isLowSurrogate(msg.charAt(c + 1)))
+			{
+				length += 4;
+				c++;
+			}
+			else if(Character.isSurrogate(ch))
+			{
+				length += 1;
+			}
+			else
+			{
+				length += 3;
+			}
+		}
+		return length;
+	}
+	
+	private static void drain(ByteBuffer buffer, WritableByteChannel channel) throws IOException
+	{
+		buffer.flip();
+		while(buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+}
+
+/**
+ * Sends bursts of text messages into a file, one write per message against the batching decorator at several linger times.
+ * Prints messages per second and the latency the batching adds.
+ */
+class BatchingWhatsappBenchmark
+{
+	private static final int BURSTS = 2_000;
+	private static final int BURST_SIZE = 100;
+	private static final long PAUSE_NANOS = 200_000;
+	private static final String MESSAGE = "Hi How are you? Shall we meet for lunch tomorrow at the usual place near the office?";
+	
+	public static void main(String[] args) throws IOException
+	{
+		Path file = Files.createTempFile("whatsapp", ".out");
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			WhatsappVer1 unbatched = new WhatsappVer1(channel);
+			run(unbatched);
+			System.out.printf("unbatched        : %10.0f msgs/s%n", rate(run(unbatched)));
+			
+			for (long lingerMicros : new long[] { 100, 1_000, 10_000 }) {
+				try (BatchingWhatsappDecorator batching = new BatchingWhatsappDecorator(new WhatsappVer1(channel), 256, 64 * 1024, lingerMicros, TimeUnit.MICROSECONDS)) {
+					run(batching);
+					batching.flush();
+					long sentBefore = batching.getMessagesSent();
+					long elapsedNanos = run(batching);
+					batching.flush();
+					System.out.printf("linger %6d us : %10.0f msgs/s, %6d msgs/batch, added latency avg %6d us max %6d us%n", lingerMicros, rate(elapsedNanos),
+							batching.getMessagesSent() / Math.max(1, batching.getBatchesSent()), batching.getAverageAddedLatencyNanos() / 1_000,
+							batching.getMaxAddedLatencyNanos() / 1_000);
+					if(batching.getMessagesSent() - sentBefore != (long) BURSTS * BURST_SIZE)
+					{
+						throw new IllegalStateException("Messages were lost in the batch");
+					}
+				}
+			}
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+	
+	private static long run(WhatsappMessage whatsapp)
+	{
+		long startNanos = System.nanoTime();
+		for (int burst = 0; burst < BURSTS; burst++) {
+			for (int i = 0; i < BURST_SIZE; i++) {
+				whatsapp.sendTextMsg(MESSAGE);
+			}
+			long pauseEnd = System.nanoTime() + PAUSE_NANOS;
+			while(System.nanoTime() < pauseEnd)
+			{
+				Thread.onSpinWait();
+			}
+		}
+		return System.nanoTime() - startNanos - BURSTS * PAUSE_NANOS;
+	}
+	
+	private static double rate(long elapsedNanos)
+	{
+		return (double) BURSTS * BURST_SIZE / (elapsedNanos / 1e9);
+	}
+}
+
+/**
+ * Deflates picture messages before they go further down the chain. Deflater and Inflater keep native state that is costly to create,
+ * so each thread keeps one of each, plus an output buffer, and resets them for every picture.
+ * 
+ * Small pictures and pictures that do not shrink (already compressed formats like JPEG) are sent as they are. The first byte of every
+ * picture sent says which it is, so the receiver knows whether to inflate it.
+ * 
+ * Pictures go on as segments (see sendPictureSegments): a deflated one straight out of the thread's output buffer, a raw one as the
+ * marker byte followed by the caller's array, so neither is copied into an array of its own unless a layer below needs one.
+ */
+class CompressingWhatsappDecorator extends AbstractWhatsappDecorator
+{
+	static final byte RAW = 0;
+	static final byte DEFLATED = 1;
+	private static final ByteBuffer RAW_MARKER = ByteBuffer.wrap(new byte[] { RAW }).asReadOnlyBuffer();
+	
+	private final int minimumSize;
+	private final double minimumSavings;
+	private final ThreadLocal<CompressionState> compressionState;
+	
+	private final LongAdder picturesCompressed = new LongAdder();
+	private final LongAdder picturesSkipped = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	
+	/**
+	 * @param minimumSize pictures smaller than this are not compressed
+	 * @param minimumSavings fraction (0..1) the picture must shrink by, otherwise the raw bytes are sent
+	 * @param dictionary preset dictionary shared with the receiver, or null
+	 */
+	public CompressingWhatsappDecorator(WhatsappMessage whatsappMessage, int level, int minimumSize, double minimumSavings, byte[] dictionary)
+	{
+		super(whatsappMessage);
+		this.minimumSize = minimumSize;
+		this.minimumSavings = minimumSavings;
+		this.compressionState = ThreadLocal.withInitial(() -> new CompressionState(level, dictionary));
+	}
+	
+	/**
+	 * Only pictures are compressed, a batch of texts is passed on whole
+	 */
+	@Override
+	public void sendTextBatch(TextBatch batch) {
+		forwardTextBatch(batch);
+	}
+	
+	@Override
+	public void sendPictureMsg(byte[] imageBytes) {
+		bytesIn.add(imageBytes.length);
+		CompressionState state = compressionState.get();
+		int length = imageBytes.length < minimumSize ? 0 : state.deflate(imageBytes, minimumSavings);
+		if(length == 0)
+		{
+			picturesSkipped.increment();
+			bytesOut.add(imageBytes.length + 1);
+			forwardPictureSegments(RAW_MARKER.duplicate(), ByteBuffer.wrap(imageBytes));
+		}
+		else
+		{
+			picturesCompressed.increment();
+			bytesOut.add(length);
+			// the layers below are done with the buffer once the send returns
+			forwardPictureSegments(ByteBuffer.wrap(state.output, 0, length));
+		}
+	}
+	
+	/**
+	 * Turns bytes produced by sendPictureMsg back into the original picture, using this thread's Inflater
+	 */
+	public byte[] decode(byte[] wireBytes) throws DataFormatException
+	{
+		if(wireBytes[0] == RAW)
+		{
+			return Arrays.copyOfRange(wireBytes, 1, wireBytes.length);
+		}
+		return compressionState.get().inflate(wireBytes);
+	}
+	
+	public long getPicturesCompressed() {
+		return picturesCompressed.sum();
+	}
+
+	public long getPicturesSkipped() {
+		return picturesSkipped.sum();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+	
+	/**
+	 * One thread's Deflater, Inflater and output buffer
+	 */
+	private static class CompressionState
+	{
+		// large pictures first get this many bytes deflated as a sample, so incompressible ones are caught early
+		private static final int SAMPLE_SIZE = 4 * 1024;
+		
+		private final Deflater deflater;
+		private final Inflater inflater = new Inflater();
+		private final byte[] dictionary;
+		private byte[] output = new byte[64 * 1024];
+		
+		CompressionState(int level, byte[] dictionary)
+		{
+			this.deflater = new Deflater(level);
+			this.dictionary = dictionary;
+		}
+		
+		/**
+		 * Writes the marker byte, the original length and the deflated bytes to the start of output and returns how many there are,
+		 * or 0 when the result is not small enough to be worth it
+		 */
+		int deflate(byte[] input, double minimumSavings)
+		{
+			if(input.length >= SAMPLE_SIZE * 4 && !shrinks(input, SAMPLE_SIZE, minimumSavings))
+			{
+				return 0;
+			}
+			int limit = (int) (input.length * (1 - minimumSavings));
+			if(output.length < limit + 5)
+			{
+				output = new byte[limit + 5];
+			}
+			deflater.reset();
+			if(dictionary != null)
+			{
+				deflater.setDictionary(dictionary);
+			}
+			deflater.setInput(input);
+			deflater.finish();
+			// header: marker byte and the original length
+			output[0] = DEFLATED;
+			writeInt(output, 1, input.length);
+			int length = 5;
+			while(!deflater.finished())
+			{
+				if(length >= limit + 5)
+				{
+					// already bigger than what we would accept, stop wasting CPU on it
+					return 0;
+				}
+				length += deflater.deflate(output, length, limit + 5 - length);
+			}
+			return length;
+		}
+		
+		private boolean shrinks(byte[] input, int length, double minimumSavings)
+		{
+			int limit = (int) (length * (1 - minimumSavings));
+			deflater.reset();
+			if(dictionary != null)
+			{
+				deflater.setDictionary(dictionary);
+			}
+			deflater.setInput(input, 0, length);
+			deflater.finish();
+			int produced = 0;
+			while(!deflater.finished() && produced < limit)
+			{
+				produced += deflater.deflate(output, 0, Math.min(output.length, limit - produced));
+			}
+			return deflater.finished() && produced < limit;
+		}
+		
+		byte[] inflate(byte[] wireBytes) throws DataFormatException
+		{
+			byte[] result = new byte[readInt(wireBytes, 1)];
+			inflater.reset();
+			inflater.setInput(wireBytes, 5, wireBytes.length - 5);
+			int length = 0;
+			while(length < result.length)
+			{
+				int inflated = inflater.inflate(result, length, result.length - length);
+				if(inflated == 0 && inflater.needsDictionary())
+				{
+					inflater.setDictionary(dictionary);
+				}
+				else if(inflated == 0 && (inflater.finished() || inflater.needsInput()))
+				{
+					throw new DataFormatException("Picture ended after "+length+" of "+result.length+" bytes");
+				}
+				length += inflated;
+			}
+			return result;
+		}
+		
+		private static void writeInt(byte[] target, int offset, int value)
+		{
+			target[offset] = (byte) (value >>> 24);
+			target[offset + 1] = (byte) (value >>> 16);
+			target[offset + 2] = (byte) (value >>> 8);
+			target[offset + 3] = (byte) value;
+		}
+		
+		private static int readInt(byte[] source, int offset)
+		{
+			return (source[offset] & 0xFF) << 24 | (source[offset + 1] & 0xFF) << 16 | (source[offset + 2] & 0xFF) << 8 | (source[offset + 3] & 0xFF);
+		}
+	}
+}
+
+/**
+ * Compression ratio, CPU time and bytes on the wire of the compressing decorator for several picture sizes,
+ * with a raw RGB like picture (compresses well) and random bytes (already compressed, should be skipped)
+ */
+class CompressingWhatsappBenchmark
+{
+	public static void main(String[] args) throws DataFormatException
+	{
+		System.out.println("size     kind   | sent as   ratio  us/picture  wire bytes saved");
+		for (int size : new int[] { 512, 4 * 1024, 64 * 1024, 1024 * 1024 }) {
+			report(size, "image ", rawImage(size));
+			report(size, "random", randomBytes(size));
+		}
+	}
+	
+	private static void report(int size, String kind, byte[] picture) throws DataFormatException
+	{
+		CountingChannel sink = new CountingChannel();
+		CompressingWhatsappDecorator compressing = new CompressingWhatsappDecorator(new WhatsappVer1(sink), Deflater.BEST_SPEED, 1024, 0.1, null);
+		int runs = Math.max(20, 50_000_000 / size / 10);
+		for (int i = 0; i < runs; i++) {
+			compressing.sendPictureMsg(picture);
+		}
+		long writtenBefore = sink.getBytesWritten();
+		long startNanos = System.nanoTime();
+		for (int i = 0; i < runs; i++) {
+			compressing.sendPictureMsg(picture);
+		}
+		long elapsedNanos = System.nanoTime() - startNanos;
+		long wirePerPicture = (sink.getBytesWritten() - writtenBefore) / runs;
+		
+		CountingChannel check = new CountingChannel();
+		byte[][] sent = new byte[1][];
+		CompressingWhatsappDecorator roundTrip = new CompressingWhatsappDecorator(new WhatsappVer1(check) {
+			@Override
+			public void sendPictureMsg(byte[] imageBytes) {
+				sent[0] = imageBytes;
+			}
+			
+			@Override
+			public void sendPictureSegments(ByteBuffer... segments) {
+				ByteBuffer joined = ByteBuffer.allocate(Arrays.stream(segments).mapToInt(ByteBuffer::remaining).sum());
+				for (ByteBuffer segment : segments) {
+					joined.put(segment);
+				}
+				sent[0] = joined.array();
+			}
+		}, Deflater.BEST_SPEED, 1024, 0.1, null);
+		roundTrip.sendPictureMsg(picture);
+		if(!Arrays.equals(picture, roundTrip.decode(sent[0])))
+		{
+			throw new IllegalStateException("Picture did not survive compression");
+		}
+		
+		System.out.printf("%7d  %s | %-8s %6.2f  %10.1f  %10d%n", size, kind, sent[0][0] == CompressingWhatsappDecorator.DEFLATED ? "deflated" : "raw",
+				(double) size / wirePerPicture, elapsedNanos / 1e3 / runs, size - wirePerPicture);
+	}
+	
+	private static byte[] rawImage(int size)
+	{
+		byte[] image = new byte[size];
+		for (int i = 0; i < size; i++) {
+			int pixel = i / 3;
+			image[i] = (byte) ((pixel % 640) / 8 + (i % 3) * 40 + (pixel / 640) / 16);
+		}
+		return image;
+	}
+	
+	private static byte[] randomBytes(int size)
+	{
+		byte[] bytes = new byte[size];
+		new Random(42).nextBytes(bytes);
+		return bytes;
+	}
+}
+
+/**
+ * The dimensions of a binary PPM (P6) picture with 8 bit channels, read from its header: "P6", width, height and 255,
+ * separated by whitespace and comments, then a single whitespace and the RGB pixels.
+ */
+final class RgbImageHeader
+{
+	private final int offset;
+	private final int width;
+	private final int height;
+	
+	private RgbImageHeader(int offset, int width, int height)
+	{
+		this.offset = offset;
+		this.width = width;
+		this.height = height;
+	}
+	
+	/**
+	 * The header of the picture, or null when it is not a P6 PPM whose pixels are all there
+	 */
+	static RgbImageHeader read(byte[] image)
+	{
+		if(image.length < 2 || image[0] != 'P' || image[1] != '6')
+		{
+			return null;
+		}
+		int[] position = { 2 };
+		int width = readNumber(image, position);
+		int height = readNumber(image, position);
+		int maxValue = readNumber(image, position);
+		if(width <= 0 || height <= 0 || maxValue != 255 || position[0] >= image.length || !isWhitespace(image[position[0]]))
+		{
+			return null;
+		}
+		int offset = position[0] + 1;
+		if((long) width * height * 3 != image.length - offset)
+		{
+			return null;
+		}
+		return new RgbImageHeader(offset, width, height);
+	}
+	
+	/**
+	 * Skips whitespace and comments, then reads a decimal number. -1 when there is none or it is too large
+	 */
+	private static int readNumber(byte[] image, int[] position)
+	{
+		int i = position[0];
+		while(i < image.length && (isWhitespace(image[i]) || image[i] == '#'))
+		{
+			if(image[i] == '#')
+			{
+				while(i < image.length && image[i] != '\n' && image[i] != '\r')
+				{
+					i++;
+				}
+			}
+			else
+			{
+				i++;
+			}
+		}
+		long value = 0;
+		int start = i;
+		while(i < image.length && image[i] >= '0' && image[i] <= '9' && value <= Integer.MAX_VALUE)
+		{
+			value = value * 10 + image[i++] - '0';
+		}
+		position[0] = i;
+		return i == start || value > Integer.MAX_VALUE ? -1 : (int) value;
+	}
+	
+	private static boolean isWhitespace(byte b)
+	{
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == 0x0B || b == '\f';
+	}
+	
+	public int getOffset() {
+		return offset;
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+}
+
+/**
+ * A 3x3 sharpen convolution on a raw RGB image (3 bytes per pixel, rows stored one after another), which may start at an
+ * offset into the array, eg. after a header.
+ * Large images are split into tiles of whole rows which fork/join works on in parallel. The edge pixels are left as they are.
+ * 
+ * The image is sharpened in place. The kernel reads the neighbours of every pixel, so each tile keeps the untouched rows it
+ * still needs in a small band of scratch rows: the row above and below the tile, saved before any tile starts, and the
+ * previous and current row while it works down. The band is kept by the filter and reused, so a picture costs 4 rows per
+ * tile of copying instead of a copy of the whole image.
+ */
+class SharpenFilter
+{
+	// Rows per tile. A tile of a 4K image row is about 1MB, small enough to share the work out and large enough to be worth a task
+	private static final int TILE_ROWS = 64;
+	// scratch rows per tile: above the tile, below the tile, and two more. The above slot and the two take turns as the previous, current and next row
+	private static final int SCRATCH_ROWS = 4;
+	
+	private final ForkJoinPool pool;
+	private byte[] scratch = new byte[0];
+	
+	public SharpenFilter(ForkJoinPool pool)
+	{
+		this.pool = pool;
+	}
+	
+	/**
+	 * Sharpens the image in place using the fork/join pool. One image at a time, as the scratch band is shared
+	 */
+	public void apply(byte[] rgb, int width, int height)
+	{
+		apply(rgb, 0, width, height);
+	}
+	
+	/**
+	 * Same as apply(rgb, width, height) for an image whose first pixel is at the offset
+	 */
+	public synchronized void apply(byte[] rgb, int offset, int width, int height)
+	{
+		if(width < 3 || height < 3)
+		{
+			return;
+		}
+		int tiles = saveTileEdges(rgb, offset, width, height, TILE_ROWS);
+		pool.invoke(new SharpenTiles(rgb, offset, width, height, 0, tiles));
+	}
+	
+	/**
+	 * Same result as apply() on the calling thread only, as one tile. Used as the baseline
+	 */
+	public synchronized void applySingleThreaded(byte[] rgb, int width, int height)
+	{
+		if(width < 3 || height < 3)
+		{
+			return;
+		}
+		saveTileEdges(rgb, 0, width, height, height - 2);
+		sharpenTile(rgb, 0, width, 1, height - 1, 0);
+	}
+	
+	/**
+	 * Saves the row above and the row below every tile before any of them is written. Returns the number of tiles
+	 */
+	private int saveTileEdges(byte[] rgb, int offset, int width, int height, int tileRows)
+	{
+		int stride = width * 3;
+		int tiles = (height - 2 + tileRows - 1) / tileRows;
+		long needed = (long) tiles * SCRATCH_ROWS * stride;
+		if(scratch.length < needed)
+		{
+			scratch = new byte[Math.toIntExact(needed)];
+		}
+		for (int tile = 0; tile < tiles; tile++) {
+			int fromRow = 1 + tile * tileRows;
+			int toRow = Math.min(height - 1, fromRow + tileRows);
+			int band = tile * SCRATCH_ROWS * stride;
+			System.arraycopy(rgb, offset + (fromRow - 1) * stride, scratch, band, stride);
+			System.arraycopy(rgb, offset + toRow * stride, scratch, band + stride, stride);
+		}
+		return tiles;
+	}
+	
+	/**
+	 * Works down the rows of one tile. Before a row is overwritten it is copied into the band, where the next row reads it
+	 * as the row above. The row below is still untouched in the image, or the saved one at the bottom of the tile
+	 */
+	private void sharpenTile(byte[] rgb, int offset, int width, int fromRow, int toRow, int tile)
+	{
+		int stride = width * 3;
+		int band = tile * SCRATCH_ROWS * stride;
+		int above = band;
+		int current = band + 2 * stride;
+		int spare = band + 3 * stride;
+		System.arraycopy(rgb, offset + fromRow * stride, scratch, current, stride);
+		for (int row = fromRow; row < toRow; row++) {
+			boolean lastRow = row + 1 == toRow;
+			byte[] below = lastRow ? scratch : rgb;
+			int belowStart = lastRow ? band + stride : offset + (row + 1) * stride;
+			sharpenRow(scratch, above, scratch, current, below, belowStart, rgb, offset + row * stride, stride);
+			if(!lastRow)
+			{
+				// the row above is not needed any more, its slot takes the next row after that
+				System.arraycopy(rgb, offset + (row + 1) * stride, scratch, spare, stride);
+				int free = above;
+				above = current;
+				current = spare;
+				spare = free;
+			}
+		}
+	}
+	
+	/**
+	 * Each output byte is 5 x centre minus its 4 neighbours of the same colour channel, clamped to 0..255.
+	 * Plain scalar Java, one straight run over the row. There is no explicit SIMD version: the Vector API is still an
+	 * incubator module, which this build does not add.
+	 */
+	static void sharpenRow(byte[] above, int aboveStart, byte[] centre, int centreStart, byte[] below, int belowStart,
+			byte[] target, int targetStart, int stride)
+	{
+		for (int i = 3; i < stride - 3; i++) {
+			int value = 5 * (centre[centreStart + i] & 0xFF)
+					- (centre[centreStart + i - 3] & 0xFF) - (centre[centreStart + i + 3] & 0xFF)
+					- (above[aboveStart + i] & 0xFF) - (below[belowStart + i] & 0xFF);
+			target[targetStart + i] = (byte) Math.min(255, Math.max(0, value));
+		}
+	}
+	
+	private class SharpenTiles extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final byte[] rgb;
+		private final int offset;
+		private final int width;
+		private final int height;
+		private final int fromTile;
+		private final int toTile;
+		
+		SharpenTiles(byte[] rgb, int offset, int width, int height, int fromTile, int toTile)
+		{
+			this.rgb = rgb;
+			this.offset = offset;
+			this.width = width;
+			this.height = height;
+			this.fromTile = fromTile;
+			this.toTile = toTile;
+		}
+		
+		@Override
+		protected void compute() {
+			if(toTile - fromTile == 1)
+			{
+				int fromRow = 1 + fromTile * TILE_ROWS;
+				sharpenTile(rgb, offset, width, fromRow, Math.min(height - 1, fromRow + TILE_ROWS), fromTile);
+				return;
+			}
+			int middle = (fromTile + toTile) >>> 1;
+			invokeAll(new SharpenTiles(rgb, offset, width, height, fromTile, middle), new SharpenTiles(rgb, offset, width, height, middle, toTile));
+		}
+	}
+}
+
+/**
+ * Megapixels per second of the sharpen filter, single threaded against fork/join tiles. Both sharpen the same image
+ * over and over in place, the way the decorator uses the filter
+ */
+class SharpenFilterBenchmark
+{
+	public static void main(String[] args)
+	{
+		int width = 4000;
+		int height = 3000;
+		int runs = 20;
+		byte[] image = new byte[width * height * 3];
+		for (int i = 0; i < image.length; i++) {
+			image[i] = (byte) (i * 31 + (i >> 7));
+		}
+		SharpenFilter filter = new SharpenFilter(ForkJoinPool.commonPool());
+		
+		byte[] expected = sharpenCopy(image, width, height);
+		byte[] singleResult = image.clone();
+		byte[] parallelResult = image.clone();
+		filter.applySingleThreaded(singleResult, width, height);
+		filter.apply(parallelResult, width, height);
+		if(!Arrays.equals(expected, singleResult) || !Arrays.equals(expected, parallelResult))
+		{
+			throw new IllegalStateException("In place result differs from sharpening a copy");
+		}
+		
+		double megapixels = width * (double) height / 1e6;
+		System.out.printf("Single thread: %8.1f MP/s%n", megapixels / measure(runs, () -> filter.applySingleThreaded(singleResult, width, height)));
+		System.out.printf("Fork/join (%d threads): %8.1f MP/s%n", ForkJoinPool.commonPool().getParallelism() + 1,
+				megapixels / measure(runs, () -> filter.apply(parallelResult, width, height)));
+	}
+	
+	/**
+	 * The plain way, reading an untouched copy of the image, to check the in place filter against
+	 */
+	private static byte[] sharpenCopy(byte[] rgb, int width, int height)
+	{
+		int stride = width * 3;
+		byte[] target = rgb.clone();
+		for (int row = 1; row < height - 1; row++) {
+			SharpenFilter.sharpenRow(rgb, (row - 1) * stride, rgb, row * stride, rgb, (row + 1) * stride, target, row * stride, stride);
+		}
+		return target;
+	}
+	
+	/**
+	 * Seconds per run, best of the given number of runs after the same number of warm up runs
+	 */
+	private static double measure(int runs, Runnable run)
+	{
+		for (int i = 0; i < runs; i++) {
+			run.run();
+		}
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < runs; i++) {
+			long startNanos = System.nanoTime();
+			run.run();
+			best = Math.min(best, System.nanoTime() - startNanos);
+		}
+		return best / 1e9;
+	}
+}
+
+/**
+ * A message kept as a list of byte segments (a gather list). Decorators prepend or append segments instead of building a
+ * new String, so the payload is never copied on its way through the chain. The sink writes all segments with one gathering write.
+ */
+class CompositeMessage
+{
+	static final ByteBuffer NEWLINE = ByteBuffer.wrap(new byte[] { '\n' }).asReadOnlyBuffer();
+	
+	// segments live in segments[head, tail). Space is kept on both sides so prepend and append are both cheap
+	private ByteBuffer[] segments = new ByteBuffer[16];
+	private int head = 4;
+	private int tail = 4;
+	private long length;
+	
+	public static CompositeMessage of(String text)
+	{
+		return new CompositeMessage().append(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	public static CompositeMessage of(byte[] bytes)
+	{
+		return new CompositeMessage().append(ByteBuffer.wrap(bytes));
+	}
+	
+	public CompositeMessage prepend(ByteBuffer segment)
+	{
+		if(head == 0)
+		{
+			grow();
+		}
+		segments[--head] = segment;
+		length += segment.remaining();
+		return this;
+	}
+	
+	public CompositeMessage append(ByteBuffer segment)
+	{
+		if(tail == segments.length)
+		{
+			grow();
+		}
+		segments[tail++] = segment;
+		length += segment.remaining();
+		return this;
+	}
+	
+	public long length() {
+		return length;
+	}
+	
+	public int segmentCount() {
+		return tail - head;
+	}
+	
+	/**
+	 * Writes every segment with gathering writes until the whole message is out. The segments are consumed by the write
+	 */
+	public long writeTo(GatheringByteChannel channel) throws IOException
+	{
+		long written = 0;
+		int first = head;
+		while(written < length)
+		{
+			written += channel.write(segments, first, tail - first);
+			while(first < tail && !segments[first].hasRemaining())
+			{
+				first++;
+			}
+		}
+		return written;
+	}
+	
+	private void grow()
+	{
+		int count = tail - head;
+		ByteBuffer[] grown = new ByteBuffer[segments.length * 2];
+		int newHead = (grown.length - count) / 2;
+		System.arraycopy(segments, head, grown, newHead, count);
+		segments = grown;
+		head = newHead;
+		tail = newHead + count;
+	}
+	
+	/**
+	 * Joins the segments into a String. This copies, so it is only meant for printing
+	 */
+	@Override
+	public String toString()
+	{
+		byte[] joined = new byte[(int) length];
+		int offset = 0;
+		for (int i = head; i < tail; i++) {
+			ByteBuffer segment = segments[i].duplicate();
+			int count = segment.remaining();
+			segment.get(joined, offset, count);
+			offset += count;
+		}
+		return new String(joined, StandardCharsets.UTF_8);
+	}
+}
+
+/**
+ * Compares chains of 1 to 10 WhatsappVer2 signature decorators sending the same text as a String and as a composite message.
+ * Both go through the real decorators into the same counting sink. What each way copies is measured as the bytes the
+ * sending thread allocates, and both must hand the sink the same number of bytes.
+ */
+class CompositeMessageBenchmark
+{
+	private static final int MESSAGES = 200_000;
+	private static final String MESSAGE = "Hi How are you? Shall we meet for lunch tomorrow at the usual place near the office?";
+	private static final String SIGNATURE = "* Calvin - 9843398927 - calvinjose.1987@gmail.com";
+	
+	public static void main(String[] args)
+	{
+		// the decorators print a line per message, which would be measured too
+		Output.Sink console = Output.getSink();
+		Output.setSink(new DiscardingSink());
+		try {
+			System.out.println("layers | String: ns/msg  allocated bytes/msg | Composite: ns/msg  allocated bytes/msg | bytes sent/msg");
+			for (int layers = 1; layers <= 10; layers++) {
+				// warm up then measure
+				run(layers, false);
+				run(layers, true);
+				long[] string = run(layers, false);
+				long[] composite = run(layers, true);
+				if(string[2] != composite[2])
+				{
+					throw new IllegalStateException("Both ways must send the same bytes, got --> "+string[2]+" and "+composite[2]);
+				}
+				System.out.printf("%6d | %13d  %19d | %16d  %19d | %14d%n", layers, string[0] / MESSAGES, string[1] / MESSAGES,
+						composite[0] / MESSAGES, composite[1] / MESSAGES, string[2] / MESSAGES);
+			}
+		} finally {
+			Output.setSink(console);
+		}
+	}
+	
+	/**
+	 * Returns elapsed nanos, bytes allocated by this thread and bytes that reached the sink
+	 */
+	private static long[] run(int layers, boolean composite)
+	{
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		CountingChannel sink = new CountingChannel();
+		WhatsappMessage chain = new WhatsappVer1(sink);
+		for (int layer = 0; layer < layers; layer++) {
+			WhatsappVer2 decorator = new WhatsappVer2(chain);
+			decorator.setSignature(SIGNATURE);
+			chain = decorator;
+		}
+		long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+		long startNanos = System.nanoTime();
+		for (int i = 0; i < MESSAGES; i++) {
+			if(composite)
+			{
+				chain.sendCompositeMsg(CompositeMessage.of(MESSAGE));
+			}
+			else
+			{
+				chain.sendTextMsg(MESSAGE);
+			}
+		}
+		long elapsedNanos = System.nanoTime() - startNanos;
+		long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+		return new long[] { elapsedNanos, allocated, sink.getBytesWritten() };
+	}
+	
+	private static class DiscardingSink implements Output.Sink
+	{
+		@Override
+		public void println(String line) {
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
+
+/**
+ * A gathering sink that only counts what it is given
+ */
+class CountingChannel implements GatheringByteChannel
+{
+	private long bytesWritten;
+	
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) {
+		long count = 0;
+		for (int i = offset; i < offset + length; i++) {
+			count += srcs[i].remaining();
+			srcs[i].position(srcs[i].limit());
+		}
+		bytesWritten += count;
+		return count;
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs) {
+		return write(srcs, 0, srcs.length);
+	}
+
+	@Override
+	public int write(ByteBuffer src) {
+		int count = src.remaining();
+		src.position(src.limit());
+		bytesWritten += count;
+		return count;
+	}
+	
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return true;
+	}
+
+	@Override
+	public void close() {
 	}
 }
@@ -1,7 +1,11 @@
 package com.designpatterns.structural;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.designpatterns.jfr.PatternEvents;
+import com.designpatterns.metrics.MetricsRegistry;
+import com.designpatterns.output.Output;
 
 /**
  * FlyWeightPattern is a structural pattern. Improves object creation structure of the application.
@@ -54,7 +58,7 @@ class OracleDBConnection implements DBConnection {
 
 	@Override
 	public void establishDBConnection(String[] connectionParams) {
-		System.out.println("Establishing connection for Oracle DB...");
+		Output.println("Establishing connection for Oracle DB...");
 	}
 	
 }
@@ -64,25 +68,48 @@ class OracleDBConnection implements DBConnection {
  * We have a shared map which identifies each connection object by the connectionName parameter. Only when there 
  * is no object existing in the map for a given connection name, a new connection object can be created. Else, the 
  * existing object will be returned from the map. 
+ * 
+ * Hits and misses on the pool are counted in the metrics registry, along with the size of the pool. Each lookup is also
+ * a PoolAccess event in a flight recording
  */
 class OracleDBConnectionPool {
-	private static Map<String, OracleDBConnection> oracleDBConnectionPool = new HashMap<>();
+	private static Map<String, OracleDBConnection> oracleDBConnectionPool = new ConcurrentHashMap<>();
+	private static final MetricsRegistry.Counter HITS = MetricsRegistry.getDefault().counter("flyweight.pool.hits");
+	private static final MetricsRegistry.Counter MISSES = MetricsRegistry.getDefault().counter("flyweight.pool.misses");
+	
+	static {
+		MetricsRegistry.getDefault().gauge("flyweight.pool.size", () -> oracleDBConnectionPool.size());
+	}
 	
 	public static OracleDBConnection getConnectionObjectFromPool(String connectionName) {
-		OracleDBConnection oracleDBConnection = null;
-		if(oracleDBConnectionPool.get(connectionName)==null) {
+		PatternEvents.PoolAccess event = PatternEvents.PoolAccess.isRecording() ? new PatternEvents.PoolAccess() : null;
+		if(event != null) {
+			event.begin();
+		}
+		// if the connection already exists, don't create a new one, just return the existing instance
+		OracleDBConnection oracleDBConnection = oracleDBConnectionPool.get(connectionName);
+		boolean hit = oracleDBConnection != null;
+		if(hit) {
+			HITS.increment();
+		} else {
 			
 			// Create a new connection
 			oracleDBConnection = new OracleDBConnection();
 			oracleDBConnection.setConnectionName(connectionName);
-			System.out.println("Creating a new connection namely: "+connectionName);
 			
-			// Add the connection to the connection pool
-			oracleDBConnectionPool.put(connectionName, oracleDBConnection);
-		} else {
-			
-			// if the connection already exists, don't create a new one, just return the existing instance
-			oracleDBConnection = oracleDBConnectionPool.get(connectionName);
+			// Add the connection to the connection pool, unless another thread added one first
+			OracleDBConnection pooled = oracleDBConnectionPool.putIfAbsent(connectionName, oracleDBConnection);
+			if(pooled != null) {
+				oracleDBConnection = pooled;
+				HITS.increment();
+				hit = true;
+			} else {
+				Output.println("Creating a new connection namely: "+connectionName);
+				MISSES.increment();
+			}
+		}
+		if(event != null) {
+			event.finish("flyweight", connectionName, hit);
 		}
 		return oracleDBConnection;
 	}
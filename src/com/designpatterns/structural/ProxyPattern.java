@@ -3,6 +3,10 @@ package com.designpatterns.structural;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.designpatterns.jfr.PatternEvents;
+import com.designpatterns.metrics.MetricsRegistry;
+import com.designpatterns.output.Output;
+
 /**
  * Proxy pattern is a structural pattern.
  * 
@@ -13,7 +17,7 @@ public class ProxyPattern {
 	public static void main(String[] args) {
 		ProxyService service = new ProxyService();
 		service.getUsersFromService().parallelStream()
-		.forEach(user -> System.out.println(user.getName() + " " +user.getAccountNumber()));
+		.forEach(user -> Output.println(user.getName() + " " +user.getAccountNumber()));
 	}
 
 }
@@ -65,14 +69,38 @@ class RealSecuredService implements ExposeUserData {
  * The class knows the address of the real service and it gets data from it. 
  * 
  * But for the outside world, its like the ProxyService is the actual service.
+ * 
+ * Being the one way in, the proxy is also where calls to the real service are counted and timed, and where they become
+ * ProxyCall events in a flight recording. Every call is counted, a sample of them is timed
  */
 class ProxyService implements ExposeUserData {
+	private static final MetricsRegistry.Counter CALLS = MetricsRegistry.getDefault().counter("proxy.calls");
+	private static final MetricsRegistry.Counter FAILURES = MetricsRegistry.getDefault().counter("proxy.failures");
+	private static final MetricsRegistry.Histogram BACKEND_NANOS = MetricsRegistry.getDefault().histogram("proxy.backend.nanos");
 	
 	private RealSecuredService securedService = new RealSecuredService();
 
 	@Override
 	public List<User> getUsersFromService() {
-		return securedService.getUsersFromService();
+		CALLS.increment();
+		PatternEvents.ProxyCall event = PatternEvents.ProxyCall.isRecording() ? new PatternEvents.ProxyCall() : null;
+		if(event != null) {
+			event.begin();
+		}
+		long startNanos = BACKEND_NANOS.startSample();
+		List<User> users = null;
+		try {
+			users = securedService.getUsersFromService();
+			return users;
+		} catch (RuntimeException e) {
+			FAILURES.increment();
+			throw e;
+		} finally {
+			BACKEND_NANOS.recordSince(startNanos);
+			if(event != null) {
+				event.finish(securedService.getClass(), users == null ? 0 : users.size(), users == null);
+			}
+		}
 	}
 	
 	
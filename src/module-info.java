@@ -6,4 +6,8 @@
  *
  */
 module designpatterns {
-}
\ No newline at end of file
+	requires java.management;
+	requires jdk.management;
+	requires jdk.httpserver;
+	requires jdk.jfr;
+}
@@ -0,0 +1,59 @@
+package com.designpatterns.behavioral;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChatJournalTest {
+
+	@Test
+	void aMemberIdTooLongForItsLengthFieldIsRejected(@TempDir Path directory) throws Exception {
+		try (ChatJournal journal = new ChatJournal(directory, 1 << 20, 0, 0, 1, TimeUnit.SECONDS)) {
+			assertThrows(IllegalArgumentException.class, () -> journal.append(ChatMessage.text("x".repeat(Short.MAX_VALUE + 1), "Hi")));
+			assertEquals(0, journal.getNextOffset());
+		}
+	}
+
+	@Test
+	void appendingAfterCloseIsRejected(@TempDir Path directory) throws Exception {
+		ChatJournal journal = new ChatJournal(directory, 1 << 20, 0, 0, 1, TimeUnit.SECONDS);
+		journal.close();
+		assertThrows(IllegalStateException.class, () -> journal.append(ChatMessage.text("sender", "Hi")));
+	}
+
+	@Test
+	void segmentsOverTheRetentionAgeAreDeletedOnOpen(@TempDir Path directory) throws Exception {
+		try (ChatJournal journal = new ChatJournal(directory, 4096, 0, 0, 1, TimeUnit.SECONDS)) {
+			for (int i = 0; i < 100; i++) {
+				journal.append(ChatMessage.text("sender", "message " + "x".repeat(100)));
+			}
+		}
+		List<Path> written = segmentFiles(directory);
+		FileTime lastWeek = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(7));
+		for (Path segment : written) {
+			Files.setLastModifiedTime(segment, lastWeek);
+		}
+
+		try (ChatJournal journal = new ChatJournal(directory, 4096, 0, TimeUnit.DAYS.toMillis(1), 1, TimeUnit.SECONDS)) {
+			// only the segment appends go to is kept, however old it is
+			assertEquals(1, journal.getSegmentCount());
+			assertEquals(List.of(written.get(written.size() - 1)), segmentFiles(directory));
+		}
+	}
+
+	private static List<Path> segmentFiles(Path directory) throws Exception {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(file -> file.getFileName().toString().endsWith(".log")).sorted().collect(Collectors.toList());
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package com.designpatterns.behavioral;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SharedMemoryGroupBridgeTest {
+
+	@Test
+	void messagesLargerThanASlotAreDroppedAndCounted(@TempDir Path directory) throws Exception {
+		WhatsappGroup group = new WhatsappGroup("Bridge");
+		try (SharedMemoryGroupBridge bridge = new SharedMemoryGroupBridge(group, directory)) {
+			SharedMemoryRingReader peer = new SharedMemoryRingReader(SharedMemoryRing.open(ringFile(directory)));
+			
+			group.post(ChatMessage.text("sender", "x".repeat(1024)));
+			group.post(ChatMessage.media("sender", new byte[1024]));
+			group.post(ChatMessage.text("sender", "Hi"));
+			// delivers everything queued, the dispatcher has to survive the large ones to get to the last
+			group.close();
+			
+			assertEquals(2, bridge.getDropped());
+			assertEquals(0, group.getDeliveryFailures());
+			List<String> received = new ArrayList<>();
+			peer.poll(message -> received.add(message.getText()), 10);
+			assertEquals(List.of("Hi"), received);
+		}
+	}
+	
+	@Test
+	void theRingOfAStoppedProcessIsDeleted(@TempDir Path directory) throws Exception {
+		Process stopped = new ProcessBuilder(ProcessHandle.current().info().command().orElse("java"), "-version").start();
+		stopped.waitFor();
+		Path leftBehind = directory.resolve("whatsapp-Bridge-" + stopped.pid() + ".ring");
+		SharedMemoryRing.create(leftBehind, 16, 64).close();
+		assertTrue(Files.exists(leftBehind));
+		
+		WhatsappGroup group = new WhatsappGroup("Bridge");
+		try (SharedMemoryGroupBridge bridge = new SharedMemoryGroupBridge(group, directory)) {
+			// the poller scans for peers as soon as it starts
+			for (int wait = 0; wait < 100 && Files.exists(leftBehind); wait++) {
+				Thread.sleep(20);
+			}
+			assertFalse(Files.exists(leftBehind));
+		} finally {
+			group.close();
+		}
+	}
+	
+	private static Path ringFile(Path directory) throws Exception {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(file -> file.getFileName().toString().endsWith(".ring")).findFirst().orElseThrow();
+		}
+	}
+}
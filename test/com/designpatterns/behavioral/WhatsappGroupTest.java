@@ -0,0 +1,62 @@
+package com.designpatterns.behavioral;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class WhatsappGroupTest {
+
+	@Test
+	void aSecondMailboxOfTheSameNameIsRejected() {
+		WhatsappGroup group = new WhatsappGroup("Join");
+		ListMember first = new ListMember("member");
+		ListMember second = new ListMember("member");
+		group.join(first, 16, OverflowPolicy.DROP_NEWEST);
+		assertThrows(IllegalArgumentException.class, () -> group.join(second, 16, OverflowPolicy.DROP_NEWEST));
+
+		group.post(ChatMessage.text("sender", "Hi"));
+		// delivers what is queued and what is in the mailboxes
+		group.close();
+		assertEquals(List.of("Hi"), first.received);
+		assertEquals(List.of(), second.received);
+	}
+
+	@Test
+	void leavingClosesTheMailbox() {
+		WhatsappGroup group = new WhatsappGroup("Leave");
+		try {
+			ListMember member = new ListMember("member");
+			MemberMailbox mailbox = group.join(member, 16, OverflowPolicy.DROP_NEWEST);
+			group.leave(member);
+
+			mailbox.receiveMessage(ChatMessage.text("sender", "after leaving"));
+			assertEquals(1, mailbox.getDropped());
+			assertEquals(List.of(), member.received);
+		} finally {
+			group.close();
+		}
+	}
+
+	private static final class ListMember implements WhatsappGroupMember {
+		private final String memberName;
+		private final List<String> received = new ArrayList<>();
+
+		ListMember(String memberName) {
+			this.memberName = memberName;
+		}
+
+		@Override
+		public String getMemberName() {
+			return memberName;
+		}
+
+		@Override
+		public synchronized void receiveMessage(ChatMessage message) {
+			received.add(message.getText());
+		}
+	}
+}
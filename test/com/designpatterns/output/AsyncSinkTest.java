@@ -0,0 +1,75 @@
+package com.designpatterns.output;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+class AsyncSinkTest {
+
+	@Test
+	void aSingleSlotIsRejected() {
+		assertThrows(IllegalArgumentException.class,
+				() -> new Output.AsyncSink(new CrashOnceChannel(), StandardCharsets.UTF_8, 1, Output.OverflowPolicy.BLOCK));
+	}
+
+	@Test
+	void printersWriteTheirOwnLinesOnceTheWriterIsGone() {
+		CrashOnceChannel channel = new CrashOnceChannel();
+		Output.AsyncSink sink = new Output.AsyncSink(channel, StandardCharsets.UTF_8, 2, Output.OverflowPolicy.BLOCK);
+		sink.println("lost");
+		// returns once the writer has died on the first write
+		sink.flush();
+
+		// more lines than the queue holds, with no writer to make room
+		assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+			for (int i = 1; i <= 5; i++) {
+				sink.println("line " + i);
+			}
+		});
+		String separator = System.lineSeparator();
+		assertEquals("line 1" + separator + "line 2" + separator + "line 3" + separator + "line 4" + separator + "line 5" + separator,
+				channel.written());
+	}
+
+	/**
+	 * Fails the first write with an unchecked exception, which ends the writer thread, and keeps the later writes
+	 */
+	private static final class CrashOnceChannel implements WritableByteChannel {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private boolean crashed;
+
+		@Override
+		public synchronized int write(ByteBuffer source) {
+			if(!crashed) {
+				crashed = true;
+				throw new IllegalStateException("Writer crashed");
+			}
+			int length = source.remaining();
+			while(source.hasRemaining()) {
+				bytes.write(source.get());
+			}
+			return length;
+		}
+
+		synchronized String written() {
+			return bytes.toString(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.learn.desgin.patterns.structural;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BatchingWhatsappDecoratorTest
+{
+	@Test
+	void everyMessageOfABatchIsSignedAndFramed(@TempDir Path directory) throws Exception
+	{
+		Path file = directory.resolve("whatsapp.out");
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+		{
+			WhatsappVer2 signing = new WhatsappVer2(new WhatsappVer1(channel));
+			signing.setSignature("sig");
+			try (BatchingWhatsappDecorator batching = new BatchingWhatsappDecorator(signing, 3, 64 * 1024, 1, TimeUnit.HOURS))
+			{
+				batching.sendTextMsg("Hi");
+				batching.sendTextMsg("héllo 😀");
+				// fills the batch, which sends it
+				batching.sendTextMsg("third");
+				assertEquals(1, batching.getBatchesSent());
+			}
+		}
+
+		ByteBuffer received = ByteBuffer.wrap(Files.readAllBytes(file));
+		assertEquals(List.of("Hi\nsig", "héllo 😀\nsig", "third\nsig"), WhatsappFrames.decode(received));
+		assertEquals(0, received.remaining());
+	}
+
+	@Test
+	void decodeLeavesAnIncompleteFrame()
+	{
+		ByteBuffer received = ByteBuffer.allocate(16).putInt(2).put((byte) 'H').put((byte) 'i').putInt(5).put((byte) 'p');
+		received.flip();
+		assertEquals(List.of("Hi"), WhatsappFrames.decode(received));
+		assertEquals(5, received.remaining());
+	}
+
+	@Test
+	void sendingAfterCloseIsRejected()
+	{
+		BatchingWhatsappDecorator batching = new BatchingWhatsappDecorator(new WhatsappVer1(), 3, 64 * 1024, 1, TimeUnit.MILLISECONDS);
+		batching.close();
+		assertThrows(IllegalStateException.class, () -> batching.sendTextMsg("late"));
+		assertThrows(IllegalStateException.class, () -> batching.sendPictureMsg(new byte[1]));
+	}
+}
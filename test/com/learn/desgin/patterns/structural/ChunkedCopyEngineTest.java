@@ -0,0 +1,100 @@
+package com.learn.desgin.patterns.structural;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+import org.junit.jupiter.api.Test;
+
+class ChunkedCopyEngineTest
+{
+	private static final int BUFFER_SIZE = 1024;
+
+	@Test
+	void failedReadsHandTheirBuffersBack()
+	{
+		DirectBufferPool pool = new DirectBufferPool(2, BUFFER_SIZE);
+		ChunkedCopyEngine engine = new ChunkedCopyEngine(pool);
+		byte[] data = new byte[10 * BUFFER_SIZE];
+
+		assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+			// more failed copies than the pool has buffers, each would have kept one
+			for (int i = 0; i < 5; i++)
+			{
+				IOException failure = assertThrows(IOException.class,
+						() -> engine.copy(new FailingChannel(3 * BUFFER_SIZE), Channels.newChannel(new ByteArrayOutputStream())));
+				assertEquals("Disk went away", failure.getMessage());
+			}
+			ByteArrayOutputStream target = new ByteArrayOutputStream();
+			CopyResult result = engine.copy(Channels.newChannel(new ByteArrayInputStream(data)), Channels.newChannel(target));
+			assertEquals(data.length, result.getBytesCopied());
+			assertEquals(data.length, target.size());
+		});
+	}
+
+	@Test
+	void twoCopiesAddUpToTheChecksumOfEverythingWritten() throws IOException
+	{
+		ChunkedCopyEngine engine = new ChunkedCopyEngine(new DirectBufferPool(2, BUFFER_SIZE));
+		byte[] first = new byte[3 * BUFFER_SIZE + 17];
+		byte[] second = new byte[BUFFER_SIZE / 2];
+		Arrays.fill(first, (byte) 7);
+		Arrays.fill(second, (byte) 'x');
+		ByteArrayOutputStream target = new ByteArrayOutputStream();
+
+		CopyResult both = engine.copy(Channels.newChannel(new ByteArrayInputStream(first)), Channels.newChannel(target))
+				.add(engine.copy(Channels.newChannel(new ByteArrayInputStream(second)), Channels.newChannel(target)));
+
+		CRC32C expected = new CRC32C();
+		expected.update(target.toByteArray());
+		assertEquals(expected.getValue(), both.getChecksum());
+		assertEquals(first.length + second.length, both.getBytesCopied());
+	}
+
+	/**
+	 * Gives zeros until the limit is reached, then fails every read
+	 */
+	private static class FailingChannel implements ReadableByteChannel
+	{
+		private long remaining;
+
+		FailingChannel(long failAfter)
+		{
+			this.remaining = failAfter;
+		}
+
+		@Override
+		public int read(ByteBuffer buffer) throws IOException
+		{
+			if(remaining <= 0)
+			{
+				throw new IOException("Disk went away");
+			}
+			int read = (int) Math.min(remaining, buffer.remaining());
+			buffer.position(buffer.position() + read);
+			remaining -= read;
+			return read;
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return true;
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package com.learn.desgin.patterns.structural;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CompressingWhatsappDecoratorTest
+{
+	@Test
+	void rawAndDeflatedPicturesGoOnTheChannelWithTheirMarker(@TempDir Path directory) throws Exception
+	{
+		byte[] small = { 7, 8, 9 };
+		byte[] random = new byte[8 * 1024];
+		new Random(42).nextBytes(random);
+		byte[] flat = new byte[8 * 1024];
+		Arrays.fill(flat, (byte) 5);
+
+		Path file = directory.resolve("pictures.out");
+		CompressingWhatsappDecorator compressing;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+		{
+			compressing = new CompressingWhatsappDecorator(new WhatsappVer1(channel), Deflater.BEST_SPEED, 1024, 0.1, null);
+			compressing.sendPictureMsg(small);
+			compressing.sendPictureMsg(random);
+			compressing.sendPictureMsg(flat);
+		}
+		assertEquals(2, compressing.getPicturesSkipped());
+		assertEquals(1, compressing.getPicturesCompressed());
+
+		byte[] written = Files.readAllBytes(file);
+		assertEquals(compressing.getBytesOut(), written.length);
+		byte[] smallSent = Arrays.copyOfRange(written, 0, 4);
+		byte[] randomSent = Arrays.copyOfRange(written, 4, 4 + 1 + random.length);
+		byte[] flatSent = Arrays.copyOfRange(written, 4 + 1 + random.length, written.length);
+		assertEquals(CompressingWhatsappDecorator.RAW, smallSent[0]);
+		assertEquals(CompressingWhatsappDecorator.RAW, randomSent[0]);
+		assertEquals(CompressingWhatsappDecorator.DEFLATED, flatSent[0]);
+		assertArrayEquals(small, compressing.decode(smallSent));
+		assertArrayEquals(random, compressing.decode(randomSent));
+		assertArrayEquals(flat, compressing.decode(flatSent));
+	}
+
+	@Test
+	void aLayerWithoutSegmentsGetsTheWholePictureAsOneArray()
+	{
+		PictureTarget target = new PictureTarget();
+		CompressingWhatsappDecorator compressing = new CompressingWhatsappDecorator(target, Deflater.BEST_SPEED, 1024, 0.1, null);
+		compressing.sendPictureMsg(new byte[] { 1, 2, 3 });
+		assertArrayEquals(new byte[] { CompressingWhatsappDecorator.RAW, 1, 2, 3 }, target.picture);
+	}
+
+	private static final class PictureTarget implements WhatsappMessage
+	{
+		private byte[] picture;
+
+		@Override
+		public void sendTextMsg(String msg)
+		{
+		}
+
+		@Override
+		public void sendPictureMsg(byte[] imageBytes)
+		{
+			picture = imageBytes;
+		}
+
+		@Override
+		public void sendCompositeMsg(CompositeMessage msg)
+		{
+		}
+	}
+}
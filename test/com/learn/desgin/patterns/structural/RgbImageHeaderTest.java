@@ -0,0 +1,54 @@
+package com.learn.desgin.patterns.structural;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+class RgbImageHeaderTest
+{
+	@Test
+	void theDimensionsComeFromTheHeader()
+	{
+		byte[] image = ppm("P6\n# a comment\n4 3\n255\n", 4 * 3 * 3);
+		RgbImageHeader header = RgbImageHeader.read(image);
+		assertEquals(4, header.getWidth());
+		assertEquals(3, header.getHeight());
+		assertEquals(image.length - 4 * 3 * 3, header.getOffset());
+	}
+
+	@Test
+	void anythingButACompleteEightBitPictureHasNoHeader()
+	{
+		assertNull(RgbImageHeader.read(new byte[] { 1, 2, 3 }));
+		assertNull(RgbImageHeader.read(ppm("P6 4 3 255\n", 4 * 3 * 3 - 1)));
+		assertNull(RgbImageHeader.read(ppm("P6 4 3 65535\n", 4 * 3 * 6)));
+		assertNull(RgbImageHeader.read(ppm("P6 4 99999999999 255\n", 12)));
+	}
+
+	@Test
+	void aPpmPictureIsSharpenedBehindItsHeader()
+	{
+		byte[] image = ppm("P6 3 3 255\n", 3 * 3 * 3);
+		int offset = image.length - 3 * 3 * 3;
+		// a brighter centre pixel gets brighter still
+		image[offset + 12] = (byte) 100;
+		byte[] expected = image.clone();
+		expected[offset + 12] = (byte) 180;
+
+		new SharpenFilter(ForkJoinPool.commonPool()).apply(image, offset, 3, 3);
+		assertEquals(Arrays.toString(expected), Arrays.toString(image));
+	}
+
+	private static byte[] ppm(String header, int pixelBytes)
+	{
+		byte[] text = header.getBytes(StandardCharsets.US_ASCII);
+		byte[] image = Arrays.copyOf(text, text.length + pixelBytes);
+		Arrays.fill(image, text.length, image.length, (byte) 80);
+		return image;
+	}
+}
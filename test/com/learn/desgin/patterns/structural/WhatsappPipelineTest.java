@@ -0,0 +1,55 @@
+package com.learn.desgin.patterns.structural;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class WhatsappPipelineTest
+{
+	@Test
+	void pictureStagesRunInTheOrderTheyWereAdded()
+	{
+		PictureTarget target = new PictureTarget();
+		WhatsappPipeline pipeline = new WhatsappPipelineBuilder()
+				.mapPictureBytes(value -> value + 1)
+				.mapPictureBytes(value -> value * 2)
+				// needs the neighbouring byte, so it cannot be a table
+				.transformPicture(picture -> {
+					for (int i = picture.length - 1; i > 0; i--) {
+						picture[i] -= picture[i - 1];
+					}
+					return picture;
+				})
+				// changes the length
+				.transformPicture(picture -> Arrays.copyOf(picture, picture.length + 1))
+				.mapPictureBytes(value -> value + 10)
+				.build(target);
+
+		pipeline.sendPictureMsg(new byte[] { 1, 2, 4 });
+		// (1+1)*2 = 4, (2+1)*2 = 6, (4+1)*2 = 10, then the differences 4, 2, 4, a zero byte and + 10
+		assertArrayEquals(new byte[] { 14, 12, 14, 10 }, target.picture);
+	}
+
+	private static final class PictureTarget implements WhatsappMessage
+	{
+		private byte[] picture;
+
+		@Override
+		public void sendTextMsg(String msg)
+		{
+		}
+
+		@Override
+		public void sendPictureMsg(byte[] imageBytes)
+		{
+			picture = imageBytes;
+		}
+
+		@Override
+		public void sendCompositeMsg(CompositeMessage msg)
+		{
+		}
+	}
+}